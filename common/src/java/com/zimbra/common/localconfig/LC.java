@@ -173,6 +173,34 @@ public final class LC {
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
+    // codec for newly compressed blobs: gzip, lz4 or xz; existing blobs are read with the codec they were written with
+    public static final KnownKey zimbra_blob_compression_codec = KnownKey.newKey("gzip");
+    // blob files per second the consistency checker and the deduper may examine, 0 for no limit
+    public static final KnownKey zimbra_blob_scan_max_files_per_second = KnownKey.newKey(0);
+    // number of threads the deduper processes digests with
+    public static final KnownKey zimbra_blob_dedupe_threads = KnownKey.newKey(1);
+    // record 1 in N blob reads in the per-mailbox access sketch, 0 to disable access tracking and blob tiering
+    public static final KnownKey zimbra_blob_access_sample_rate = KnownKey.newKey(0);
+    // interval between passes moving blobs between primary and secondary volumes, 0 to disable
+    public static final KnownKey zimbra_blob_tiering_interval = KnownKey.newKey(Constants.MILLIS_PER_HOUR * 6);
+    // blobs of items older than this that were not read since the last pass are moved to the secondary volume
+    public static final KnownKey zimbra_blob_tiering_cold_age = KnownKey.newKey(Constants.MILLIS_PER_DAY * 30);
+    // sampled reads since the last passes after which a blob on a secondary volume is moved back to the primary volume
+    public static final KnownKey zimbra_blob_tiering_promote_min_reads = KnownKey.newKey(2);
+    // blobs are only moved back to the primary volume while its file system is less full than this
+    public static final KnownKey zimbra_blob_tiering_primary_max_usage_percent = KnownKey.newKey(90);
+    // bytes per second blob tiering may copy, 0 for no limit
+    public static final KnownKey zimbra_blob_tiering_max_bytes_per_second = KnownKey.newKey(10 * 1024 * 1024);
+    // blobs moved per pass at most
+    public static final KnownKey zimbra_blob_tiering_max_blobs_per_pass = KnownKey.newKey(10000);
+    // direct buffers kept for writing incoming blobs through their file channel, 0 to write through a plain stream
+    public static final KnownKey zimbra_store_direct_buffer_pool_size = KnownKey.newKey(0);
+    // sync only the data and size of a newly written blob (fdatasync), not its timestamps
+    public static final KnownKey zimbra_store_fsync_data_only = KnownKey.newKey(false);
+    // preallocate incoming blobs whose size is known to be at least this many bytes, 0 not to preallocate
+    public static final KnownKey zimbra_store_preallocate_min_size = KnownKey.newKey(0);
+    // sync the file system once for all incoming blobs finished at the same time instead of each blob
+    public static final KnownKey zimbra_store_fsync_batch = KnownKey.newKey(false);
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
@@ -479,6 +507,9 @@ public final class LC {
     @Supported
     public static final KnownKey ldap_cache_domain_maxage = KnownKey.newKey(15);
 
+    // max merged cos/domain account default maps shared by accounts, 0 disables
+    public static final KnownKey ldap_cache_inherited_defaults_maxsize = KnownKey.newKey(1000);
+
     @Supported
     public static final KnownKey ldap_cache_mime_maxage = KnownKey.newKey(15);
 
@@ -710,6 +741,8 @@ public final class LC {
     public static final KnownKey nio_pop3_enabled = KnownKey.newKey(true);
 
     public static final KnownKey nio_max_write_queue_size = KnownKey.newKey(10000);
+    // deflaters and inflaters kept for reuse by connections that negotiated COMPRESS=DEFLATE
+    public static final KnownKey nio_deflate_pool_size = KnownKey.newKey(64);
 
     public static final KnownKey imap_max_request_size = KnownKey.newKey(10 * 1024);
     public static final KnownKey imap_max_nesting_in_search_request = KnownKey.newKey(100);
@@ -758,6 +791,8 @@ public final class LC {
     public static final KnownKey pop3_max_consecutive_error = KnownKey.newKey(5);
 
     public static final KnownKey lmtp_throttle_ip_limit = KnownKey.newKey(0);
+    // threads delivering to the recipients of one message in parallel, 0 delivers one recipient at a time
+    public static final KnownKey lmtp_parallel_delivery_threads = KnownKey.newKey(0);
 
     public static final KnownKey milter_bind_port = KnownKey.newKey(0);
     public static final KnownKey milter_bind_address = KnownKey.newKey(null);
@@ -1295,6 +1330,17 @@ public final class LC {
 
     @Supported
     public static final KnownKey external_store_delete_max_ioexceptions = KnownKey.newKey(25);
+    // threads uploading staged blobs to content-addressable external stores in the background, 0 to upload on the delivery thread
+    public static final KnownKey external_store_async_upload_threads = KnownKey.newKey(0);
+    // blobs waiting for a background upload are kept here until they are in the external store; not a
+    // temporary directory, the staged copy is the only one until its upload completes
+    public static final KnownKey external_store_upload_staging_directory = KnownKey.newKey("${zimbra_store_directory}/upload-staging");
+    // attempts at a background upload before its blob is moved to the failed directory under the staging directory
+    public static final KnownKey external_store_async_upload_max_attempts = KnownKey.newKey(20);
+    // threads loading blobs into the local cache ahead of reads, 0 to disable prefetch
+    public static final KnownKey external_store_prefetch_threads = KnownKey.newKey(0);
+    // number of newest messages in a folder selected over IMAP to prefetch from the external store
+    public static final KnownKey imap_select_prefetch_messages = KnownKey.newKey(20);
 
     @Supported
     public static final KnownKey redis_service_uri = KnownKey.newKey("redis://zmc-redis:6379");
@@ -1458,6 +1504,29 @@ public final class LC {
     //Remote IMAP
     @Reloadable
     public static final KnownKey imap_always_use_remote_store = KnownKey.newKey(false);
+    // messages a standalone imapd requests from the mailstore at once when a FETCH needs their content,
+    // 0 to fetch each message with its own requests (needed while mailstores don't support fmt=imapbulk)
+    public static final KnownKey imap_remote_bulk_fetch_batch_size = KnownKey.newKey(0);
+    // messages larger than this are left out of bulk fetches and fetched on their own
+    public static final KnownKey imap_remote_bulk_fetch_max_message_size = KnownKey.newKey(1024 * 1024);
+    // threads sending untagged updates to IDLE sessions, 0 to send them from the thread that made the change
+    public static final KnownKey imap_idle_notify_threads = KnownKey.newKey(0);
+    // milliseconds an IDLE session waits after a change before it is sent, so bursts of changes go out together
+    public static final KnownKey imap_idle_notify_delay_ms = KnownKey.newKey(50);
+    // IMAP commands running at least this many milliseconds are logged with their details, 0 to log none
+    public static final KnownKey imap_slow_command_threshold_ms = KnownKey.newKey(0);
+    // changes kept in memory per folder to answer CONDSTORE CHANGEDSINCE without a database query, 0 to disable
+    public static final KnownKey imap_change_journal_max_entries = KnownKey.newKey(0);
+    // mailboxes for which IMAP change journals are kept
+    public static final KnownKey imap_change_journal_max_mailboxes = KnownKey.newKey(1000);
+    // authenticated backend connections kept open for reuse by IMAP proxy sessions, 0 to disable
+    public static final KnownKey imap_proxy_pool_size = KnownKey.newKey(0);
+    // pooled IMAP proxy connections unused for this many milliseconds are closed
+    public static final KnownKey imap_proxy_pool_idle_timeout_ms = KnownKey.newKey(60000);
+    // IMAP BODYSTRUCTURE and ENVELOPE up to this many characters are stored with new messages, 0 to store none
+    public static final KnownKey imap_stored_structure_max_length = KnownKey.newKey(0);
+    // messages per selected folder without stored THREAD headers whose headers are kept in memory between THREAD commands
+    public static final KnownKey imap_thread_headers_cache_size = KnownKey.newKey(10000);
 
     // owasp handler
     public static final KnownKey zimbra_use_owasp_html_sanitizer = KnownKey.newKey(true);
@@ -1532,6 +1601,16 @@ public final class LC {
     // ZCS-11349: Toggle off/on fallback to ldap search
     public static final KnownKey zimbra_gal_fallback_ldap_search_enabled = KnownKey.newKey(true);
 
+    // answer GAL autocomplete for local GalSync accounts from an in-memory prefix index
+    public static final KnownKey zimbra_gal_autocomplete_index_enabled = KnownKey.newKey(false);
+    // GalSync accounts whose GAL autocomplete index is kept in memory
+    public static final KnownKey zimbra_gal_autocomplete_index_max_accounts = KnownKey.newKey(10);
+    // a GAL autocomplete index not queried for this many milliseconds is dropped
+    public static final KnownKey zimbra_gal_autocomplete_index_idle_timeout_ms = KnownKey.newKey(3600000);
+
+    // max contacts tracked per GalSync account for SyncGal deltaAttrs responses, 0 disables
+    public static final KnownKey zimbra_gal_change_journal_max_entries = KnownKey.newKey(50000);
+
     // ZBUG-2800 list of proxy headers not allowed
     public static final KnownKey proxy_servlet_drop_headers = KnownKey.newKey("x-forwarded-host,x-host,x-forwarded-server,x-http-host-override,x-http-host-override");
     
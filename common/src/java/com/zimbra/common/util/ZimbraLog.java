@@ -841,6 +841,28 @@ public final class ZimbraLog {
         sContextString.remove();
     }
 
+    /**
+     * Returns a copy of the current thread's logging context, so that work handed to another
+     * thread can be logged with it (see {@link #setContext(Map)}).
+     */
+    public static Map<String, String> getContextMap() {
+        Map<String, String> contextMap = sContextMap.get();
+        if (contextMap == null) {
+            return Collections.emptyMap();
+        }
+        return new LinkedHashMap<String, String>(contextMap);
+    }
+
+    /**
+     * Replaces the current thread's logging context with the given key/value pairs.
+     */
+    public static void setContext(Map<String, String> context) {
+        clearContext();
+        for (Map.Entry<String, String> entry : context.entrySet()) {
+            addToContext(entry.getKey(), entry.getValue());
+        }
+    }
+
     public static String getStackTrace(int maxDepth) {
         // Thread.currentThread().getStackTrace() would seem cleaner but bizarrely is slower.
         StackTraceElement[] stElems = new Throwable().getStackTrace();
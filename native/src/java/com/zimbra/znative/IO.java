@@ -58,6 +58,16 @@ public class IO {
     private static native void setStdoutStderrTo0(byte[] path)
         throws IOException;
 
+    private static native boolean preallocate0(byte[] path, long length)
+        throws IOException;
+
+    private static native boolean syncFileSystem0(byte[] path)
+        throws IOException;
+
+    // cleared when the loaded library predates these calls
+    private static volatile boolean havePreallocate = true;
+    private static volatile boolean haveSyncFileSystem = true;
+
     private static native int S_IRUSR();
     private static native int S_IWUSR();
     private static native int S_IXUSR();
@@ -138,6 +148,39 @@ public class IO {
         }
     }
 
+    /**
+     * Allocates disk space for the first {@code length} bytes of a file, extending the
+     * file to that length if it is shorter.  Returns false if the platform or the file
+     * system can't preallocate.
+     */
+    public static boolean preallocate(String path, long length) throws IOException {
+        if (!Util.haveNativeCode() || !havePreallocate) {
+            return false;
+        }
+        try {
+            return preallocate0(path.getBytes(), length);
+        } catch (UnsatisfiedLinkError e) {
+            havePreallocate = false;
+            return false;
+        }
+    }
+
+    /**
+     * Writes the modified data and metadata of every file on the file system containing
+     * {@code path} to disk (syncfs).  Returns false if the platform can't do this.
+     */
+    public static boolean syncFileSystem(String path) throws IOException {
+        if (!Util.haveNativeCode() || !haveSyncFileSystem) {
+            return false;
+        }
+        try {
+            return syncFileSystem0(path.getBytes());
+        } catch (UnsatisfiedLinkError e) {
+            haveSyncFileSystem = false;
+            return false;
+        }
+    }
+
     public static void setStdoutStderrTo(String path) throws IOException {
         if (!Util.haveNativeCode()) {
             return;
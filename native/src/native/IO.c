@@ -15,8 +15,12 @@
  * If not, see <https://www.gnu.org/licenses/>.
  * ***** END LICENSE BLOCK *****
  */
+#ifdef __linux__
+#define _GNU_SOURCE        /* fallocate, syncfs */
+#endif
 #include <jni.h>
 #include <errno.h>
+#include <fcntl.h>
 #include <string.h>
 #include <unistd.h>
 #include <limits.h>
@@ -191,6 +195,107 @@ JNIEXPORT void JNICALL Java_com_zimbra_znative_IO_chmod0
     }
 } 
 
+JNIEXPORT jboolean JNICALL Java_com_zimbra_znative_IO_preallocate0
+(JNIEnv *env, jclass clz, jbyteArray jpath, jlong length)
+{
+#ifdef __linux__
+    int len;
+    char *path;
+    int fd;
+    int err;
+
+    if (jpath == NULL) {
+        ZimbraThrowNPE(env, "IO.preallocate0 path");
+        return JNI_FALSE;
+    }
+
+    len = (*env)->GetArrayLength(env, jpath);
+    if (len <= 0) {
+        ZimbraThrowIAE(env, "IO.preallocate0 path length <= 0");
+        return JNI_FALSE;
+    }
+
+    path = alloca(len + 1);      /* +1 for \0 */
+    memset(path, 0, len + 1); /* +1 for \0 */
+    (*env)->GetByteArrayRegion(env, jpath, 0, len, (jbyte *)path);
+
+    fd = open(path, O_WRONLY);
+    if (fd < 0) {
+        err = errno;
+    } else {
+        /* mode 0 extends the file size, unlike posix_fallocate it never falls back to writing zeroes */
+        err = fallocate(fd, 0, 0, (off_t)length) == 0 ? 0 : errno;
+        close(fd);
+    }
+    if (err == 0) {
+        return JNI_TRUE;
+    } else if (err == EOPNOTSUPP || err == ENOSYS) {
+        return JNI_FALSE;
+    } else {
+        char msg[2048];
+        snprintf(msg, sizeof(msg), "fallocate(%s): %s", path, strerror(err));
+        if (err == ENOENT) {
+            ZimbraThrowFNFE(env, msg);
+        } else {
+            ZimbraThrowIOE(env, msg);
+        }
+        return JNI_FALSE;
+    }
+#else
+    return JNI_FALSE;
+#endif
+}
+
+JNIEXPORT jboolean JNICALL Java_com_zimbra_znative_IO_syncFileSystem0
+(JNIEnv *env, jclass clz, jbyteArray jpath)
+{
+#ifdef __linux__
+    int len;
+    char *path;
+    int fd;
+    int err;
+
+    if (jpath == NULL) {
+        ZimbraThrowNPE(env, "IO.syncFileSystem0 path");
+        return JNI_FALSE;
+    }
+
+    len = (*env)->GetArrayLength(env, jpath);
+    if (len <= 0) {
+        ZimbraThrowIAE(env, "IO.syncFileSystem0 path length <= 0");
+        return JNI_FALSE;
+    }
+
+    path = alloca(len + 1);      /* +1 for \0 */
+    memset(path, 0, len + 1); /* +1 for \0 */
+    (*env)->GetByteArrayRegion(env, jpath, 0, len, (jbyte *)path);
+
+    fd = open(path, O_RDONLY);
+    if (fd < 0) {
+        err = errno;
+    } else {
+        err = syncfs(fd) == 0 ? 0 : errno;
+        close(fd);
+    }
+    if (err == 0) {
+        return JNI_TRUE;
+    } else if (err == ENOSYS) {
+        return JNI_FALSE;
+    } else {
+        char msg[2048];
+        snprintf(msg, sizeof(msg), "syncfs(%s): %s", path, strerror(err));
+        if (err == ENOENT) {
+            ZimbraThrowFNFE(env, msg);
+        } else {
+            ZimbraThrowIOE(env, msg);
+        }
+        return JNI_FALSE;
+    }
+#else
+    return JNI_FALSE;
+#endif
+}
+
 JNIEXPORT jint JNICALL Java_com_zimbra_znative_IO_S_1IRUSR(JNIEnv *e, jclass c) { return S_IRUSR; }
 JNIEXPORT jint JNICALL Java_com_zimbra_znative_IO_S_1IWUSR(JNIEnv *e, jclass c) { return S_IWUSR; }
 JNIEXPORT jint JNICALL Java_com_zimbra_znative_IO_S_1IXUSR(JNIEnv *e, jclass c) { return S_IXUSR; }
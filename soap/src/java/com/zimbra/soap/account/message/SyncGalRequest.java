@@ -79,6 +79,19 @@ public class SyncGalRequest {
     @XmlAttribute(name=MailConstants.A_LIMIT /* limit */, required=false)
     private Integer limit;
 
+    /**
+     * @zm-api-field-tag delta-attrs
+     * @zm-api-field-description Flag whether modified contacts may be returned with only the fields that changed
+     * since the previous synchronization token.
+     * <br />
+     * Such contacts have <b>deltaAttrs</b> set to 1 (true) in the response; the client must merge the returned
+     * fields into its copy of the contact.  Contacts without the flag are complete.
+     * <br />
+     * Note: <b>deltaAttrs</b> only works when GAL sync account is configured/enabled.
+     */
+    @XmlAttribute(name=AccountConstants.A_DELTA_ATTRS /* deltaAttrs */, required=false)
+    private ZmBoolean deltaAttrs;
+
     public SyncGalRequest() {
     }
 
@@ -86,10 +99,12 @@ public class SyncGalRequest {
     public void setGalAccountId(String galAccountId) { this.galAccountId = galAccountId; }
     public void setIdOnly(Boolean idOnly) { this.idOnly = ZmBoolean.fromBool(idOnly); }
     public void setLimit(int limit) { this.limit = limit; }
+    public void setDeltaAttrs(Boolean deltaAttrs) { this.deltaAttrs = ZmBoolean.fromBool(deltaAttrs); }
     public String getToken() { return token; }
     public String getGalAccountId() { return galAccountId; }
     public Boolean getIdOnly() { return ZmBoolean.toBool(idOnly); }
     public Integer getLimit() { return (limit != null ? limit : 0); }
+    public Boolean getDeltaAttrs() { return ZmBoolean.toBool(deltaAttrs); }
 
     public MoreObjects.ToStringHelper addToStringInfo(
                 MoreObjects.ToStringHelper helper) {
@@ -98,7 +113,8 @@ public class SyncGalRequest {
             .add("galAccountId", galAccountId)
             .add("idOnly", idOnly)
             .add("getCount", getCount)
-            .add("limit", limit);
+            .add("limit", limit)
+            .add("deltaAttrs", deltaAttrs);
     }
 
     @Override
@@ -0,0 +1,130 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.gal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.common.util.Pair;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.soap.type.GalSearchType;
+
+public class GalAutoCompleteIndexTest {
+
+    private GalAutoCompleteIndex index;
+
+    @Before
+    public void setUp() {
+        index = new GalAutoCompleteIndex();
+        index.add(1, 10, contact("John Smith", "john.smith@example.com", null), "Smith, John");
+        index.add(2, 10, contact("Jane Smithers", "jane@example.com", null), "Smithers, Jane");
+        index.add(3, 10, contact("Conference Room", "room1@example.com", "RESOURCE"), "Conference Room");
+        index.add(4, 20, contact("John Doe", "jdoe@example.com", null), "Doe, John");
+    }
+
+    private static Map<String, String> contact(String fullName, String email, String calUserType) {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put(ContactConstants.A_fullName, fullName);
+        fields.put(ContactConstants.A_email, email);
+        if (calUserType != null) {
+            fields.put(Provisioning.A_zimbraAccountCalendarUserType, calUserType);
+        }
+        return fields;
+    }
+
+    private static List<Integer> ids(GalAutoCompleteIndex.Hits hits) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Pair<Integer, String> hit : hits.getHits()) {
+            ids.add(hit.getFirst());
+        }
+        return ids;
+    }
+
+    @Test
+    public void tokenize() {
+        Set<String> tokens = new HashSet<String>();
+        GalAutoCompleteIndex.tokenize("John.Smith@Example.com", tokens);
+        Assert.assertTrue(tokens.contains("john.smith@example.com"));
+        Assert.assertTrue(tokens.contains("john"));
+        Assert.assertTrue(tokens.contains("smith"));
+        Assert.assertTrue(tokens.contains("example"));
+    }
+
+    @Test
+    public void prefixMatch() {
+        Assert.assertEquals(Collections.singletonList(1), ids(index.match("john.sm", GalSearchType.all, null, 0)));
+        Assert.assertEquals(2, index.match("smith", GalSearchType.all, null, 0).getHits().size());
+        // every word must match, results are in file-as order
+        Assert.assertEquals(Collections.singletonList(4), ids(index.match("jo do*", GalSearchType.all, null, 0)));
+        List<Integer> johns = ids(index.match("john", GalSearchType.all, null, 0));
+        Assert.assertEquals(4, johns.get(0).intValue());
+        Assert.assertEquals(1, johns.get(1).intValue());
+        Assert.assertTrue(index.match("nobody", GalSearchType.all, null, 0).getHits().isEmpty());
+    }
+
+    @Test
+    public void filters() {
+        Assert.assertEquals(Collections.singletonList(3), ids(index.match("room", GalSearchType.resource, null, 0)));
+        Assert.assertTrue(index.match("room", GalSearchType.account, null, 0).getHits().isEmpty());
+        Assert.assertEquals(Collections.singletonList(1),
+                ids(index.match("john", GalSearchType.all, Collections.singleton(10), 0)));
+
+        GalAutoCompleteIndex.Hits hits = index.match("j", GalSearchType.all, null, 2);
+        Assert.assertEquals(2, hits.getHits().size());
+        Assert.assertTrue(hits.hasMore());
+    }
+
+    @Test
+    public void update() {
+        index.add(1, 10, contact("Johnny Walker", "jwalker@example.com", null), "Walker, Johnny");
+        Assert.assertEquals(Collections.singletonList(2), ids(index.match("smith", GalSearchType.all, null, 0)));
+        Assert.assertEquals(Collections.singletonList(1), ids(index.match("walk", GalSearchType.all, null, 0)));
+
+        index.remove(1);
+        Assert.assertTrue(index.match("walk", GalSearchType.all, null, 0).getHits().isEmpty());
+        Assert.assertFalse(index.getTokens().containsKey("walker"));
+    }
+
+    @Test
+    public void prefixQuery() {
+        Assert.assertTrue(GalAutoCompleteIndex.isPrefixQuery("john sm*"));
+        Assert.assertFalse(GalAutoCompleteIndex.isPrefixQuery("*smith"));
+        Assert.assertFalse(GalAutoCompleteIndex.isPrefixQuery("jo*hn"));
+        Assert.assertFalse(GalAutoCompleteIndex.isPrefixQuery("\"john smith\""));
+        Assert.assertFalse(GalAutoCompleteIndex.isPrefixQuery(""));
+        Assert.assertFalse(GalAutoCompleteIndex.isPrefixQuery(null));
+    }
+
+    @Test
+    public void install() {
+        GalAutoCompleteIndex built = new GalAutoCompleteIndex();
+        built.add(5, 10, contact("Mary Major", "mary@example.com", null), "Major, Mary");
+        index.install(built, 42);
+        Assert.assertEquals(Collections.singletonList(5), ids(index.match("ma", GalSearchType.all, null, 0)));
+        Assert.assertTrue(index.match("smith", GalSearchType.all, null, 0).getHits().isEmpty());
+    }
+}
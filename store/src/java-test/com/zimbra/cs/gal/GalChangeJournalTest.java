@@ -0,0 +1,78 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.gal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+public class GalChangeJournalTest {
+
+    private static Map<String, String> fields(String... kv) {
+        Map<String, String> fields = new HashMap<String, String>();
+        for (int i = 0; i < kv.length; i += 2) {
+            fields.put(kv[i], kv[i + 1]);
+        }
+        return fields;
+    }
+
+    @Test
+    public void changedFields() {
+        GalChangeJournal journal = new GalChangeJournal(100, 10);
+        journal.recordModified(1, 101, fields("firstName", "John", "phone", "1"), fields("firstName", "John", "phone", "2"));
+        Assert.assertEquals(Collections.singleton("phone"), journal.getChangedFields(1, 100, 101));
+
+        journal.recordModified(1, 105, fields("firstName", "John", "phone", "2"), fields("firstName", "Jon", "phone", "2"));
+        Assert.assertEquals(ImmutableSet.of("firstName", "phone"), journal.getChangedFields(1, 100, 105));
+
+        // changed outside of the journal
+        Assert.assertNull(journal.getChangedFields(1, 100, 106));
+        // token older than the journal
+        Assert.assertNull(journal.getChangedFields(1, 99, 105));
+        // not in the journal
+        Assert.assertNull(journal.getChangedFields(2, 100, 105));
+    }
+
+    @Test
+    public void fullContact() {
+        GalChangeJournal journal = new GalChangeJournal(100, 10);
+        journal.recordCreated(1, 101);
+        Assert.assertNull(journal.getChangedFields(1, 100, 101));
+
+        journal.recordModified(2, 102, fields("firstName", "John", "phone", "1"), fields("firstName", "John"));
+        Assert.assertNull(journal.getChangedFields(2, 100, 102));
+    }
+
+    @Test
+    public void eviction() {
+        GalChangeJournal journal = new GalChangeJournal(100, 2);
+        journal.recordModified(1, 101, fields("a", "1"), fields("a", "2"));
+        journal.recordModified(2, 102, fields("a", "1"), fields("a", "2"));
+        journal.recordModified(3, 103, fields("a", "1"), fields("a", "2"));
+        Assert.assertEquals(101, journal.getFloor());
+
+        Set<String> changed = journal.getChangedFields(3, 101, 103);
+        Assert.assertEquals(Collections.singleton("a"), changed);
+        Assert.assertNull(journal.getChangedFields(3, 100, 103));
+    }
+}
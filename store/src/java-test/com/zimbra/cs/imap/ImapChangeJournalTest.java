@@ -0,0 +1,75 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link ImapChangeJournal}.
+ */
+public class ImapChangeJournalTest {
+
+    private static List<Integer> sorted(List<Integer> ids) {
+        if (ids != null) {
+            Collections.sort(ids);
+        }
+        return ids;
+    }
+
+    @Test
+    public void changedSince() {
+        ImapChangeJournal journal = new ImapChangeJournal(1, 100, 10);
+        // nothing recorded yet, but everything after the floor would have been
+        Assert.assertEquals(Collections.emptyList(), journal.getModifiedIds(2, 100));
+        Assert.assertNull(journal.getModifiedIds(2, 99));
+
+        journal.record(2, 257, 101);
+        journal.record(2, 258, 102);
+        journal.record(5, 259, 102);
+        journal.record(2, 257, 103);
+        Assert.assertEquals(Arrays.asList(257, 258), sorted(journal.getModifiedIds(2, 100)));
+        Assert.assertEquals(Arrays.asList(257), journal.getModifiedIds(2, 102));
+        Assert.assertEquals(Collections.emptyList(), journal.getModifiedIds(2, 103));
+        Assert.assertEquals(Arrays.asList(259), journal.getModifiedIds(5, 101));
+        // changes at or below the floor are already covered
+        journal.record(2, 260, 90);
+        Assert.assertEquals(Arrays.asList(257, 258), sorted(journal.getModifiedIds(2, 100)));
+    }
+
+    @Test
+    public void overflow() {
+        ImapChangeJournal journal = new ImapChangeJournal(1, 0, 3);
+        journal.record(2, 257, 1);
+        journal.record(2, 258, 2);
+        journal.record(2, 259, 2);
+        journal.record(2, 260, 3);
+        // the oldest change was dropped, so the journal only answers from its MODSEQ on
+        Assert.assertNull(journal.getModifiedIds(2, 0));
+        Assert.assertEquals(Arrays.asList(258, 259, 260), sorted(journal.getModifiedIds(2, 1)));
+
+        journal.record(2, 261, 4);
+        Assert.assertNull(journal.getModifiedIds(2, 1));
+        Assert.assertEquals(Arrays.asList(260, 261), sorted(journal.getModifiedIds(2, 2)));
+        // other folders are not affected
+        Assert.assertEquals(Collections.emptyList(), journal.getModifiedIds(3, 0));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Unit test for notifying IDLE sessions per folder in {@link ImapIdleNotifier}.
+ */
+public final class ImapIdleNotifierTest {
+
+    @Before
+    public void setUp() {
+        LC.imap_idle_notify_threads.setDefault(2);
+        LC.imap_idle_notify_delay_ms.setDefault(300);
+        ImapIdleNotifier.startup();
+    }
+
+    @After
+    public void tearDown() {
+        ImapIdleNotifier.shutdown();
+        LC.imap_idle_notify_threads.setDefault(0);
+        LC.imap_idle_notify_delay_ms.setDefault(50);
+    }
+
+    private static ImapHandler newIdleHandler() {
+        ImapHandler handler = mock(ImapHandler.class);
+        when(handler.isIdle()).thenReturn(true);
+        return handler;
+    }
+
+    @Test
+    public void coalesced() throws Exception {
+        ImapHandler inbox1 = newIdleHandler();
+        ImapHandler inbox2 = newIdleHandler();
+        ImapHandler sent = newIdleHandler();
+        // a burst of changes to two folders
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(ImapIdleNotifier.schedule("acct:2", inbox1));
+            Assert.assertTrue(ImapIdleNotifier.schedule("acct:2", inbox2));
+            Assert.assertTrue(ImapIdleNotifier.schedule("acct:5", sent));
+        }
+        Assert.assertEquals(2, ImapIdleNotifier.getQueuedFolderCount());
+
+        verify(inbox1, timeout(5000)).sendNotifications(true, true);
+        verify(inbox2, timeout(5000)).sendNotifications(true, true);
+        verify(sent, timeout(5000)).sendNotifications(true, true);
+        Assert.assertEquals(0, ImapIdleNotifier.getQueuedFolderCount());
+
+        // a change after the send queues the session again
+        Assert.assertTrue(ImapIdleNotifier.schedule("acct:2", inbox1));
+        verify(inbox1, timeout(5000).times(2)).sendNotifications(true, true);
+        verify(inbox2, times(1)).sendNotifications(true, true);
+        verify(sent, times(1)).sendNotifications(true, true);
+    }
+
+    @Test
+    public void notIdle() throws Exception {
+        ImapHandler busy = mock(ImapHandler.class);
+        ImapHandler broken = newIdleHandler();
+        doThrow(new IOException("connection reset")).when(broken).sendNotifications(true, true);
+        ImapHandler idle = newIdleHandler();
+        ImapIdleNotifier.schedule("acct:2", busy);
+        ImapIdleNotifier.schedule("acct:2", broken);
+        ImapIdleNotifier.schedule("acct:2", idle);
+
+        // a failed session does not keep the others on the folder from being notified
+        verify(idle, timeout(5000)).sendNotifications(true, true);
+        verify(broken).close();
+        verify(busy, never()).sendNotifications(true, true);
+    }
+
+    @Test
+    public void shutdown() throws Exception {
+        ImapHandler handler = newIdleHandler();
+        Assert.assertTrue(ImapIdleNotifier.schedule("acct:2", handler));
+        ImapIdleNotifier.shutdown();
+        Assert.assertEquals(0, ImapIdleNotifier.getQueuedFolderCount());
+        // the caller sends the updates itself
+        Assert.assertFalse(ImapIdleNotifier.schedule("acct:2", handler));
+
+        Thread.sleep(500);
+        verify(handler, never()).sendNotifications(true, true);
+    }
+}
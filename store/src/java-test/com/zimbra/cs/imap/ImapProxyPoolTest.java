@@ -0,0 +1,73 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailclient.imap.ImapConfig;
+import com.zimbra.cs.mailclient.imap.ImapConnection;
+
+public class ImapProxyPoolTest {
+
+    private static ImapConnection newConnection() {
+        // never connected, so closing it is a no-op
+        return new ImapConnection(new ImapConfig());
+    }
+
+    @Test
+    public void borrow() {
+        ImapProxyPool pool = new ImapProxyPool(10, 1000);
+        ImapConnection a = newConnection();
+        ImapConnection b = newConnection();
+        ImapConnection c = newConnection();
+        pool.release("user1", a, 0);
+        pool.release("user2", b, 0);
+        pool.release("user1", c, 10);
+        Assert.assertEquals(3, pool.size());
+
+        // most recently released first
+        Assert.assertSame(c, pool.borrow("user1", 20));
+        Assert.assertSame(a, pool.borrow("user1", 20));
+        Assert.assertNull(pool.borrow("user1", 20));
+        Assert.assertNull(pool.borrow("user3", 20));
+        Assert.assertSame(b, pool.borrow("user2", 20));
+        Assert.assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void expire() {
+        ImapProxyPool pool = new ImapProxyPool(10, 100);
+        pool.release("user1", newConnection(), 0);
+        pool.release("user2", newConnection(), 50);
+        Assert.assertNull(pool.borrow("user1", 120));
+        Assert.assertEquals(1, pool.size());
+        Assert.assertNotNull(pool.borrow("user2", 120));
+    }
+
+    @Test
+    public void maxSize() {
+        ImapProxyPool pool = new ImapProxyPool(2, 1000);
+        pool.release("user1", newConnection(), 0);
+        pool.release("user2", newConnection(), 1);
+        pool.release("user3", newConnection(), 2);
+        Assert.assertEquals(2, pool.size());
+        // the least recently released connection was closed
+        Assert.assertNull(pool.borrow("user1", 3));
+        Assert.assertNotNull(pool.borrow("user3", 3));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.imap.ImapSearch.AndOperation;
+import com.zimbra.cs.imap.ImapSearch.ContentSearch;
+import com.zimbra.cs.imap.ImapSearch.FlagSearch;
+import com.zimbra.cs.imap.ImapSearch.ModifiedSearch;
+import com.zimbra.cs.imap.ImapSearch.NotOperation;
+import com.zimbra.cs.imap.ImapSearch.SequenceSearch;
+import com.zimbra.cs.imap.ImapSearch.SizeSearch;
+
+public class ImapSearchTest {
+
+    @Test
+    public void splitCriteria() {
+        ImapSearch unseen = new NotOperation(new FlagSearch("\\Seen"));
+        ImapSearch uids = new SequenceSearch("tag", "1:100", true);
+        ImapSearch text = new ContentSearch("invoice");
+        ImapSearch larger = new SizeSearch(SizeSearch.Relation.larger, 1024);
+        AndOperation search = new AndOperation(unseen, text, uids, larger);
+
+        Assert.assertFalse(search.canBeRunLocally());
+        Assert.assertEquals(new AndOperation(unseen, uids), search.getLocalCriteria());
+        Assert.assertEquals(new AndOperation(text, larger), search.getIndexedCriteria());
+    }
+
+    @Test
+    public void splitOneSided() {
+        AndOperation local = new AndOperation(new FlagSearch("\\Flagged"));
+        Assert.assertEquals(local, local.getLocalCriteria());
+        Assert.assertNull(local.getIndexedCriteria());
+
+        AndOperation indexed = new AndOperation(new ModifiedSearch(42));
+        Assert.assertNull(indexed.getLocalCriteria());
+        Assert.assertEquals(indexed, indexed.getIndexedCriteria());
+    }
+}
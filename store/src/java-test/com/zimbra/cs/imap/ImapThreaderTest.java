@@ -0,0 +1,141 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.cs.imap.ImapThreader.Algorithm;
+import com.zimbra.cs.imap.ImapThreader.Headers;
+import com.zimbra.cs.mailbox.MailItem;
+
+public class ImapThreaderTest {
+
+    private Map<ImapMessage, Headers> messages;
+
+    @Before
+    public void setUp() {
+        messages = new LinkedHashMap<ImapMessage, Headers>();
+    }
+
+    private void add(String messageId, String subject, long date, String... references) {
+        int seq = messages.size() + 1;
+        ImapMessage i4msg = new ImapMessage(100 + seq, MailItem.Type.MESSAGE, 200 + seq, 0, null);
+        i4msg.sequence = seq;
+        messages.put(i4msg, new Headers(messageId, Arrays.asList(references), subject, date));
+    }
+
+    private String thread(Algorithm algorithm, boolean byUID) {
+        return ImapThreader.format(ImapThreader.thread(algorithm, messages), byUID);
+    }
+
+    private static String baseSubject(String subject) {
+        return new Headers(null, Collections.<String>emptyList(), subject, 0).baseSubject;
+    }
+
+    @Test
+    public void baseSubject() {
+        Assert.assertEquals("hello", baseSubject("Hello"));
+        Assert.assertEquals("hello", baseSubject("Re: Hello"));
+        Assert.assertEquals("hello", baseSubject("Fwd: [list] RE:  Hello (fwd)"));
+        Assert.assertEquals("hello world", baseSubject("[Fwd: Re: Hello\tworld]"));
+        Assert.assertEquals("[list]", baseSubject("[list]"));
+        Assert.assertEquals("", baseSubject(null));
+        Assert.assertTrue(new Headers(null, Collections.<String>emptyList(), "re: hello", 0).replyOrForward);
+        Assert.assertFalse(new Headers(null, Collections.<String>emptyList(), "[list] hello", 0).replyOrForward);
+    }
+
+    private void addConversation() {
+        add("<a>", "Hello", 100);
+        add("<b>", "Re: Hello", 200, "<a>");
+        add("<c>", "Re: Hello", 300, "<a>");
+        add("<d>", "Other", 50);
+        add("<e>", "re: [list] Lonely", 400, "<x>");
+        add("<f>", "Hello", 500);
+    }
+
+    @Test
+    public void orderedSubject() {
+        addConversation();
+        Assert.assertEquals("(4)(1 (2)(3)(6))(5)", thread(Algorithm.ORDEREDSUBJECT, false));
+        Assert.assertEquals("(204)(201 (202)(203)(206))(205)", thread(Algorithm.ORDEREDSUBJECT, true));
+    }
+
+    @Test
+    public void references() {
+        addConversation();
+        // 6 has the subject of 1 but does not reply to it, so both go under a dummy
+        Assert.assertEquals("(4)((1 (2)(3))(6))(5)", thread(Algorithm.REFERENCES, false));
+    }
+
+    @Test
+    public void referencesChain() {
+        add("<a>", "one", 100);
+        add("<c>", "three", 300, "<a>", "<b>");
+        add("<b>", "two", 200, "<a>");
+        add("<z>", "Re: one", 400);
+        Assert.assertEquals("(1 (3 2)(4))", thread(Algorithm.REFERENCES, false));
+    }
+
+    @Test
+    public void referencesLoop() {
+        add("<g>", "loop one", 100, "<h>");
+        add("<h>", "loop two", 200, "<g>");
+        Assert.assertEquals("(2 1)", thread(Algorithm.REFERENCES, false));
+    }
+
+    @Test
+    public void storedHeaders() throws Exception {
+        StringBuilder refs = new StringBuilder();
+        for (int i = 1; i <= 15; i++) {
+            refs.append(" <r").append(i).append(">");
+        }
+        String raw = "Message-ID: <m@example.com>\r\n" +
+            "References:" + refs + "\r\n" +
+            "Subject: Re: stored\r\n" +
+            "\r\n";
+        MimeMessage mm = new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(raw.getBytes()));
+        Headers headers = ImapThreader.deserializeHeaders(ImapThreader.serializeHeaders(mm, 1000), "Re: stored");
+        Assert.assertEquals("<m@example.com>", headers.messageId);
+        Assert.assertEquals(Arrays.asList("<r1>", "<r7>", "<r8>", "<r9>", "<r10>", "<r11>", "<r12>", "<r13>", "<r14>",
+                "<r15>"), headers.references);
+        Assert.assertEquals("stored", headers.baseSubject);
+        Assert.assertTrue(headers.replyOrForward);
+        // no Date header
+        Assert.assertEquals(1000, headers.sentDate);
+
+        raw = "In-Reply-To: <p@example.com>\r\n" +
+            "Date: Thu, 1 Jan 2015 00:00:00 +0000\r\n" +
+            "\r\n";
+        mm = new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(raw.getBytes()));
+        headers = ImapThreader.deserializeHeaders(ImapThreader.serializeHeaders(mm, 1000), "");
+        Assert.assertNull(headers.messageId);
+        Assert.assertEquals(Collections.singletonList("<p@example.com>"), headers.references);
+        Assert.assertEquals(1420070400000L, headers.sentDate);
+    }
+}
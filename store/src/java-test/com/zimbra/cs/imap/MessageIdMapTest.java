@@ -0,0 +1,90 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailItem;
+
+public class MessageIdMapTest {
+
+    private static ImapMessage message(int id) {
+        return new ImapMessage(id, MailItem.Type.MESSAGE, id + 1000, 0, null);
+    }
+
+    @Test
+    public void putGetRemove() {
+        MessageIdMap map = new MessageIdMap();
+        ImapMessage m1 = message(1), m2 = message(2);
+        map.put(1, m1);
+        map.put(2, m2);
+        Assert.assertSame(m1, map.get(1));
+        Assert.assertSame(m2, map.get(2));
+        Assert.assertNull(map.get(3));
+
+        ImapMessage m1b = message(1);
+        map.put(1, m1b);
+        Assert.assertSame(m1b, map.get(1));
+        Assert.assertEquals(2, map.size());
+
+        map.remove(1);
+        map.remove(3);
+        Assert.assertNull(map.get(1));
+        Assert.assertSame(m2, map.get(2));
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void matchesHashMap() {
+        // random ids collide and wrap around the table; compare with a HashMap through growth and removals
+        MessageIdMap map = new MessageIdMap();
+        Map<Integer, ImapMessage> expected = new HashMap<Integer, ImapMessage>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            int id = random.nextInt(5000) + 1;
+            if (random.nextInt(3) == 0) {
+                map.remove(id);
+                expected.remove(id);
+            } else {
+                ImapMessage i4msg = message(id);
+                map.put(id, i4msg);
+                expected.put(id, i4msg);
+            }
+        }
+        Assert.assertEquals(expected.size(), map.size());
+        for (int id = 1; id <= 5000; id++) {
+            Assert.assertSame(expected.get(id), map.get(id));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidId() {
+        new MessageIdMap().put(0, message(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void removeInvalidId() {
+        MessageIdMap map = new MessageIdMap();
+        map.put(1, message(1));
+        map.remove(0);
+    }
+}
@@ -46,6 +46,11 @@ class MockImapHandler extends ImapHandler {
         return false;
     }
 
+    @Override
+    protected boolean doCOMPRESS(String tag, String mechanism) throws IOException {
+        return false;
+    }
+
     @Override
     protected InetSocketAddress getLocalAddress() {
         return new InetSocketAddress("localhost", 0);
@@ -0,0 +1,148 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.account.Key;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for parallel delivery in {@link ZimbraLmtpBackend}.
+ */
+public final class ZimbraLmtpBackendTest {
+
+    private static final String[] RECIPIENTS = {
+        "rcpt1@zimbra.com", "rcpt2@zimbra.com", "rcpt3@zimbra.com", "rcpt4@zimbra.com", "rcpt5@zimbra.com"
+    };
+
+    /** logging context and thread of each delivery, by recipient */
+    private static final Map<String, String> deliveryContexts = new ConcurrentHashMap<String, String>();
+    private static final Map<String, String> deliveryThreads = new ConcurrentHashMap<String, String>();
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        ZimbraLmtpBackend.addCallback(new LmtpCallback() {
+            @Override
+            public void afterDelivery(Account account, Mailbox mbox, String envelopeSender, String recipientEmail,
+                    Message newMessage) {
+                deliveryContexts.put(recipientEmail, ZimbraLog.getContextString());
+                deliveryThreads.put(recipientEmail, Thread.currentThread().getName());
+            }
+
+            @Override
+            public void forwardWithoutDelivery(Account account, Mailbox mbox, String envelopeSender,
+                    String recipientEmail, ParsedMessage pm) {
+            }
+        });
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        deliveryContexts.clear();
+        deliveryThreads.clear();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 0; i < RECIPIENTS.length; i++) {
+            Map<String, Object> attrs = Maps.newHashMap();
+            attrs.put(Provisioning.A_zimbraId, UUID.randomUUID().toString());
+            // the last recipients get a ParsedMessage of their own charset
+            attrs.put(Provisioning.A_zimbraPrefMailDefaultCharset, i < 3 ? "utf-8" : "iso-8859-1");
+            prov.createAccount(RECIPIENTS[i], "secret", attrs);
+        }
+        executor = Executors.newFixedThreadPool(3,
+                new ThreadFactoryBuilder().setNameFormat("LmtpDeliveryTest-%d").build());
+        ZimbraLmtpBackend.setDeliveryExecutor(executor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ZimbraLmtpBackend.setDeliveryExecutor(null);
+        executor.shutdownNow();
+        ZimbraLog.clearContext();
+    }
+
+    @Test
+    public void parallelDelivery() throws Exception {
+        String raw = "From: sender@example.com\r\n" +
+            "To: rcpt1@zimbra.com, rcpt2@zimbra.com\r\n" +
+            "Subject: Re: parallel delivery\r\n" +
+            "Message-ID: <parallel.1234@example.com>\r\n" +
+            "\r\n" +
+            "Delivered from several threads.\r\n";
+
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@example.com>", new String[] { "BODY", "SIZE" }, null));
+        for (String rcpt : RECIPIENTS) {
+            env.addLocalRecipient(new LmtpAddress("<" + rcpt + ">", null, null));
+        }
+        ZimbraLog.addIpToContext("10.0.0.1");
+        new ZimbraLmtpBackend(LmtpConfig.getInstance()).deliver(env, new ByteArrayInputStream(raw.getBytes()),
+                raw.length());
+
+        for (LmtpAddress recipient : env.getLocalRecipients()) {
+            String rcpt = recipient.getEmailAddress();
+            Assert.assertEquals(rcpt, LmtpReply.DELIVERY_OK, recipient.getDeliveryStatus());
+
+            Account account = Provisioning.getInstance().get(Key.AccountBy.name, rcpt);
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account);
+            int id = mbox.getItemIds(null, Mailbox.ID_FOLDER_INBOX).getIds(MailItem.Type.MESSAGE).get(0);
+            Message msg = mbox.getMessageById(null, id);
+            Assert.assertEquals(rcpt, "Re: parallel delivery", msg.getSubject());
+            Assert.assertEquals(rcpt, "parallel delivery", msg.getNormalizedSubject());
+            Assert.assertEquals(rcpt, "Delivered from several threads.", msg.getFragment());
+
+            // the delivery threads log with the context of the LMTP connection
+            String context = deliveryContexts.get(rcpt);
+            Assert.assertTrue(context, context.contains("name=" + rcpt + ";"));
+            Assert.assertTrue(context, context.contains("ip=10.0.0.1;"));
+        }
+        // the first recipient stores the blob from the LMTP thread, the others are delivered in parallel
+        Assert.assertEquals(Thread.currentThread().getName(), deliveryThreads.get(RECIPIENTS[0]));
+        for (int i = 1; i < RECIPIENTS.length; i++) {
+            Assert.assertTrue(deliveryThreads.get(RECIPIENTS[i]).startsWith("LmtpDeliveryTest-"));
+            String context = deliveryContexts.get(RECIPIENTS[i]);
+            Assert.assertTrue(context, context.contains("parallel.1234@example.com"));
+        }
+        // nothing leaks into the context of the delivery threads' next task
+        Assert.assertNull(executor.submit(() -> ZimbraLog.getContextString()).get());
+    }
+}
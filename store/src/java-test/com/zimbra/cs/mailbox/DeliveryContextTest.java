@@ -0,0 +1,161 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.StoreManager.StoreFeature;
+
+/**
+ * Unit test for sharing a staged blob between the recipients of a delivery in {@link DeliveryContext}.
+ */
+public final class DeliveryContextTest {
+
+    private StoreManager originalStoreManager;
+    private StoreManager sm;
+    private Blob blob;
+    private StagedBlob staged;
+    private Mailbox mbox;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        originalStoreManager = StoreManager.getInstance();
+        sm = mock(StoreManager.class);
+        StoreManager.setInstance(sm);
+        blob = mock(Blob.class);
+        staged = mock(StagedBlob.class);
+        mbox = mock(Mailbox.class);
+        when(sm.supports(StoreFeature.SHARED_STAGING)).thenReturn(true);
+        when(sm.stage(blob, mbox)).thenReturn(staged);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        StoreManager.setInstance(originalStoreManager);
+    }
+
+    private DeliveryContext newSharedContext() {
+        return new DeliveryContext(true, Arrays.asList(1, 2, 3)).setIncomingBlob(blob).shareStagedBlob();
+    }
+
+    @Test
+    public void releasedOnce() throws Exception {
+        DeliveryContext ctxt = newSharedContext();
+        StagedBlob first = ctxt.stage(sm, blob, mbox);
+        ctxt.release(sm, first);
+        StagedBlob second = ctxt.stage(sm, blob, mbox);
+        StagedBlob third = ctxt.stage(sm, blob, mbox);
+        Assert.assertSame(staged, first);
+        Assert.assertSame(staged, second);
+        Assert.assertSame(staged, third);
+        verify(sm, times(1)).stage(blob, mbox);
+
+        ctxt.release(sm, second);
+        // the delivery ends while the last recipient still uses the staged blob
+        ctxt.releaseStagedBlob();
+        verify(sm, never()).quietDelete(staged);
+        ctxt.release(sm, third);
+        verify(sm, times(1)).quietDelete(staged);
+
+        ctxt.releaseStagedBlob();
+        verify(sm, times(1)).quietDelete(staged);
+    }
+
+    @Test
+    public void releasedByContext() throws Exception {
+        DeliveryContext ctxt = newSharedContext();
+        for (int i = 0; i < 3; i++) {
+            ctxt.release(sm, ctxt.stage(sm, blob, mbox));
+        }
+        verify(sm, never()).quietDelete(staged);
+        ctxt.releaseStagedBlob();
+        verify(sm, times(1)).quietDelete(staged);
+    }
+
+    @Test
+    public void parallelRecipients() throws Exception {
+        final DeliveryContext ctxt = newSharedContext();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<StagedBlob>> deliveries = new ArrayList<Future<StagedBlob>>();
+            for (int i = 0; i < 16; i++) {
+                deliveries.add(executor.submit(new Callable<StagedBlob>() {
+                    @Override
+                    public StagedBlob call() throws Exception {
+                        StagedBlob result = ctxt.stage(sm, blob, mbox);
+                        ctxt.release(sm, result);
+                        return result;
+                    }
+                }));
+            }
+            for (Future<StagedBlob> delivery : deliveries) {
+                Assert.assertSame(staged, delivery.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        ctxt.releaseStagedBlob();
+        verify(sm, times(1)).stage(blob, mbox);
+        verify(sm, times(1)).quietDelete(staged);
+    }
+
+    @Test
+    public void notShared() throws Exception {
+        // stores that cannot share staged blobs stage and delete them per recipient
+        when(sm.supports(StoreFeature.SHARED_STAGING)).thenReturn(false);
+        DeliveryContext ctxt = newSharedContext();
+        for (int i = 0; i < 3; i++) {
+            ctxt.release(sm, ctxt.stage(sm, blob, mbox));
+        }
+        verify(sm, times(3)).stage(blob, mbox);
+        verify(sm, times(3)).quietDelete(staged);
+
+        // and so do single recipient deliveries
+        ctxt = new DeliveryContext().setIncomingBlob(blob).shareStagedBlob();
+        when(sm.supports(StoreFeature.SHARED_STAGING)).thenReturn(true);
+        ctxt.release(sm, ctxt.stage(sm, blob, mbox));
+        verify(sm, times(4)).quietDelete(staged);
+        ctxt.releaseStagedBlob();
+        verify(sm, times(4)).quietDelete(staged);
+    }
+}
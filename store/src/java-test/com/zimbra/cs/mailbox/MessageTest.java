@@ -26,16 +26,19 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.google.common.io.ByteStreams;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.Element.XMLElement;
 import com.zimbra.common.soap.MailConstants;
 import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.common.util.Pair;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.db.DbUtil;
+import com.zimbra.cs.imap.ImapMessage;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.SearchParams;
@@ -189,4 +192,47 @@ public final class MessageTest {
         // make sure post flag is not set
         Assert.assertTrue((msg.getFlagBitmask() & Flag.FlagInfo.POST.toBitmask()) == 0);
     }
+
+    @Test
+    public void storedImapStructure() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions opt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        byte[] raw = ("From: sender@zimbra.com\r\nTo: test@zimbra.com\r\nSubject: structure\r\n" +
+                "Content-Type: text/plain; charset=us-ascii\r\n\r\nbody\r\n").getBytes();
+
+        Message msg = mbox.addMessage(null, new ParsedMessage(raw, false), opt, null);
+        Assert.assertNull("disabled by default", msg.getImapBodyStructure());
+        Assert.assertNull("disabled by default", msg.getImapEnvelope());
+
+        LC.imap_stored_structure_max_length.setDefault(8192);
+        try {
+            msg = mbox.addMessage(null, new ParsedMessage(raw, false), opt, null);
+            mbox.purge(MailItem.Type.MESSAGE);
+            msg = mbox.getMessageById(null, msg.getId());
+            Pair<String, String> expected = ImapMessage.serializeForStorage(msg.getMimeMessage(), Integer.MAX_VALUE);
+            Assert.assertEquals(expected.getFirst(), msg.getImapBodyStructure());
+            Assert.assertEquals(expected.getSecond(), msg.getImapEnvelope());
+
+            LC.imap_stored_structure_max_length.setDefault(10);
+            msg = mbox.addMessage(null, new ParsedMessage(raw, false), opt, null);
+            Assert.assertNull("over the length limit", msg.getImapBodyStructure());
+        } finally {
+            LC.imap_stored_structure_max_length.setDefault(0);
+        }
+    }
+
+    @Test
+    public void storedImapThreadHeaders() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions opt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        byte[] raw = ("From: sender@zimbra.com\r\nTo: test@zimbra.com\r\nSubject: Re: thread\r\n" +
+                "Message-ID: <thread.2@zimbra.com>\r\nReferences: <thread.1@zimbra.com>\r\n\r\nbody\r\n").getBytes();
+
+        Message msg = mbox.addMessage(null, new ParsedMessage(raw, false), opt, null);
+        mbox.purge(MailItem.Type.MESSAGE);
+        msg = mbox.getMessageById(null, msg.getId());
+        Assert.assertEquals(ImapMessage.serializeThreadHeaders(msg.getMimeMessage(), msg.getDate()),
+                msg.getImapThreadHeaders());
+        Assert.assertTrue(msg.getImapThreadHeaders().contains("<thread.2@zimbra.com>\n<thread.1@zimbra.com>"));
+    }
 }
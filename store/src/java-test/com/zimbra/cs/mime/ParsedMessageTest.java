@@ -16,8 +16,13 @@
  */
 package com.zimbra.cs.mime;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.document.Document;
 import org.junit.Assert;
@@ -152,4 +157,58 @@ public final class ParsedMessageTest {
         pm = new ParsedMessage(raw, false);
         Assert.assertFalse("normal message fragment", pm.getFragment(null).equals(msgWasEncrypted));
     }
+
+    @Test
+    public void updateMimeMessage() throws Exception {
+        String raw = "From: a@example.com\r\n" +
+            "Subject: original\r\n" +
+            "Message-ID: <update.1234@example.com>\r\n" +
+            "\r\n" +
+            "Testing.\r\n";
+        ParsedMessage pm = new ParsedMessage(raw.getBytes(), false);
+        pm.getMimeMessage().setSubject("changed");
+        pm.updateMimeMessage();
+
+        String updated = new String(pm.getRawData());
+        Assert.assertTrue(updated.contains("Subject: changed"));
+        Assert.assertTrue(updated.endsWith("Testing.\r\n"));
+        Assert.assertEquals("changed", pm.getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void prepareForSharedDelivery() throws Exception {
+        String raw = "From: Sender <sender@example.com>\r\n" +
+            "To: a@example.com, b@example.com\r\n" +
+            "Subject: Re:   shared  delivery\r\n" +
+            "Message-ID: <shared.1234@example.com>\r\n" +
+            "\r\n" +
+            "Delivered to several mailboxes at once.\r\n";
+        final ParsedMessage pm = new ParsedMessage(raw.getBytes(), false).setDefaultCharset("utf-8")
+                .prepareForSharedDelivery();
+        String subject = pm.getSubject();
+        // setting the same charset again must not reset anything the delivery threads read
+        pm.setDefaultCharset("utf-8");
+        Assert.assertSame(subject, pm.getSubject());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 16; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        pm.setDefaultCharset("utf-8");
+                        return pm.getNormalizedSubject() + "|" + pm.isReply() + "|" + pm.getFragment(null) + "|" +
+                                pm.getParsedSender().emailPart + "|" + pm.getParsedRecipients().size();
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                Assert.assertEquals("shared delivery|true|Delivered to several mailboxes at once.|sender@example.com|2",
+                        result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
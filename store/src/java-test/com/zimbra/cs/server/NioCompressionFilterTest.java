@@ -0,0 +1,103 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public final class NioCompressionFilterTest {
+
+    private DummySession session;
+    private TestIoHandler handler;
+
+    @Before
+    public void setUp() {
+        session = new DummySession();
+        handler = new TestIoHandler();
+        session.setHandler(handler);
+        session.getFilterChain().addLast("compression", new NioCompressionFilter());
+    }
+
+    @Test
+    public void write() throws Exception {
+        session.setAttribute(NioCompressionFilter.DISABLE_COMPRESSION_ONCE, true);
+        session.write(IoBuffer.wrap("A1 OK DEFLATE active\r\n".getBytes(Charsets.US_ASCII)));
+        Assert.assertEquals("A1 OK DEFLATE active\r\n", new String(handler.sent.toByteArray(), Charsets.US_ASCII));
+
+        handler.sent.reset();
+        StringBuilder response = new StringBuilder();
+        for (int i = 1; i <= 1000; i++) {
+            response.append("* ").append(i).append(" FETCH (FLAGS (\\Seen))\r\n");
+        }
+        session.write(IoBuffer.wrap(response.substring(0, 100).getBytes(Charsets.US_ASCII)));
+        session.write(IoBuffer.wrap(response.substring(100).getBytes(Charsets.US_ASCII)));
+        byte[] compressed = handler.sent.toByteArray();
+        Assert.assertTrue(compressed.length < response.length() / 4);
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(compressed);
+        byte[] b = new byte[response.length() + 1];
+        Assert.assertEquals(response.length(), inflater.inflate(b));
+        Assert.assertEquals(response.toString(), new String(b, 0, response.length(), Charsets.US_ASCII));
+    }
+
+    @Test
+    public void read() throws Exception {
+        String command = "A2 FETCH 1:* (FLAGS)\r\n";
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(command.getBytes(Charsets.US_ASCII));
+        byte[] b = new byte[256];
+        int len = deflater.deflate(b, 0, b.length, Deflater.SYNC_FLUSH);
+
+        // split across reads
+        session.getFilterChain().fireMessageReceived(IoBuffer.wrap(b, 0, 5));
+        session.getFilterChain().fireMessageReceived(IoBuffer.wrap(b, 5, len - 5));
+        Assert.assertEquals(command, handler.received.toString());
+    }
+
+    private static final class TestIoHandler extends IoHandlerAdapter {
+        final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        final StringBuilder received = new StringBuilder();
+
+        @Override
+        public void messageSent(IoSession session, Object message) {
+            IoBuffer buf = (IoBuffer) message;
+            while (buf.hasRemaining()) {
+                sent.write(buf.get());
+            }
+        }
+
+        @Override
+        public void messageReceived(IoSession session, Object message) {
+            IoBuffer buf = (IoBuffer) message;
+            while (buf.hasRemaining()) {
+                received.append((char) buf.get());
+            }
+        }
+    }
+}
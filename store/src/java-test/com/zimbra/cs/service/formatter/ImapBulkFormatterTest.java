@@ -0,0 +1,72 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.formatter;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+public class ImapBulkFormatterTest {
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(Charsets.US_ASCII));
+    }
+
+    @Test
+    public void readHeader() throws IOException {
+        InputStream in = stream("257 1700000000000 42 5 5\r\nhello300 0 0 -1 0\r\n301 1700000000000 43 2000000 0\r\n");
+
+        ImapBulkFormatter.Frame frame = ImapBulkFormatter.readHeader(in);
+        Assert.assertEquals(257, frame.id);
+        Assert.assertEquals(1700000000000L, frame.date);
+        Assert.assertEquals(42, frame.modseq);
+        Assert.assertEquals(5, frame.size);
+        Assert.assertEquals(5, frame.length);
+        byte[] content = new byte[(int) frame.length];
+        ByteStreams.readFully(in, content);
+        Assert.assertEquals("hello", new String(content, Charsets.US_ASCII));
+
+        frame = ImapBulkFormatter.readHeader(in);
+        Assert.assertEquals(300, frame.id);
+        Assert.assertEquals(-1, frame.size);
+
+        // too large, content left out
+        frame = ImapBulkFormatter.readHeader(in);
+        Assert.assertEquals(301, frame.id);
+        Assert.assertEquals(2000000, frame.size);
+        Assert.assertEquals(0, frame.length);
+
+        Assert.assertNull(ImapBulkFormatter.readHeader(in));
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedHeader() throws IOException {
+        ImapBulkFormatter.readHeader(stream("257 1700000000000"));
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedHeader() throws IOException {
+        ImapBulkFormatter.readHeader(stream("<html>\r\n"));
+    }
+}
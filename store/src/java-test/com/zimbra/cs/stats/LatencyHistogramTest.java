@@ -0,0 +1,68 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets() {
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.index(value);
+            Assert.assertTrue(value <= LatencyHistogram.highestValue(index));
+            Assert.assertTrue(index == 0 || value > LatencyHistogram.highestValue(index - 1));
+            // relative error of a bucket is under 1/SUB_BUCKETS
+            Assert.assertTrue(LatencyHistogram.highestValue(index) - value <= value / LatencyHistogram.SUB_BUCKETS);
+        }
+        Assert.assertEquals(LatencyHistogram.index(Integer.MAX_VALUE), LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentile(99));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(100, histogram.getMax());
+        Assert.assertEquals(50.5, histogram.getAverage(), 0.001);
+        Assert.assertEquals(51, histogram.getPercentile(50));
+        Assert.assertEquals(95, histogram.getPercentile(95));
+        Assert.assertEquals(99, histogram.getPercentile(99));
+        Assert.assertEquals(100, histogram.getPercentile(100));
+        Assert.assertEquals(1, histogram.getPercentile(0));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        histogram.record(-5);
+        Assert.assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void tracker() {
+        LatencyTracker tracker = new LatencyTracker("test.csv");
+        tracker.addStat("FETCH", 10, 1000);
+        tracker.addStat("FETCH", 20, 3000);
+        tracker.addStat("SELECT", 5, 100);
+        Assert.assertEquals("FETCH,2,15,10,20,20,20,2000", tracker.getSummary().get(0));
+        Assert.assertEquals(2, tracker.getDataLines().size());
+        Assert.assertTrue(tracker.getDataLines().isEmpty());
+    }
+}
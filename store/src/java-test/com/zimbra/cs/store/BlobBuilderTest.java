@@ -0,0 +1,81 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.zimbra.common.localconfig.LC;
+
+public class BlobBuilderTest {
+
+    private File file;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("blob", ".tmp");
+        data = new byte[LC.zimbra_store_copy_buffer_size_kb.intValue() * 1024 * 2 + 17];
+        new Random(1).nextBytes(data);
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_store_direct_buffer_pool_size.setDefault(0);
+        LC.zimbra_store_preallocate_min_size.setDefault(0);
+        LC.zimbra_store_fsync_batch.setDefault(false);
+        file.delete();
+    }
+
+    private void store(long sizeHint) throws Exception {
+        Blob blob = new BlobBuilder(new Blob(file)).setSizeHint(sizeHint).init().append(data).finish();
+        Assert.assertEquals(data.length, blob.getRawSize());
+        Assert.assertArrayEquals(data, Files.toByteArray(file));
+    }
+
+    @Test
+    public void directBuffers() throws Exception {
+        LC.zimbra_store_direct_buffer_pool_size.setDefault(2);
+        store(0);
+    }
+
+    @Test
+    public void preallocate() throws Exception {
+        LC.zimbra_store_preallocate_min_size.setDefault(1);
+        // the unused part of the preallocated file is cut off
+        store(data.length * 2);
+        // the size hint was short
+        store(data.length / 2);
+
+        LC.zimbra_store_direct_buffer_pool_size.setDefault(2);
+        store(data.length * 2);
+    }
+
+    @Test
+    public void fsyncBatch() throws Exception {
+        // blobs are synced one by one where the file system can't be synced
+        LC.zimbra_store_fsync_batch.setDefault(true);
+        store(0);
+    }
+}
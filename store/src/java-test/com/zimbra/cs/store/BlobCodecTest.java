@@ -0,0 +1,94 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+
+public class BlobCodecTest {
+
+    private static final byte[] CONTENT = Strings.repeat("Subject: test\r\n\r\nhello world\r\n", 1000).getBytes(Charsets.UTF_8);
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtil.deleteDir(dir);
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        File src = new File(dir, "src");
+        Files.write(CONTENT, src);
+        Assert.assertNull(BlobCodec.detect(src));
+
+        for (BlobCodec codec : BlobCodec.values()) {
+            File dest = new File(dir, codec.name());
+            codec.compress(src, dest, false);
+            Assert.assertTrue(dest.length() < CONTENT.length);
+            Assert.assertEquals(codec, BlobCodec.detect(dest));
+            Assert.assertArrayEquals(CONTENT, read(codec.decompress(new FileInputStream(dest))));
+            Assert.assertArrayEquals(CONTENT, read(BlobCodec.decompressAny(new FileInputStream(dest))));
+        }
+    }
+
+    @Test
+    public void decompressAny() throws IOException {
+        // streams that do not support mark
+        File src = new File(dir, "src");
+        Files.write(CONTENT, src);
+        for (BlobCodec codec : BlobCodec.values()) {
+            File dest = new File(dir, codec.name());
+            codec.compress(src, dest, false);
+            InputStream in = new ByteArrayInputStream(Files.toByteArray(dest)) {
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+            Assert.assertArrayEquals(CONTENT, read(BlobCodec.decompressAny(in)));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.zimbra.common.localconfig.LC;
+
+public class DirectBufferOutputStreamTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        LC.zimbra_store_direct_buffer_pool_size.setDefault(2);
+        file = File.createTempFile("dbos", ".tmp");
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_store_direct_buffer_pool_size.setDefault(0);
+        file.delete();
+    }
+
+    private void write(byte[] data) throws IOException {
+        DirectBufferOutputStream out = new DirectBufferOutputStream(new FileOutputStream(file).getChannel());
+        try {
+            // mix of single bytes, small and larger than buffer writes
+            out.write(data[0]);
+            out.write(data, 1, 99);
+            out.write(data, 100, data.length - 100);
+            out.flush();
+        } finally {
+            out.close();
+        }
+        Assert.assertFalse(out.getChannel().isOpen());
+    }
+
+    @Test
+    public void write() throws IOException {
+        byte[] data = new byte[LC.zimbra_store_copy_buffer_size_kb.intValue() * 1024 * 3 + 17];
+        new Random(1).nextBytes(data);
+        write(data);
+        Assert.assertArrayEquals(data, Files.toByteArray(file));
+
+        // again with a buffer from the pool
+        data = new byte[1000];
+        new Random(2).nextBytes(data);
+        write(data);
+        Assert.assertArrayEquals(data, Files.toByteArray(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void writeAfterClose() throws IOException {
+        DirectBufferOutputStream out = new DirectBufferOutputStream(new FileOutputStream(file).getChannel());
+        out.close();
+        out.close();
+        out.write(1);
+    }
+}
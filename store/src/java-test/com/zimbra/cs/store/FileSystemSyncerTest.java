@@ -0,0 +1,112 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FileSystemSyncerTest {
+
+    @Test
+    public void shared() throws Exception {
+        final AtomicInteger syncs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final FileSystemSyncer syncer = new FileSystemSyncer("/opt/zimbra/store/incoming") {
+            @Override
+            boolean syncFileSystem(String dir) throws IOException {
+                if (syncs.incrementAndGet() == 1) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return true;
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            results.add(executor.submit(() -> syncer.sync()));
+            started.await();
+            // blobs finished during the first sync share the next one
+            for (int i = 0; i < 7; i++) {
+                results.add(executor.submit(() -> syncer.sync()));
+            }
+            while (syncer.getRequested() < 8) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(2, syncs.get());
+
+        // a blob finished after the last sync needs a sync of its own
+        Assert.assertTrue(syncer.sync());
+        Assert.assertEquals(3, syncs.get());
+    }
+
+    @Test
+    public void failed() throws Exception {
+        final AtomicInteger syncs = new AtomicInteger();
+        FileSystemSyncer syncer = new FileSystemSyncer("/opt/zimbra/store/incoming") {
+            @Override
+            boolean syncFileSystem(String dir) throws IOException {
+                if (syncs.incrementAndGet() == 1) {
+                    throw new IOException("EIO");
+                }
+                return true;
+            }
+        };
+        try {
+            syncer.sync();
+            Assert.fail("sync error not reported");
+        } catch (IOException expected) {
+        }
+        // the next blob doesn't count on the failed sync
+        Assert.assertTrue(syncer.sync());
+        Assert.assertEquals(2, syncs.get());
+    }
+
+    @Test
+    public void unsupported() throws Exception {
+        FileSystemSyncer syncer = new FileSystemSyncer("/opt/zimbra/store/incoming") {
+            @Override
+            boolean syncFileSystem(String dir) {
+                return false;
+            }
+        };
+        Assert.assertFalse(syncer.sync());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.ThreaderTest;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.qa.unittest.TestUtil;
+
+public class AsyncUploadStoreManagerTest extends AbstractExternalStoreManagerTest {
+
+    private static volatile boolean failUploads = false;
+
+    public static class FailingUploadStoreManager extends SimpleContentAddressableStoreManager {
+        @Override
+        protected void writeStreamToStore(InputStream in, long actualSize, Mailbox mbox, String locator)
+        throws IOException {
+            if (failUploads) {
+                throw new IOException("external store unavailable");
+            }
+            super.writeStreamToStore(in, actualSize, mbox, locator);
+        }
+    }
+
+    @BeforeClass
+    public static void enableAsyncUpload() {
+        LC.external_store_async_upload_threads.setDefault(2);
+        LC.external_store_async_upload_max_attempts.setDefault(2);
+    }
+
+    @AfterClass
+    public static void disableAsyncUpload() {
+        LC.external_store_async_upload_threads.setDefault(0);
+        LC.external_store_async_upload_max_attempts.setDefault(20);
+    }
+
+    @Override
+    protected StoreManager getStoreManager() {
+        return new FailingUploadStoreManager();
+    }
+
+    @Test
+    public void uploadInBackground() throws Exception {
+        ParsedMessage pm = ThreaderTest.getRootMessage();
+        byte[] mimeBytes = TestUtil.readInputStream(pm.getRawInputStream());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        SimpleContentAddressableStoreManager sm = (SimpleContentAddressableStoreManager) StoreManager.getInstance();
+        Blob blob = sm.storeIncoming(pm.getRawInputStream());
+        StagedBlob staged = sm.stage(blob, mbox);
+        MailboxBlob mblob = sm.link(staged, mbox, 0, 0);
+        Assert.assertTrue("upload completed", sm.getUploadQueue().awaitUploads(10000));
+        Assert.assertNull(sm.getUploadQueue().getPendingFile(mbox, staged.getLocator()));
+
+        InputStream in = sm.readStreamFromStore(staged.getLocator(), mbox);
+        try {
+            Assert.assertTrue("stored content = mime content", TestUtil.bytesEqual(mimeBytes, in));
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+
+        Assert.assertTrue(sm.delete(mblob));
+    }
+
+    @Test
+    public void uploadFailsForGood() throws Exception {
+        ParsedMessage pm = ThreaderTest.getRootMessage();
+        byte[] mimeBytes = TestUtil.readInputStream(pm.getRawInputStream());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        SimpleContentAddressableStoreManager sm = (SimpleContentAddressableStoreManager) StoreManager.getInstance();
+        failUploads = true;
+        try {
+            Blob blob = sm.storeIncoming(pm.getRawInputStream());
+            StagedBlob staged = sm.stage(blob, mbox);
+            MailboxBlob mblob = sm.link(staged, mbox, 0, 0);
+            Assert.assertTrue("upload given up", sm.getUploadQueue().awaitUploads(10000));
+            Assert.assertEquals(1, sm.getUploadQueue().getFailedCount());
+            File file = sm.getUploadQueue().getPendingFile(mbox, staged.getLocator());
+            Assert.assertEquals("failed", file.getParentFile().getName());
+
+            // still read from the failed directory
+            InputStream in = sm.readPendingUpload(staged.getLocator(), mbox);
+            try {
+                Assert.assertTrue("staged content = mime content", TestUtil.bytesEqual(mimeBytes, in));
+            } finally {
+                ByteUtil.closeStream(in);
+            }
+
+            // deleting the blob drops its staged copy
+            sm.delete(mblob);
+            Assert.assertNull(sm.getUploadQueue().getPendingFile(mbox, staged.getLocator()));
+            Assert.assertFalse(file.exists());
+        } finally {
+            failUploads = false;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+
+public class BlobAccessTrackerTest {
+
+    @Before
+    public void setUp() {
+        LC.zimbra_blob_access_sample_rate.setDefault(1);
+        BlobAccessTracker.reset();
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_blob_access_sample_rate.setDefault(0);
+        BlobAccessTracker.reset();
+    }
+
+    @Test
+    public void counts() {
+        Assert.assertFalse(BlobAccessTracker.hasAccesses(1));
+        for (int i = 0; i < 3; i++) {
+            BlobAccessTracker.recordAccess(1, 257);
+        }
+        BlobAccessTracker.recordAccess(1, 258);
+
+        Assert.assertTrue(BlobAccessTracker.hasAccesses(1));
+        Assert.assertFalse(BlobAccessTracker.hasAccesses(2));
+        // estimates never undercount
+        Assert.assertTrue(BlobAccessTracker.getAccessCount(1, 257) >= 3);
+        Assert.assertTrue(BlobAccessTracker.getAccessCount(1, 258) >= 1);
+        Assert.assertEquals(0, BlobAccessTracker.getAccessCount(2, 257));
+    }
+
+    @Test
+    public void saturate() {
+        for (int i = 0; i < 1000; i++) {
+            BlobAccessTracker.recordAccess(1, 300);
+        }
+        Assert.assertEquals(255, BlobAccessTracker.getAccessCount(1, 300));
+    }
+
+    @Test
+    public void decay() {
+        for (int i = 0; i < 4; i++) {
+            BlobAccessTracker.recordAccess(1, 300);
+        }
+        BlobAccessTracker.recordAccess(2, 300);
+
+        BlobAccessTracker.decay();
+        Assert.assertEquals(2, BlobAccessTracker.getAccessCount(1, 300));
+        // sketches that decayed to zero are dropped
+        Assert.assertFalse(BlobAccessTracker.hasAccesses(2));
+
+        BlobAccessTracker.decay();
+        BlobAccessTracker.decay();
+        Assert.assertEquals(0, BlobAccessTracker.getAccessCount(1, 300));
+        Assert.assertFalse(BlobAccessTracker.hasAccesses(1));
+    }
+
+    @Test
+    public void disabled() {
+        LC.zimbra_blob_access_sample_rate.setDefault(0);
+        BlobAccessTracker.recordAccess(1, 300);
+        Assert.assertFalse(BlobAccessTracker.hasAccesses(1));
+    }
+}
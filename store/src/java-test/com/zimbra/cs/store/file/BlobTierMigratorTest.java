@@ -0,0 +1,217 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.Db;
+import com.zimbra.cs.db.HSQLDB;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.MailboxBlob.MailboxBlobInfo;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.Volume.StoreType;
+import com.zimbra.cs.volume.VolumeManager;
+
+public class BlobTierMigratorTest {
+
+    private static final byte[] CONTENT = "From: from1@zimbra.com\r\nTo: to1@zimbra.com\r\nSubject: tiering\r\n".getBytes();
+
+    private static Volume secondary;
+    private StoreManager originalStoreManager;
+    private FileBlobStore store;
+    private Mailbox mbox;
+    private Volume primary;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        System.setProperty("zimbra.native.required", "false");
+        //need MVCC since the VolumeManager code creates connections internally
+        HSQLDB db = (HSQLDB) Db.getInstance();
+        db.useMVCC(null);
+
+        VolumeManager mgr = VolumeManager.getInstance();
+        File dir = new File(mgr.getCurrentMessageVolume().getRootPath().replace("store", "store-secondary"));
+        dir.mkdirs();
+        secondary = mgr.create(Volume.builder().setPath(dir.getAbsolutePath(), true)
+                .setType(Volume.TYPE_MESSAGE_SECONDARY).setName("secondary").setStoreType(StoreType.INTERNAL).build());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        originalStoreManager = StoreManager.getInstance();
+        store = new FileBlobStore();
+        StoreManager.setInstance(store);
+        store.startup();
+        VolumeManager.getInstance().setCurrentVolume(Volume.TYPE_MESSAGE_SECONDARY, secondary.getId());
+        primary = VolumeManager.getInstance().getCurrentMessageVolume();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        LC.zimbra_blob_tiering_cold_age.setDefault(Constants.MILLIS_PER_DAY);
+        LC.zimbra_blob_tiering_max_bytes_per_second.setDefault(0);
+        BlobAccessTracker.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.zimbra_blob_tiering_cold_age.setDefault(Constants.MILLIS_PER_DAY * 30);
+        LC.zimbra_blob_tiering_max_bytes_per_second.setDefault(10 * 1024 * 1024);
+        LC.zimbra_blob_tiering_primary_max_usage_percent.setDefault(90);
+        LC.zimbra_blob_access_sample_rate.setDefault(0);
+        BlobAccessTracker.reset();
+        VolumeManager.getInstance().setCurrentVolume(Volume.TYPE_MESSAGE_SECONDARY, Volume.ID_NONE);
+        store.shutdown();
+        StoreManager.setInstance(originalStoreManager);
+    }
+
+    private Message addMessage(long receivedDate) throws Exception {
+        return mbox.addMessage(null, new ParsedMessage(CONTENT, receivedDate, false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+    }
+
+    private MailboxBlobInfo getBlobInfo(Message msg) {
+        return new MailboxBlobInfo(null, mbox.getId(), msg.getId(), msg.getSavedSequence(), msg.getLocator(),
+                msg.getDigest());
+    }
+
+    private File getBlobFile(Message msg, Volume vol) throws Exception {
+        return new File(FileBlobStore.getBlobPath(mbox, msg.getId(), msg.getSavedSequence(), vol.getId()));
+    }
+
+    private void assertContent(int id) throws Exception {
+        Assert.assertTrue(Arrays.equals(CONTENT, mbox.getMessageById(null, id).getContent()));
+    }
+
+    @Test
+    public void demote() throws Exception {
+        Message cold = addMessage(System.currentTimeMillis() - Constants.MILLIS_PER_DAY * 2);
+        Message recent = addMessage(System.currentTimeMillis());
+
+        BlobTierMigrator migrator = new BlobTierMigrator(store);
+        // the first pass only starts counting reads
+        migrator.runPass();
+        Assert.assertEquals(primary.getLocator(), mbox.getMessageById(null, cold.getId()).getLocator());
+
+        migrator.runPass();
+        Assert.assertEquals(secondary.getLocator(), mbox.getMessageById(null, cold.getId()).getLocator());
+        Assert.assertEquals(primary.getLocator(), mbox.getMessageById(null, recent.getId()).getLocator());
+        Assert.assertTrue(getBlobFile(cold, secondary).exists());
+        assertContent(cold.getId());
+        // readers that looked up the old locator can still open the old copy
+        Assert.assertTrue(getBlobFile(cold, primary).exists());
+
+        migrator.runPass();
+        Assert.assertFalse(getBlobFile(cold, primary).exists());
+        Assert.assertTrue(getBlobFile(recent, primary).exists());
+        assertContent(cold.getId());
+    }
+
+    @Test
+    public void promote() throws Exception {
+        LC.zimbra_blob_access_sample_rate.setDefault(1);
+        LC.zimbra_blob_tiering_primary_max_usage_percent.setDefault(101);
+        Message msg = addMessage(System.currentTimeMillis());
+        BlobTierMigrator migrator = new BlobTierMigrator(store);
+        Assert.assertEquals(1, migrator.moveBatch(mbox, Collections.singletonList(getBlobInfo(msg)), primary,
+                secondary));
+
+        BlobAccessTracker.recordAccess(mbox.getId(), msg.getId());
+        BlobAccessTracker.recordAccess(mbox.getId(), msg.getId());
+        migrator.runPass();
+        Assert.assertEquals(primary.getLocator(), mbox.getMessageById(null, msg.getId()).getLocator());
+        assertContent(msg.getId());
+
+        migrator.runPass();
+        Assert.assertFalse(getBlobFile(msg, secondary).exists());
+    }
+
+    @Test
+    public void locatorChanged() throws Exception {
+        Message msg = addMessage(System.currentTimeMillis());
+        MailboxBlobInfo info = getBlobInfo(msg);
+        // moved by someone else after the blobs were listed
+        mbox.updateBlobLocators(Collections.singletonList(getBlobInfo(msg)), "99");
+
+        BlobTierMigrator migrator = new BlobTierMigrator(store);
+        Assert.assertEquals(0, migrator.moveBatch(mbox, Collections.singletonList(info), primary, secondary));
+        Assert.assertEquals("99", mbox.getMessageById(null, msg.getId()).getLocator());
+        Assert.assertFalse(getBlobFile(msg, secondary).exists());
+
+        // the old copy is still in use and not deleted by the next pass
+        migrator.runPass();
+        Assert.assertTrue(getBlobFile(msg, primary).exists());
+    }
+
+    @Test
+    public void contentChanged() throws Exception {
+        Message msg = addMessage(System.currentTimeMillis());
+        // a blob of an older revision of the item
+        MailboxBlobInfo stale = new MailboxBlobInfo(null, mbox.getId(), msg.getId(), msg.getSavedSequence() - 1,
+                msg.getLocator(), msg.getDigest());
+        File staleFile = new File(FileBlobStore.getBlobPath(mbox, msg.getId(), stale.revision, primary.getId()));
+        Files.copy(getBlobFile(msg, primary).toPath(), staleFile.toPath());
+
+        BlobTierMigrator migrator = new BlobTierMigrator(store);
+        Assert.assertEquals(0, migrator.moveBatch(mbox, Collections.singletonList(stale), primary, secondary));
+        Assert.assertEquals(primary.getLocator(), mbox.getMessageById(null, msg.getId()).getLocator());
+        Assert.assertFalse(new File(FileBlobStore.getBlobPath(mbox, msg.getId(), stale.revision,
+                secondary.getId())).exists());
+
+        migrator.runPass();
+        Assert.assertTrue(staleFile.exists());
+    }
+
+    @Test
+    public void hardLinks() throws Exception {
+        Message msg1 = addMessage(System.currentTimeMillis());
+        Message msg2 = addMessage(System.currentTimeMillis());
+        // deduped, as by zmdedupe
+        File file2 = getBlobFile(msg2, primary);
+        Files.delete(file2.toPath());
+        Files.createLink(file2.toPath(), getBlobFile(msg1, primary).toPath());
+
+        BlobTierMigrator migrator = new BlobTierMigrator(store);
+        Assert.assertEquals(2, migrator.moveBatch(mbox, Arrays.asList(getBlobInfo(msg1), getBlobInfo(msg2)), primary,
+                secondary));
+        Assert.assertTrue(Files.isSameFile(getBlobFile(msg1, secondary).toPath(),
+                getBlobFile(msg2, secondary).toPath()));
+        assertContent(msg1.getId());
+        assertContent(msg2.getId());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.zimbra.common.util.FileUtil;
+
+public class ChunkedBlobFileTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtil.deleteDir(dir);
+    }
+
+    private static byte[] random(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private ChunkedBlobFile write(byte[] data, String name) throws IOException {
+        return ChunkedBlobFile.write(new ByteArrayInputStream(data), chunkDir(), new File(dir, name), false);
+    }
+
+    private File chunkDir() {
+        return ChunkedBlobFile.getChunkDir(dir.getPath());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        byte[] data = random(1, 1024 * 1024 + 17);
+        File manifest = new File(dir, "1-1.msg");
+        ChunkedBlobFile written = write(data, manifest.getName());
+        Assert.assertTrue(written.getChunks().size() > 1);
+
+        Assert.assertTrue(ChunkedBlobFile.isChunked(manifest));
+        ChunkedBlobFile read = ChunkedBlobFile.read(manifest, chunkDir());
+        Assert.assertEquals(data.length, read.getRawSize());
+        Assert.assertEquals(written.getChunks().size(), read.getChunks().size());
+        for (ChunkedBlobFile.Chunk chunk : read.getChunks()) {
+            Assert.assertTrue(chunk.getLength() <= ChunkedBlobFile.MAX_CHUNK_SIZE);
+        }
+        Assert.assertArrayEquals(data, ByteStreams.toByteArray(read.getInputStream()));
+    }
+
+    @Test
+    public void notChunked() throws IOException {
+        File file = new File(dir, "2-1.msg");
+        Files.write(random(2, 1000), file);
+        Assert.assertFalse(ChunkedBlobFile.isChunked(file));
+    }
+
+    @Test
+    public void damagedManifest() throws IOException {
+        byte[] data = random(6, 1024 * 1024);
+        File manifest = new File(dir, "5-1.msg");
+        write(data, manifest.getName());
+
+        // the file length has to match the chunk count
+        File file = new File(dir, "6-1.msg");
+        byte[] bytes = Files.toByteArray(manifest);
+        Files.write(Arrays.copyOf(bytes, bytes.length - 1), file);
+        Assert.assertFalse(ChunkedBlobFile.isChunked(file));
+        try {
+            ChunkedBlobFile.read(file, chunkDir());
+            Assert.fail("read truncated manifest");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void manifestOnPlainFileSystem() throws IOException {
+        byte[] data = random(9, 512 * 1024);
+        File manifest = new File(dir, "8-1.msg");
+        write(data, manifest.getName());
+
+        // manifests are recognized by their content, not by file permissions
+        manifest.setExecutable(false);
+        Assert.assertTrue(ChunkedBlobFile.isChunked(manifest));
+        Assert.assertArrayEquals(data, ByteStreams.toByteArray(ChunkedBlobFile.read(manifest, chunkDir()).getInputStream()));
+    }
+
+    @Test
+    public void copyToOtherChunkStore() throws IOException {
+        byte[] data = random(7, 1024 * 1024);
+        File manifest = new File(dir, "7-1.msg");
+        write(data, manifest.getName());
+
+        File otherVolume = new File(dir, "volume2");
+        File otherChunkDir = ChunkedBlobFile.getChunkDir(otherVolume.getPath());
+        File copy = new File(otherVolume, "7-1.msg");
+        otherVolume.mkdirs();
+        ChunkedBlobFile copied = ChunkedBlobFile.read(manifest, chunkDir()).copyTo(copy, otherChunkDir, false);
+        Assert.assertEquals(data.length, copied.getRawSize());
+
+        Assert.assertTrue(ChunkedBlobFile.isChunked(copy));
+        FileUtil.deleteDir(chunkDir());
+        Assert.assertArrayEquals(data, ByteStreams.toByteArray(ChunkedBlobFile.read(copy, otherChunkDir).getInputStream()));
+    }
+
+    @Test
+    public void sharedChunks() throws IOException {
+        // the same attachment behind different headers
+        byte[] attachment = random(3, 2 * 1024 * 1024);
+        byte[] msg1 = new byte[1000 + attachment.length];
+        System.arraycopy(random(4, 1000), 0, msg1, 0, 1000);
+        System.arraycopy(attachment, 0, msg1, 1000, attachment.length);
+        byte[] msg2 = new byte[3333 + attachment.length];
+        System.arraycopy(random(5, 3333), 0, msg2, 0, 3333);
+        System.arraycopy(attachment, 0, msg2, 3333, attachment.length);
+
+        ChunkedBlobFile chunked1 = write(msg1, "3-1.msg");
+        ChunkedBlobFile chunked2 = write(msg2, "4-1.msg");
+        Set<String> names = new HashSet<String>();
+        for (ChunkedBlobFile.Chunk chunk : chunked1.getChunks()) {
+            names.add(chunk.getName());
+        }
+        int shared = 0;
+        for (ChunkedBlobFile.Chunk chunk : chunked2.getChunks()) {
+            if (names.contains(chunk.getName())) {
+                shared++;
+            }
+        }
+        Assert.assertTrue(shared >= chunked2.getChunks().size() - 2);
+        Assert.assertArrayEquals(msg2, ByteStreams.toByteArray(ChunkedBlobFile.read(new File(dir, "4-1.msg"), chunkDir()).getInputStream()));
+    }
+}
@@ -409,6 +409,17 @@ public class Account extends ZAttrAccount implements GroupedEntry, AliasedEntry
 
         Cos cos = getProvisioning().getCOS(this); // will set cos if not set yet
 
+        Domain domain = setSecondaryDefaults ? getProvisioning().getDomain(this) : null;
+        Map<String, Object> inherited = AttributeManager.getInheritedAccountDefaults(cos, domain);
+        if (inherited != null) {
+            if (!setSecondaryDefaults) {
+                setDefaults(inherited);
+            } else {
+                setDefaults(inherited, null);
+            }
+            return;
+        }
+
         Map<String, Object> defaults = null;
         if (cos != null) {
             defaults = cos.getAccountDefaults();
@@ -423,7 +434,6 @@ public class Account extends ZAttrAccount implements GroupedEntry, AliasedEntry
         } else {
             // set primary and secondary defaults
             Map<String, Object> secondaryDefaults = null;
-            Domain domain = getProvisioning().getDomain(this);
             if (domain != null)
                 secondaryDefaults = domain.getAccountDefaults();
             setDefaults(defaults, secondaryDefaults);
@@ -20,7 +20,9 @@ package com.zimbra.cs.account;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -28,6 +30,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.dom4j.Attribute;
 import org.dom4j.Document;
@@ -97,6 +101,10 @@ public class AttributeManager {
 
     private static AttributeManager mInstance;
 
+    // merged cos and domain account defaults, shared by all accounts of a cos and domain
+    private static final ConcurrentMap<InheritedDefaultsKey, InheritedDefaults> sInheritedAccountDefaults =
+            new ConcurrentHashMap<InheritedDefaultsKey, InheritedDefaults>();
+
     // contains attrs defined in one of the zimbra .xml files (currently zimbra attrs and some of the amavis attrs)
     // these attrs have AttributeInfo
     //
@@ -1384,6 +1392,131 @@ public class AttributeManager {
             return mAttrs.get(name.toLowerCase());
     }
 
+    /**
+     * Returns the account defaults inherited from the cos and the domain as one map, values
+     * on the cos take precedence over values on the domain.
+     *
+     * The map is shared by all accounts of the same cos and domain objects, and is rebuilt
+     * when the account defaults of the cos or domain are reset, so one lookup replaces the
+     * cos then domain fallback on every attribute read.
+     *
+     * @return null if both cos and domain are null, or the cache is disabled
+     *         (LC ldap_cache_inherited_defaults_maxsize is 0)
+     */
+    public static Map<String, Object> getInheritedAccountDefaults(Cos cos, Domain domain) {
+        int maxSize = LC.ldap_cache_inherited_defaults_maxsize.intValue();
+        if (maxSize <= 0 || (cos == null && domain == null)) {
+            return null;
+        }
+        InheritedDefaultsKey key = new InheritedDefaultsKey(cos, domain);
+        InheritedDefaults defaults = sInheritedAccountDefaults.get(key);
+        if (defaults == null) {
+            if (sInheritedAccountDefaults.size() >= maxSize) {
+                // entries of cos and domain objects no longer cached pile up here, start over
+                sInheritedAccountDefaults.clear();
+            }
+            defaults = new InheritedDefaults(cos, domain);
+            InheritedDefaults existing = sInheritedAccountDefaults.putIfAbsent(key, defaults);
+            if (existing != null) {
+                defaults = existing;
+            }
+        }
+        return defaults;
+    }
+
+    /*
+     * cos and domain objects are compared by identity, a reloaded cos or domain gets its own entry
+     */
+    private static final class InheritedDefaultsKey {
+        private final Cos cos;
+        private final Domain domain;
+
+        InheritedDefaultsKey(Cos cos, Domain domain) {
+            this.cos = cos;
+            this.domain = domain;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof InheritedDefaultsKey)) {
+                return false;
+            }
+            InheritedDefaultsKey other = (InheritedDefaultsKey) obj;
+            return cos == other.cos && domain == other.domain;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(cos) + System.identityHashCode(domain);
+        }
+    }
+
+    /*
+     * read-only view of the merged defaults, rebuilt when the cos or domain defaults change
+     */
+    private static final class InheritedDefaults extends AbstractMap<String, Object> {
+        private final Cos cos;
+        private final Domain domain;
+        private volatile Map<String, Object> merged = Collections.emptyMap();
+        private volatile int cosVersion = -1;
+        private volatile int domainVersion = -1;
+
+        InheritedDefaults(Cos cos, Domain domain) {
+            this.cos = cos;
+            this.domain = domain;
+        }
+
+        private Map<String, Object> getMerged() {
+            if ((cos == null ? 0 : cos.getAccountDefaultsVersion()) != cosVersion ||
+                    (domain == null ? 0 : domain.getAccountDefaultsVersion()) != domainVersion) {
+                return rebuild();
+            }
+            return merged;
+        }
+
+        private synchronized Map<String, Object> rebuild() {
+            int newCosVersion = cos == null ? 0 : cos.getAccountDefaultsVersion();
+            int newDomainVersion = domain == null ? 0 : domain.getAccountDefaultsVersion();
+            if (newCosVersion != cosVersion || newDomainVersion != domainVersion) {
+                Map<String, Object> defaults = new HashMap<String, Object>();
+                if (domain != null) {
+                    defaults.putAll(domain.getAccountDefaults());
+                }
+                if (cos != null) {
+                    defaults.putAll(cos.getAccountDefaults());
+                    // accounts without zimbraCOSId report the cos they are in
+                    if (cos.getId() != null) {
+                        defaults.put(Provisioning.A_zimbraCOSId, cos.getId());
+                    }
+                }
+                merged = Collections.unmodifiableMap(defaults);
+                cosVersion = newCosVersion;
+                domainVersion = newDomainVersion;
+            }
+            return merged;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return getMerged().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return getMerged().containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return getMerged().size();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return getMerged().entrySet();
+        }
+    }
+
     public static void loadLdapSchemaExtensionAttrs(LdapProv prov) {
         synchronized(AttributeManager.class) {
             try {
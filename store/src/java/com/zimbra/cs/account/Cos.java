@@ -35,6 +35,7 @@ import java.util.Map;
 public class Cos extends ZAttrCos {
  
     private Map<String, Object> mAccountDefaults = new HashMap<String, Object>();
+    private volatile int mAccountDefaultsVersion;
 
     public Cos(String name, String id, Map<String,Object> attrs, Provisioning prov) {
         super(name, id, attrs, prov);
@@ -70,11 +71,19 @@ public class Cos extends ZAttrCos {
         } catch (ServiceException e) {
             // TODO log
         }
+        mAccountDefaultsVersion++;
     }
 
     public Map<String, Object> getAccountDefaults() {
         return mAccountDefaults;
     }
+
+    /*
+     * changes whenever the account defaults are recomputed
+     */
+    int getAccountDefaultsVersion() {
+        return mAccountDefaultsVersion;
+    }
     
     public boolean isDefaultCos() {
         return getName().equals(Provisioning.DEFAULT_COS_NAME) ||
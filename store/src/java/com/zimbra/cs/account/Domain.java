@@ -42,6 +42,7 @@ import com.zimbra.soap.type.GalSearchType;
 public class Domain extends ZAttrDomain {
     private String mUnicodeName;
     private Map<String, Object> mAccountDefaults = new HashMap<String, Object>();
+    private volatile int mAccountDefaultsVersion;
     
     public Domain(String name, String id, Map<String, Object> attrs, Map<String, Object> defaults, Provisioning prov) {
         super(name, id, attrs, defaults, prov);
@@ -106,11 +107,19 @@ public class Domain extends ZAttrDomain {
         } catch (ServiceException e) {
             // TODO log
         }
+        mAccountDefaultsVersion++;
     }
     
     public Map<String, Object> getAccountDefaults() {
         return mAccountDefaults;
     }
+
+    /*
+     * changes whenever the account defaults are recomputed
+     */
+    int getAccountDefaultsVersion() {
+        return mAccountDefaultsVersion;
+    }
     
     public String getUnicodeName() {
         return mUnicodeName;
@@ -16,7 +16,9 @@
  */
 package com.zimbra.cs.account.accesscontrol;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Log;
@@ -44,6 +46,7 @@ public class CheckPresetRight extends CheckRight {
 
     // derived from input or aux vars
     private GroupMembership mGranteeGroups;
+    private Set<String> mGranteeGroupIds;
     private final SeenRight mSeenRight;
 
     private static class SeenRight {
@@ -132,8 +135,19 @@ public class CheckPresetRight extends CheckRight {
         return mGranteeGroups;
     }
 
+    /*
+     * ids of all groups the grantee belongs to, resolved once per check so matching
+     * group grantees does not scan the membership list for every ACE
+     */
+    private Set<String> getGranteeGroupIds() throws ServiceException {
+        if (mGranteeGroupIds == null) {
+            mGranteeGroupIds = new HashSet<String>(getGranteeGroups().groupIds());
+        }
+        return mGranteeGroupIds;
+    }
+
     private boolean matchesGroupGrantee(ZimbraACE ace) throws ServiceException {
-        if (getGranteeGroups().groupIds().contains(ace.getGrantee())) {
+        if (getGranteeGroupIds().contains(ace.getGrantee())) {
             return true;
         } else if (ace.getGranteeType() == GranteeType.GT_EXT_GROUP) {
             return ace.matchesGrantee(mGranteeMailTarget, !mRightNeeded.isUserRight());
@@ -180,7 +194,7 @@ public class CheckPresetRight extends CheckRight {
         // target is a dl, we need to know if the dl returned from TargetIterator
         // is the target itself or one of the groups the target is in.  So we check
         // the actual target separately
-        List<ZimbraACE> acl = ACLUtil.getAllACEs(mTarget);
+        List<ZimbraACE> acl = getACEsMayGrantRightNeeded(mTarget);
         if (acl != null) {
             result = checkTarget(acl, false);
             if (result != null) {
@@ -204,7 +218,7 @@ public class CheckPresetRight extends CheckRight {
         GroupACLs groupACLs = null;
 
         while ((grantedOn = iter.next()) != null) {
-            acl = ACLUtil.getAllACEs(grantedOn);
+            acl = getACEsMayGrantRightNeeded(grantedOn);
 
             if (grantedOn instanceof Group) {
                 if (acl == null) {
@@ -260,6 +274,20 @@ public class CheckPresetRight extends CheckRight {
         }
     }
 
+    /*
+     * Returns all ACEs granted on the entry, or null if there is none or if none
+     * of them can match the right needed.  The compiled right mask on the ACL
+     * lets entries that carry only unrelated grants be skipped without walking
+     * their ACEs.
+     */
+    private List<ZimbraACE> getACEsMayGrantRightNeeded(Entry grantedOn) throws ServiceException {
+        ZimbraACL acl = ACLUtil.getACL(grantedOn);
+        if (acl == null || !acl.mayGrantPresetRight(mRightNeeded)) {
+            return null;
+        }
+        return acl.getAllACEs();
+    }
+
     private Boolean checkTarget(List<ZimbraACE> acl, boolean subDomain)
     throws ServiceException {
         Boolean result = null;
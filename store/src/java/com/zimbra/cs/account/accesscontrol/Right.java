@@ -45,6 +45,7 @@ public abstract class Right extends RightConsts implements Comparable<Right> {
 
     private static final int NOT_CACHEABLE = -1;
     private static int sMaxCacheIndex = 0;
+    private static int sMaxOrdinal = 0;
 
     private final String mName;
     protected RightType mRightType;
@@ -56,6 +57,7 @@ public abstract class Right extends RightConsts implements Comparable<Right> {
     protected TargetType mGrantTargetType;
     private CheckRightFallback mFallback;
     int mCacheIndex = NOT_CACHEABLE;
+    private final int mOrdinal;
 
     static void init(RightManager rm) throws ServiceException {
         UserRight.init(rm);
@@ -65,6 +67,7 @@ public abstract class Right extends RightConsts implements Comparable<Right> {
     Right(String name, RightType rightType) {
         mRightType = rightType;
         mName = name;
+        mOrdinal = getNextOrdinal();
     }
 
     String dump(StringBuilder sb) {
@@ -315,6 +318,19 @@ public abstract class Right extends RightConsts implements Comparable<Right> {
         return sMaxCacheIndex;
     }
 
+    /*
+     * dense, process wide index of the right, used as the bit position of the
+     * right in compiled right masks (see ZimbraACL.mayGrantPresetRight)
+     */
+    int getOrdinal() {
+        return mOrdinal;
+    }
+
+    private static synchronized int getNextOrdinal() {
+        sMaxOrdinal++;
+        return sMaxOrdinal - 1;
+    }
+
     public static void main(String[] args) throws ServiceException {
         // init rights
         RightManager.getInstance();
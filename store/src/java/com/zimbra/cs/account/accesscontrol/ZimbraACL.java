@@ -17,6 +17,7 @@
 package com.zimbra.cs.account.accesscontrol;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -47,6 +48,11 @@ public class ZimbraACL {
 
     // for the containsRight call, can probably remove now
     private Set<Right> mContainsRight = new HashSet<Right>();
+
+    // ordinals of all preset rights (directly or via combo rights) granted by
+    // any ACE in this ACL, compiled lazily on first check and dropped whenever
+    // the ACL is modified.
+    private volatile BitSet mPresetRightsMask;
     
     /**
      * ctor for loading from LDAP
@@ -133,6 +139,7 @@ public class ZimbraACL {
             mAllowedDelegable.add(aceToGrant);
         }
         mContainsRight.add(aceToGrant.getRight());
+        mPresetRightsMask = null;
     }
     
     private void removeACE(ZimbraACE aceToRevoke) {
@@ -146,6 +153,7 @@ public class ZimbraACL {
         else
             mAllowedNotDelegable.remove(aceToRevoke);
         mContainsRight.remove(aceToRevoke.getRight());
+        mPresetRightsMask = null;
     }
     
     /**
@@ -281,6 +289,37 @@ public class ZimbraACL {
         return result;
     }
     
+    /**
+     * Returns whether any ACE in this ACL, allowed or denied, can possibly
+     * match the preset right.  If false, none of the ACEs can affect the
+     * result of a check for the right and the ACL can be skipped entirely.
+     *
+     * @param presetRight a preset (user or admin) right
+     */
+    boolean mayGrantPresetRight(Right presetRight) {
+        BitSet mask = mPresetRightsMask;
+        if (mask == null) {
+            mask = compilePresetRightsMask();
+            mPresetRightsMask = mask;
+        }
+        return mask.get(presetRight.getOrdinal());
+    }
+
+    private BitSet compilePresetRightsMask() {
+        BitSet mask = new BitSet();
+        for (ZimbraACE ace : mAces) {
+            Right right = ace.getRight();
+            if (right.isPresetRight()) {
+                mask.set(right.getOrdinal());
+            } else if (right.isComboRight()) {
+                for (Right presetRight : ((ComboRight) right).getPresetRights()) {
+                    mask.set(presetRight.getOrdinal());
+                }
+            }
+        }
+        return mask;
+    }
+
     List<String> serialize() {
         List<String> aces = new ArrayList<String>();
         
@@ -822,11 +822,14 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
                 //
                 Account temp = makeAccountNoDefaults(dn, attributes);
                 Cos cos = getCOS(temp);
-                if (cos != null)
-                    defaults = cos.getAccountDefaults();
                 Domain domain = getDomain((Account)entry);
-                if (domain != null)
-                    secondaryDefaults = domain.getAccountDefaults();
+                defaults = AttributeManager.getInheritedAccountDefaults(cos, domain);
+                if (defaults == null) {
+                    if (cos != null)
+                        defaults = cos.getAccountDefaults();
+                    if (domain != null)
+                        secondaryDefaults = domain.getAccountDefaults();
+                }
             } else if (entry instanceof Domain) {
                 defaults = getConfig().getDomainDefaults();
             } else if (entry instanceof Server) {
@@ -1363,6 +1363,44 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Changes the locator of an item revision's blob in the item and revision tables, including the dumpster, if the
+     * blob is still at {@code oldLocator}.
+     * @return the number of rows updated
+     */
+    public static int updateLocator(DbConnection conn, Mailbox mbox, int itemId, int revision, String oldLocator,
+            String newLocator) throws ServiceException {
+        int updated = 0;
+        for (boolean fromDumpster : new boolean[] { false, true }) {
+            updated += updateLocator(conn, mbox, getMailItemTableName(mbox, fromDumpster), "id", itemId, revision,
+                    oldLocator, newLocator);
+            updated += updateLocator(conn, mbox, getRevisionTableName(mbox, fromDumpster), "item_id", itemId, revision,
+                    oldLocator, newLocator);
+        }
+        return updated;
+    }
+
+    private static int updateLocator(DbConnection conn, Mailbox mbox, String tableName, String idColumn, int itemId,
+            int revision, String oldLocator, String newLocator) throws ServiceException {
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("UPDATE " + tableName +
+                        " SET locator = ?" +
+                        " WHERE " + IN_THIS_MAILBOX_AND + idColumn + " = ? AND mod_content = ? AND locator = ?");
+            int pos = 1;
+            stmt.setString(pos++, newLocator);
+            pos = setMailboxId(stmt, mbox, pos);
+            stmt.setInt(pos++, itemId);
+            stmt.setInt(pos++, revision);
+            stmt.setString(pos++, oldLocator);
+            return stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("updating locator " + itemId + "-" + revision, e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static void saveImapUid(MailItem item) throws ServiceException {
         Mailbox mbox = item.getMailbox();
         DbConnection conn = mbox.getOperationConnection();
@@ -3951,6 +3989,56 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Visits the blobs at the given locator in all mailboxes of a mailbox group, including revisions
+     * and the dumpster.  The account ids of the visited blobs are not set.
+     * @param beforeDate only visit blobs of items dated before this (in seconds), or 0 for all
+     */
+    public static void visitBlobs(DbConnection conn, int groupId, String locator, int beforeDate,
+            Callback<MailboxBlob.MailboxBlobInfo> callback) throws ServiceException {
+        PreparedStatement stmt = null;
+        String constraint = " WHERE blob_digest IS NOT NULL AND locator = ?" + (beforeDate > 0 ? " AND date < ?" : "");
+        try {
+            for (boolean fromDumpster : new boolean[] { false, true }) {
+                stmt = conn.prepareStatement("SELECT " + MAILBOX_ID + "id, mod_content, locator, blob_digest FROM " +
+                        getMailItemTableName(groupId, fromDumpster) + constraint);
+                visitBlobs(stmt, groupId, locator, beforeDate, callback);
+
+                stmt = conn.prepareStatement("SELECT " + MAILBOX_ID + "item_id, mod_content, locator, blob_digest FROM " +
+                        getRevisionTableName(groupId, fromDumpster) + constraint);
+                visitBlobs(stmt, groupId, locator, beforeDate, callback);
+            }
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("visiting blobs at " + locator + " for mailbox group " + groupId, e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
+    private static void visitBlobs(PreparedStatement stmt, int groupId, String locator, int beforeDate,
+            Callback<MailboxBlob.MailboxBlobInfo> callback) throws SQLException {
+        ResultSet rs = null;
+        try {
+            int pos = 1;
+            stmt.setString(pos++, locator);
+            if (beforeDate > 0) {
+                stmt.setInt(pos++, beforeDate);
+            }
+            rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                pos = 1;
+                // without mailbox groups, each mailbox has its own database
+                int mailboxId = DebugConfig.disableMailboxGroups ? groupId : rs.getInt(pos++);
+                callback.call(new MailboxBlob.MailboxBlobInfo(null, mailboxId, rs.getInt(pos++), rs.getInt(pos++),
+                        rs.getString(pos++), rs.getString(pos++)));
+            }
+        } finally {
+            DbPool.closeResults(rs);
+            stmt.close();
+        }
+    }
+
     private static void visitAllBlobDigests(PreparedStatement stmt, Mailbox mbox, Callback<String> callback)
     throws SQLException, ServiceException {
         ResultSet rs = null;
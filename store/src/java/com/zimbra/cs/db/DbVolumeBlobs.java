@@ -121,6 +121,35 @@ public final class DbVolumeBlobs {
         }
     }
 
+    /**
+     * Moves the blob references of blobs that were moved to another volume.
+     */
+    public static void updateVolumeId(DbConnection conn, List<MailboxBlobInfo> blobs, short oldVolumeId, short newVolumeId)
+    throws ServiceException {
+        if (blobs.isEmpty()) {
+            return;
+        }
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("UPDATE " + TB_VOLUME_BLOBS + " SET " + CN_VOLUME_ID + " = ? WHERE " +
+                    CN_VOLUME_ID + " = ? AND " + CN_MAILBOX_ID + " = ? AND " + CN_ITEM_ID + " = ? AND " + CN_REVISION + " = ?");
+            for (MailboxBlobInfo info : blobs) {
+                int pos = 1;
+                stmt.setShort(pos++, newVolumeId);
+                stmt.setShort(pos++, oldVolumeId);
+                stmt.setInt(pos++, info.mailboxId);
+                stmt.setInt(pos++, info.itemId);
+                stmt.setInt(pos++, info.revision);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("unable to update blob references", e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static List<BlobReference> getBlobReferences(DbConnection conn, String digest, Volume volume) throws ServiceException {
         PreparedStatement stmt = null;
         ResultSet rs = null;
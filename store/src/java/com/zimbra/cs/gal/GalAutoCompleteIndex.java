@@ -0,0 +1,490 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.gal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mailbox.util.TypedIdList;
+import com.zimbra.soap.type.GalSearchType;
+
+/**
+ * In-memory prefix index over the contacts of a GalSync account mailbox.
+ *
+ * GAL autocomplete only needs prefix matches on names and email addresses, which this
+ * index answers from a sorted token map without running a mailbox index search.  The
+ * index is built from the GalSync mailbox in the background on first use, and then kept
+ * current from the mailbox change log (modified items and tombstones) each time it is
+ * queried, so it follows the same deltas the GAL sync imports write.  Until it is built,
+ * callers search the mailbox instead.
+ *
+ * At most LC zimbra_gal_autocomplete_index_max_accounts indexes are kept, and an index
+ * that is not queried for LC zimbra_gal_autocomplete_index_idle_timeout_ms is dropped.
+ */
+public final class GalAutoCompleteIndex {
+
+    private static final ConcurrentMap<String, GalAutoCompleteIndex> INDEXES = CacheBuilder.newBuilder()
+            .maximumSize(LC.zimbra_gal_autocomplete_index_max_accounts.intValue())
+            .expireAfterAccess(LC.zimbra_gal_autocomplete_index_idle_timeout_ms.longValue(), TimeUnit.MILLISECONDS)
+            .<String, GalAutoCompleteIndex>build().asMap();
+
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("GalAutoCompleteIndexBuilder").setDaemon(true).build());
+
+    private static final int LOAD_BATCH_SIZE = 500;
+
+    private static final Pattern TOKEN_SEPARATORS = Pattern.compile("[\\s,;:\"'()<>\\[\\]]+");
+    private static final Pattern ADDRESS_SEPARATORS = Pattern.compile("[@._+\\-]+");
+
+    private static final String[] INDEXED_FIELDS = {
+        ContactConstants.A_fullName,
+        ContactConstants.A_firstName,
+        ContactConstants.A_middleName,
+        ContactConstants.A_lastName,
+        ContactConstants.A_phoneticFirstName,
+        ContactConstants.A_phoneticLastName,
+        ContactConstants.A_nickname,
+        ContactConstants.A_company,
+        ContactConstants.A_email,
+        ContactConstants.A_email2,
+        ContactConstants.A_email3
+    };
+
+    private enum Kind {
+        ACCOUNT, RESOURCE, GROUP;
+
+        boolean matches(GalSearchType type) {
+            switch (type) {
+            case account:
+                return this != RESOURCE;
+            case resource:
+                return this == RESOURCE;
+            case group:
+                return this == GROUP;
+            default:
+                return true;
+            }
+        }
+    }
+
+    private static final class IndexEntry {
+        final int id;
+        final int folderId;
+        final Kind kind;
+        final String sortKey;
+        final String[] tokens;
+
+        IndexEntry(int id, int folderId, Kind kind, String sortKey, String[] tokens) {
+            this.id = id;
+            this.folderId = folderId;
+            this.kind = kind;
+            this.sortKey = sortKey;
+            this.tokens = tokens;
+        }
+    }
+
+    private static final Comparator<IndexEntry> SORT_KEY_ORDER = new Comparator<IndexEntry>() {
+        @Override
+        public int compare(IndexEntry e1, IndexEntry e2) {
+            int result = e1.sortKey.compareTo(e2.sortKey);
+            return result != 0 ? result : Integer.compare(e1.id, e2.id);
+        }
+    };
+
+    /**
+     * Matching contacts in sort order, with the sort key of each.
+     */
+    public static final class Hits {
+        private final List<Pair<Integer, String>> hits;
+        private final boolean hasMore;
+
+        Hits(List<Pair<Integer, String>> hits, boolean hasMore) {
+            this.hits = hits;
+            this.hasMore = hasMore;
+        }
+
+        /** item id and sort key of each matching contact */
+        public List<Pair<Integer, String>> getHits() {
+            return hits;
+        }
+
+        public boolean hasMore() {
+            return hasMore;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean building = new AtomicBoolean();
+    private Map<Integer, IndexEntry> entries = new HashMap<Integer, IndexEntry>();
+    private TreeMap<String, Set<Integer>> tokens = new TreeMap<String, Set<Integer>>();
+    // change id of the GalSync mailbox the index is current with, -1 if not built
+    private int changeId = -1;
+
+    @VisibleForTesting
+    GalAutoCompleteIndex() {
+    }
+
+    static GalAutoCompleteIndex getInstance(Mailbox mbox) {
+        GalAutoCompleteIndex index = INDEXES.get(mbox.getAccountId());
+        if (index == null) {
+            index = new GalAutoCompleteIndex();
+            GalAutoCompleteIndex existing = INDEXES.putIfAbsent(mbox.getAccountId(), index);
+            if (existing != null) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns whether the query can be answered by prefix matching, i.e. it is made of
+     * words optionally ending with a wildcard.
+     */
+    static boolean isPrefixQuery(String query) {
+        if (query == null) {
+            return false;
+        }
+        String q = query.trim();
+        if (q.isEmpty() || q.startsWith("*") || q.matches(".*[\"():].*")) {
+            return false;
+        }
+        for (String word : q.split("\\s+")) {
+            int star = word.indexOf('*');
+            if (star != -1 && star != word.length() - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds contacts in the given folders where every word of the query is a prefix of
+     * some name or address token of the contact.
+     *
+     * @param limit max number of hits to return, 0 for no limit
+     * @return the hits, or null if the index is not built yet
+     */
+    Hits search(Mailbox mbox, String query, GalSearchType type, Set<Integer> folderIds, int limit)
+    throws ServiceException {
+        if (!refresh(mbox)) {
+            return null;
+        }
+
+        lock.readLock().lock();
+        try {
+            return match(query, type, folderIds, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @VisibleForTesting
+    Hits match(String query, GalSearchType type, Set<Integer> folderIds, int limit) {
+        Set<Integer> matched = null;
+        for (String word : query.toLowerCase().trim().split("\\s+")) {
+            if (word.endsWith("*")) {
+                word = word.substring(0, word.length() - 1);
+            }
+            if (word.isEmpty()) {
+                continue;
+            }
+            Set<Integer> ids = new HashSet<Integer>();
+            for (Set<Integer> tokenIds : tokens.subMap(word, word + Character.MAX_VALUE).values()) {
+                if (matched == null) {
+                    ids.addAll(tokenIds);
+                } else {
+                    for (Integer id : tokenIds) {
+                        if (matched.contains(id)) {
+                            ids.add(id);
+                        }
+                    }
+                }
+            }
+            matched = ids;
+            if (matched.isEmpty()) {
+                break;
+            }
+        }
+        if (matched == null || matched.isEmpty()) {
+            return new Hits(Collections.<Pair<Integer, String>>emptyList(), false);
+        }
+
+        List<IndexEntry> found = new ArrayList<IndexEntry>(matched.size());
+        for (Integer id : matched) {
+            IndexEntry entry = entries.get(id);
+            if (entry.kind.matches(type) && (folderIds == null || folderIds.contains(entry.folderId))) {
+                found.add(entry);
+            }
+        }
+        Collections.sort(found, SORT_KEY_ORDER);
+
+        boolean hasMore = limit > 0 && found.size() > limit;
+        if (hasMore) {
+            found = found.subList(0, limit);
+        }
+        List<Pair<Integer, String>> hits = new ArrayList<Pair<Integer, String>>(found.size());
+        for (IndexEntry entry : found) {
+            hits.add(new Pair<Integer, String>(entry.id, entry.sortKey));
+        }
+        return new Hits(hits, hasMore);
+    }
+
+    /**
+     * Brings the index up to date with the mailbox by applying the changes since the last
+     * refresh.  When the index was never built, or the tombstones needed to apply deletes
+     * are no longer available, starts building it in the background instead.
+     *
+     * @return false if the index is not built
+     */
+    private boolean refresh(Mailbox mbox) throws ServiceException {
+        lock.readLock().lock();
+        try {
+            if (changeId == mbox.getLastChangeID()) {
+                return true;
+            } else if (changeId < 0) {
+                scheduleBuild(mbox);
+                return false;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            // read before fetching the changes, anything committed after this is picked up next time
+            int lastChangeId = mbox.getLastChangeID();
+            if (changeId == lastChangeId) {
+                return true;
+            } else if (changeId < 0) {
+                scheduleBuild(mbox);
+                return false;
+            }
+            try {
+                applyChanges(mbox, new OperationContext(mbox));
+            } catch (ServiceException e) {
+                if (MailServiceException.MUST_RESYNC.equals(e.getCode())) {
+                    ZimbraLog.gal.info("GAL autocomplete index for %s is too old, rebuilding", mbox.getAccountId());
+                } else {
+                    ZimbraLog.gal.info("unable to update GAL autocomplete index for %s, rebuilding",
+                            mbox.getAccountId(), e);
+                }
+                install(new GalAutoCompleteIndex(), -1);
+                scheduleBuild(mbox);
+                return false;
+            }
+            changeId = lastChangeId;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void scheduleBuild(final Mailbox mbox) {
+        if (!building.compareAndSet(false, true)) {
+            return;
+        }
+        BUILDER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // read before loading the contacts, anything committed after this is picked up next time
+                    int lastChangeId = mbox.getLastChangeID();
+                    GalAutoCompleteIndex built = new GalAutoCompleteIndex();
+                    built.build(mbox, new OperationContext(mbox));
+                    lock.writeLock().lock();
+                    try {
+                        install(built, lastChangeId);
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                } catch (Throwable t) {
+                    ZimbraLog.gal.warn("unable to build GAL autocomplete index for %s", mbox.getAccountId(), t);
+                } finally {
+                    building.set(false);
+                }
+            }
+        });
+    }
+
+    /** Replaces the contents of the index with those of {@code built}.  Needs the write lock. */
+    @VisibleForTesting
+    void install(GalAutoCompleteIndex built, int builtChangeId) {
+        entries = built.entries;
+        tokens = built.tokens;
+        changeId = builtChangeId;
+    }
+
+    private void build(Mailbox mbox, OperationContext octxt) throws ServiceException {
+        long start = System.currentTimeMillis();
+        List<Integer> ids = mbox.getModifiedItems(octxt, 0, MailItem.Type.CONTACT).getFirst();
+        load(mbox, octxt, ids);
+        ZimbraLog.gal.info("built GAL autocomplete index for %s: %d entries, %d tokens in %d ms",
+                mbox.getAccountId(), entries.size(), tokens.size(), System.currentTimeMillis() - start);
+    }
+
+    private void applyChanges(Mailbox mbox, OperationContext octxt) throws ServiceException {
+        TypedIdList deleted = mbox.getTombstones(changeId);
+        for (Integer id : deleted.getAllIds()) {
+            remove(id);
+        }
+        Pair<List<Integer>, TypedIdList> changed = mbox.getModifiedItems(octxt, changeId, MailItem.Type.CONTACT);
+        if (changed.getSecond() != null) {
+            for (Integer id : changed.getSecond().getAllIds()) {
+                remove(id);
+            }
+        }
+        load(mbox, octxt, changed.getFirst());
+        ZimbraLog.gal.debug("updated GAL autocomplete index for %s: %d deleted, %d modified",
+                mbox.getAccountId(), deleted.size(), changed.getFirst().size());
+    }
+
+    private void load(Mailbox mbox, OperationContext octxt, List<Integer> ids) throws ServiceException {
+        for (int i = 0; i < ids.size(); i += LOAD_BATCH_SIZE) {
+            List<Integer> batch = ids.subList(i, Math.min(i + LOAD_BATCH_SIZE, ids.size()));
+            MailItem[] items;
+            try {
+                items = mbox.getItemById(octxt, batch, MailItem.Type.CONTACT);
+            } catch (MailServiceException.NoSuchItemException e) {
+                // some contact got deleted meanwhile, load the batch one by one
+                items = new MailItem[batch.size()];
+                for (int j = 0; j < batch.size(); j++) {
+                    try {
+                        items[j] = mbox.getItemById(octxt, batch.get(j), MailItem.Type.CONTACT);
+                    } catch (MailServiceException.NoSuchItemException nsie) {
+                        remove(batch.get(j));
+                    }
+                }
+            }
+            for (MailItem item : items) {
+                if (item instanceof Contact) {
+                    add((Contact) item);
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void add(Contact contact) throws ServiceException {
+        add(contact.getId(), contact.getFolderId(), contact.getFields(), contact.getFileAsString());
+    }
+
+    @VisibleForTesting
+    void add(int id, int folderId, Map<String, String> fields, String fileAs) {
+        remove(id);
+
+        Kind kind;
+        if (ContactConstants.TYPE_GROUP.equals(fields.get(ContactConstants.A_type))) {
+            kind = Kind.GROUP;
+        } else if ("RESOURCE".equals(fields.get(Provisioning.A_zimbraAccountCalendarUserType))) {
+            kind = Kind.RESOURCE;
+        } else {
+            kind = Kind.ACCOUNT;
+        }
+
+        Set<String> contactTokens = new HashSet<String>();
+        for (String field : INDEXED_FIELDS) {
+            tokenize(fields.get(field), contactTokens);
+        }
+        String[] tokenArray = contactTokens.toArray(new String[contactTokens.size()]);
+        Arrays.sort(tokenArray);
+        String sortKey = fileAs == null ? "" : fileAs.toLowerCase();
+        entries.put(id, new IndexEntry(id, folderId, kind, sortKey, tokenArray));
+
+        for (String token : tokenArray) {
+            Set<Integer> ids = tokens.get(token);
+            if (ids == null) {
+                ids = new HashSet<Integer>(2);
+                tokens.put(token, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    @VisibleForTesting
+    void remove(int id) {
+        IndexEntry entry = entries.remove(id);
+        if (entry == null) {
+            return;
+        }
+        for (String token : entry.tokens) {
+            Set<Integer> ids = tokens.get(token);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    tokens.remove(token);
+                }
+            }
+        }
+    }
+
+    /*
+     * Whole values split on white space and punctuation, plus the parts of addresses
+     * and dotted names so "smith" finds "john.smith@example.com".
+     */
+    @VisibleForTesting
+    static void tokenize(String value, Set<String> result) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        for (String word : TOKEN_SEPARATORS.split(value.toLowerCase())) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            result.add(word);
+            for (String part : ADDRESS_SEPARATORS.split(word)) {
+                if (!part.isEmpty()) {
+                    result.add(part);
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    SortedMap<String, Set<Integer>> getTokens() {
+        return tokens;
+    }
+}
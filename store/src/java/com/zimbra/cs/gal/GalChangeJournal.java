@@ -0,0 +1,160 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.gal;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.mailbox.Mailbox;
+
+/**
+ * Bounded journal of the contact fields GalImport changed in a GalSync account mailbox.
+ *
+ * Lets SyncGal send only the fields that changed since the change id in the client's sync
+ * token instead of whole contacts.  Changes to the same contact are compacted into one
+ * record holding the union of changed fields.  When the journal is full the least recently
+ * changed records are dropped and the floor is raised, so sync tokens older than the floor
+ * fall back to sending whole contacts.
+ *
+ * The journal lives in memory only; after a restart its floor is the change id of the
+ * mailbox when it was created.
+ */
+public final class GalChangeJournal {
+
+    private static final ConcurrentMap<String, GalChangeJournal> JOURNALS =
+            new ConcurrentHashMap<String, GalChangeJournal>();
+
+    private static final class Record {
+        int changeId;
+        // null if the whole contact must be sent (created, or fields removed)
+        Set<String> fields;
+
+        Record(int changeId, Set<String> fields) {
+            this.changeId = changeId;
+            this.fields = fields;
+        }
+    }
+
+    private final int maxRecords;
+    // records in the order of their last change
+    private final LinkedHashMap<Integer, Record> records = new LinkedHashMap<Integer, Record>();
+    // all changes after this change id are in the journal
+    private int floor;
+
+    @VisibleForTesting
+    GalChangeJournal(int floor, int maxRecords) {
+        this.floor = floor;
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * Returns the journal of the GalSync account mailbox, or null if the journal is
+     * disabled (LC zimbra_gal_change_journal_max_entries is 0).
+     */
+    static GalChangeJournal getInstance(Mailbox mbox) {
+        int maxRecords = LC.zimbra_gal_change_journal_max_entries.intValue();
+        if (maxRecords <= 0) {
+            return null;
+        }
+        GalChangeJournal journal = JOURNALS.get(mbox.getAccountId());
+        if (journal == null) {
+            journal = new GalChangeJournal(mbox.getLastChangeID(), maxRecords);
+            GalChangeJournal existing = JOURNALS.putIfAbsent(mbox.getAccountId(), journal);
+            if (existing != null) {
+                journal = existing;
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Records a newly created contact, it is always sent whole.
+     */
+    synchronized void recordCreated(int itemId, int changeId) {
+        record(itemId, changeId, null);
+    }
+
+    /**
+     * Records a modified contact from its fields before and after the change.
+     */
+    synchronized void recordModified(int itemId, int changeId, Map<String, String> before,
+            Map<String, String> after) {
+        Set<String> changed = new HashSet<String>();
+        for (Map.Entry<String, String> field : after.entrySet()) {
+            if (!Objects.equals(field.getValue(), before.get(field.getKey()))) {
+                changed.add(field.getKey());
+            }
+        }
+        boolean removed = !after.keySet().containsAll(before.keySet());
+        record(itemId, changeId, removed ? null : changed);
+    }
+
+    private void record(int itemId, int changeId, Set<String> fields) {
+        Record rec = records.remove(itemId);
+        if (rec == null) {
+            rec = new Record(changeId, fields);
+        } else {
+            rec.changeId = changeId;
+            if (rec.fields == null || fields == null) {
+                rec.fields = null;
+            } else {
+                rec.fields.addAll(fields);
+            }
+        }
+        records.put(itemId, rec);
+
+        Iterator<Record> iter = records.values().iterator();
+        while (records.size() > maxRecords && iter.hasNext()) {
+            Record evicted = iter.next();
+            floor = Math.max(floor, evicted.changeId);
+            iter.remove();
+        }
+    }
+
+    /**
+     * Returns the fields of the contact that changed after the sync token change id, or
+     * null if the journal can not tell and the whole contact has to be sent.
+     *
+     * @param sinceChangeId change id from the client's sync token
+     * @param modSeq current modified sequence of the contact; if the contact was changed
+     *        after the last recorded change (not by GalImport), the journal is not used
+     */
+    synchronized Set<String> getChangedFields(int itemId, int sinceChangeId, int modSeq) {
+        if (sinceChangeId <= 0 || sinceChangeId < floor) {
+            return null;
+        }
+        Record rec = records.get(itemId);
+        if (rec == null || rec.changeId != modSeq || rec.fields == null) {
+            return null;
+        }
+        return Collections.unmodifiableSet(new HashSet<String>(rec.fields));
+    }
+
+    @VisibleForTesting
+    synchronized int getFloor() {
+        return floor;
+    }
+}
@@ -158,6 +158,7 @@ public class GalImport extends MailItemImport {
     private class GalSearchVisitor implements GalContact.Visitor {
         Mailbox mbox;
         OperationContext octxt;
+        GalChangeJournal journal;
         Map<String,DataSourceItem> mappings;
         int fid;
         boolean force;
@@ -165,6 +166,7 @@ public class GalImport extends MailItemImport {
         private GalSearchVisitor(Mailbox mbox, Map<String,DataSourceItem> mappings, int fid, boolean force) throws ServiceException {
             this.mbox = mbox;
             this.octxt = new OperationContext(mbox);
+            this.journal = GalChangeJournal.getInstance(mbox);
             this.mappings = mappings;
             this.fid = fid;
             this.force = force;
@@ -218,8 +220,12 @@ public class GalImport extends MailItemImport {
                 ZimbraLog.gal.debug("creating new contact "+id);
                 dsItem.remoteId = id;
                 ParsedContact pc = new ParsedContact(attrs);
-                dsItem.itemId = mbox.createContact(octxt, pc, fid, null).getId();
+                Contact created = mbox.createContact(octxt, pc, fid, null);
+                dsItem.itemId = created.getId();
                 DbDataSource.addMapping(getDataSource(), dsItem);
+                if (journal != null) {
+                    journal.recordCreated(created.getId(), created.getModifiedSequence());
+                }
             } else {
                 Contact mboxContact = mbox.getContactById(octxt, dsItem.itemId);
 
@@ -236,8 +242,14 @@ public class GalImport extends MailItemImport {
                 }
 
                 ZimbraLog.gal.debug("modifying contact "+id);
+                Map<String,String> before = new HashMap<String,String>(mboxContact.getAllFields());
                 ParsedContact pc = new ParsedContact(attrs);
                 mbox.modifyContact(octxt, dsItem.itemId, pc);
+                if (journal != null) {
+                    Contact modified = mbox.getContactById(octxt, dsItem.itemId);
+                    journal.recordModified(dsItem.itemId, modified.getModifiedSequence(),
+                            before, modified.getAllFields());
+                }
             }
         }
 
@@ -58,6 +58,7 @@ import com.zimbra.cs.httpclient.URLUtil;
 import com.zimbra.cs.index.ContactHit;
 import com.zimbra.cs.index.ResultsPager;
 import com.zimbra.cs.index.SearchParams;
+import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.index.ZimbraHit;
 import com.zimbra.cs.index.ZimbraQueryResults;
 import com.zimbra.cs.ldap.LdapUtil;
@@ -467,6 +468,13 @@ public class GalSearchControl {
                         !doLocalGalAccountSearch(galAcct))
                     throw new GalAccountNotConfiguredException();
             }
+            if (mParams.getOp() == GalOp.autocomplete && canUseAutoCompleteIndex()) {
+                if (doLocalGalAccountIndexSearch(galAcct)) {
+                    return;
+                }
+                mParams.getResultCallback().reset(mParams);
+            }
+
             if (generateQuery) {
                 generateSearchQuery(galAcct);
             }
@@ -537,6 +545,73 @@ public class GalSearchControl {
         return true;
     }
 
+    /*
+     * the autocomplete index only answers plain prefix queries on the GalSync folders
+     */
+    private boolean canUseAutoCompleteIndex() throws ServiceException {
+        return LC.zimbra_gal_autocomplete_index_enabled.booleanValue() &&
+                GalAutoCompleteIndex.isPrefixQuery(mParams.getQuery()) &&
+                mParams.getSearchEntryByDn() == null &&
+                Strings.isNullOrEmpty(mParams.getGalSearchQuery()) &&
+                mParams.getExtraQueryCallback() == null &&
+                !needResources();
+    }
+
+    /*
+     * same folders the inid: clause of getSearchQuery restricts the search to
+     */
+    private Set<Integer> getGalFolderIds(Account galAcct) throws ServiceException {
+        GalMode galMode = mParams.getDomain().getGalMode();
+        Set<Integer> folderIds = new HashSet<Integer>();
+        for (DataSource ds : galAcct.getAllDataSources()) {
+            if (ds.getType() != DataSourceType.gal)
+                continue;
+            String galType = ds.getAttr(Provisioning.A_zimbraGalType);
+            if (galMode == GalMode.ldap && galType.compareTo("zimbra") == 0)
+                continue;
+            if (galMode == GalMode.zimbra && galType.compareTo("ldap") == 0)
+                continue;
+            folderIds.add(ds.getFolderId());
+        }
+        return folderIds;
+    }
+
+    private boolean doLocalGalAccountIndexSearch(Account galAcct) {
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(galAcct);
+            Set<Integer> folderIds = getGalFolderIds(galAcct);
+            GalAutoCompleteIndex.Hits hits = GalAutoCompleteIndex.getInstance(mbox).search(mbox,
+                    mParams.getQuery(), mParams.getType(), folderIds.isEmpty() ? null : folderIds,
+                    mParams.getLimit());
+            if (hits == null) {
+                // the mailbox search answers until the index is built
+                return false;
+            }
+
+            OperationContext octxt = new OperationContext(mbox);
+            GalSearchResultCallback callback = mParams.getResultCallback();
+            for (Pair<Integer, String> hit : hits.getHits()) {
+                Contact contact;
+                try {
+                    contact = mbox.getContactById(octxt, hit.getFirst());
+                } catch (MailServiceException.NoSuchItemException e) {
+                    // deleted after the index was refreshed
+                    continue;
+                }
+                Element contactElem = callback.handleContact(contact);
+                if (contactElem != null)
+                    contactElem.addAttribute(MailConstants.A_SORT_FIELD, hit.getSecond());
+            }
+            callback.setSortBy(SortBy.NAME_ASC.toString());
+            callback.setQueryOffset(0);
+            callback.setHasMoreResult(hits.hasMore());
+        } catch (Exception e) {
+            ZimbraLog.gal.warn("autocomplete index search on GalSync account failed for %s", galAcct.getId(), e);
+            return false;
+        }
+        return true;
+    }
+
     private void doLocalGalAccountSync(Account galAcct) throws ServiceException {
         Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(galAcct);
         OperationContext octxt = new OperationContext(mbox);
@@ -640,6 +715,10 @@ public class GalSearchControl {
             ZimbraLog.gal.debug("remain: %d, limit: %d", remain, limit);
         }
 
+        // with deltaAttrs only the fields GalImport changed since the token are sent
+        GalChangeJournal journal = mParams.isDeltaAttrs() && changeId > 0 ? GalChangeJournal.getInstance(mbox) : null;
+        int sinceChangeId = changeId;
+
         int count = 0;
         boolean hasMore = false;
         for (int itemId : changed.getFirst()) {
@@ -651,7 +730,13 @@ public class GalSearchControl {
                         continue;
                     }
 
-                    callback.handleContact(c);
+                    Set<String> changedFields = journal == null ? null :
+                        journal.getChangedFields(itemId, sinceChangeId, c.getModifiedSequence());
+                    if (changedFields != null) {
+                        callback.handleContactDelta(c, changedFields);
+                    } else {
+                        callback.handleContact(c);
+                    }
 
                     count++;
                     if (count % 100 == 0) {
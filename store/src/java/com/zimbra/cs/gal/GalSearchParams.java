@@ -66,6 +66,7 @@ public class GalSearchParams {
     private QName mResponse;
     private DataSource mDataSource;
     private boolean mIdOnly;
+    private boolean mDeltaAttrs;
     private boolean mNeedCanExpand;
     private boolean mNeedIsOwner;
     private MemberOfSelector mNeedIsMember;
@@ -230,6 +231,10 @@ public class GalSearchParams {
         return mIdOnly;
     }
 
+    public boolean isDeltaAttrs() {
+        return mDeltaAttrs;
+    }
+
     public boolean getNeedCanExpand() {
         return mNeedCanExpand;
     }
@@ -362,6 +367,10 @@ public class GalSearchParams {
         mIdOnly = idOnly;
     }
 
+    public void setDeltaAttrs(boolean deltaAttrs) {
+        mDeltaAttrs = deltaAttrs;
+    }
+
     public void setNeedCanExpand(boolean needCanExpand) {
         mNeedCanExpand = needCanExpand;
     }
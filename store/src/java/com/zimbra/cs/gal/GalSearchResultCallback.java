@@ -117,28 +117,56 @@ public class GalSearchResultCallback implements GalContact.Visitor {
     	}
 
     	eContact.addAttribute(AccountConstants.A_REF, c.get(ContactConstants.A_dn));
+    	addGroupAttributes(c, eContact);
+    	return eContact;
+    }
 
-    	if (c.isGroup()) {
-    	    String zimbraId = c.get(ContactConstants.A_zimbraId);
+    /**
+     * Adds a contact to a sync response with only the fields that changed since the
+     * client's sync token.  The contact is flagged so the client merges the fields
+     * into its copy instead of replacing it.
+     */
+    public Element handleContactDelta(Contact c, Set<String> changedFields) throws ServiceException {
+        if (mIdOnly || mNeedSMIMECerts) {
+            return handleContact(c);
+        }
+        Set<String> fieldSet = changedFields;
+        if (c.isGroup()) {
+            // a group's members are always sent whole, with the type the client needs to read them
+            fieldSet = new HashSet<String>(changedFields);
+            fieldSet.add(ContactConstants.A_type);
+            fieldSet.add(ContactConstants.A_groupMember);
+        }
+        // same fields as a full sync, certificates included
+        Element eContact = ToXML.encodeContact(mResponse, mFormatter, null, c, true, fieldSet);
+        eContact.addAttribute(AccountConstants.A_DELTA_ATTRS, true);
+        eContact.addAttribute(AccountConstants.A_REF, c.get(ContactConstants.A_dn));
+        // not contact fields, the journal does not know when they change
+        addGroupAttributes(c, eContact);
+        return eContact;
+    }
 
-        	if (mNeedCanExpand) {
-        	    boolean canExpand = GalSearchControl.canExpandGalGroup(
-        	            c.get(ContactConstants.A_email), zimbraId, mAuthAcct);
-                eContact.addAttribute(AccountConstants.A_EXP, canExpand);
-        	}
+    private void addGroupAttributes(Contact c, Element eContact) throws ServiceException {
+        if (!c.isGroup()) {
+            return;
+        }
+        String zimbraId = c.get(ContactConstants.A_zimbraId);
 
-        	if (mNeedIsOwner) {
-        	    boolean isOwner = isOwner(zimbraId);
-        	    eContact.addAttribute(AccountConstants.A_IS_OWNER, isOwner);
-        	}
+        if (mNeedCanExpand) {
+            boolean canExpand = GalSearchControl.canExpandGalGroup(
+                    c.get(ContactConstants.A_email), zimbraId, mAuthAcct);
+            eContact.addAttribute(AccountConstants.A_EXP, canExpand);
+        }
 
-        	if (MemberOfSelector.none != mNeedIsMember) {
-        	    boolean isMember = isMember(zimbraId);
-                eContact.addAttribute(AccountConstants.A_IS_MEMBER, isMember);
-        	}
-    	}
+        if (mNeedIsOwner) {
+            boolean isOwner = isOwner(zimbraId);
+            eContact.addAttribute(AccountConstants.A_IS_OWNER, isOwner);
+        }
 
-    	return eContact;
+        if (MemberOfSelector.none != mNeedIsMember) {
+            boolean isMember = isMember(zimbraId);
+            eContact.addAttribute(AccountConstants.A_IS_MEMBER, isMember);
+        }
     }
 
     public void handleContact(GalContact c) throws ServiceException {
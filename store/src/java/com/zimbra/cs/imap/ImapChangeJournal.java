@@ -0,0 +1,191 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxListener;
+import com.zimbra.cs.session.PendingModifications.Change;
+
+/**
+ * Bounded journal of the MODSEQs of the messages changed in each folder of a mailbox.
+ *
+ * Lets FETCH (CHANGEDSINCE n), and so SELECT (QRESYNC ...), find the messages changed after n in
+ * time proportional to the number of changes instead of querying the database.  Each folder keeps
+ * the last MODSEQ of at most LC imap_change_journal_max_entries messages; when a folder is full
+ * the oldest changes are dropped and its floor is raised, so older MODSEQs fall back to the
+ * database.
+ *
+ * A journal is created the first time IMAP asks for the changes of a mailbox, with the mailbox's
+ * last change id as floor, and then kept up to date from mailbox change notifications.  Journals
+ * live in memory only and are kept for at most LC imap_change_journal_max_mailboxes mailboxes.
+ */
+public final class ImapChangeJournal {
+
+    private static final Cache<String, ImapChangeJournal> JOURNALS = CacheBuilder.newBuilder()
+            .maximumSize(LC.imap_change_journal_max_mailboxes.intValue())
+            .build();
+
+    private static final class FolderLog {
+        // item ids by the MODSEQ of their last change
+        final TreeMap<Integer, Set<Integer>> byModseq = new TreeMap<Integer, Set<Integer>>();
+        final Map<Integer, Integer> modseqs = new HashMap<Integer, Integer>();
+        // all changes after this MODSEQ are in the log
+        int floor;
+
+        FolderLog(int floor) {
+            this.floor = floor;
+        }
+    }
+
+    private final int mailboxId;
+    private final int maxEntries;
+    private final int floor;
+    private final Map<Integer, FolderLog> folders = new HashMap<Integer, FolderLog>();
+
+    @VisibleForTesting
+    ImapChangeJournal(int mailboxId, int floor, int maxEntries) {
+        this.mailboxId = mailboxId;
+        this.floor = floor;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the journal of the mailbox, creating it if needed, or null if journals are disabled
+     * (LC imap_change_journal_max_entries is 0).
+     */
+    static ImapChangeJournal getInstance(Mailbox mbox) {
+        int maxEntries = LC.imap_change_journal_max_entries.intValue();
+        if (maxEntries <= 0) {
+            return null;
+        }
+        ImapChangeJournal journal = JOURNALS.getIfPresent(mbox.getAccountId());
+        if (journal != null && journal.mailboxId == mbox.getId()) {
+            return journal;
+        }
+        // changes are notified with the mailbox locked, so none can be missed between reading the
+        // last change id and publishing the journal
+        mbox.lock(false);
+        try {
+            journal = new ImapChangeJournal(mbox.getId(), mbox.getLastChangeID(), maxEntries);
+            JOURNALS.put(mbox.getAccountId(), journal);
+        } finally {
+            mbox.unlock();
+        }
+        return journal;
+    }
+
+    synchronized void record(int folderId, int itemId, int modseq) {
+        FolderLog log = folders.get(folderId);
+        if (log == null) {
+            log = new FolderLog(floor);
+            folders.put(folderId, log);
+        }
+        if (modseq <= log.floor) {
+            return;
+        }
+        Integer previous = log.modseqs.put(itemId, modseq);
+        if (previous != null) {
+            Set<Integer> ids = log.byModseq.get(previous);
+            if (ids != null && ids.remove(itemId) && ids.isEmpty()) {
+                log.byModseq.remove(previous);
+            }
+        }
+        Set<Integer> ids = log.byModseq.get(modseq);
+        if (ids == null) {
+            ids = new HashSet<Integer>();
+            log.byModseq.put(modseq, ids);
+        }
+        ids.add(itemId);
+
+        while (log.modseqs.size() > maxEntries) {
+            Map.Entry<Integer, Set<Integer>> oldest = log.byModseq.pollFirstEntry();
+            log.floor = oldest.getKey();
+            for (Integer id : oldest.getValue()) {
+                log.modseqs.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of the items in the folder changed after {@code modseq}, or null if the
+     * journal does not go back that far and the database has to be queried.
+     */
+    synchronized List<Integer> getModifiedIds(int folderId, int modseq) {
+        FolderLog log = folders.get(folderId);
+        int folderFloor = log == null ? floor : log.floor;
+        if (modseq < folderFloor) {
+            return null;
+        }
+        List<Integer> ids = new ArrayList<Integer>();
+        if (log != null) {
+            for (Set<Integer> changed : log.byModseq.tailMap(modseq, false).values()) {
+                ids.addAll(changed);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Records the changes of the messages in mailboxes that have a journal.
+     */
+    public static final class Listener extends MailboxListener {
+        @Override
+        public void notify(ChangeNotification notification) {
+            ImapChangeJournal journal = JOURNALS.getIfPresent(notification.mailboxAccount.getId());
+            if (journal == null) {
+                return;
+            }
+            if (notification.mods.created != null) {
+                for (Object item : notification.mods.created.values()) {
+                    journal.record(item);
+                }
+            }
+            if (notification.mods.modified != null) {
+                for (Change change : notification.mods.modified.values()) {
+                    journal.record(change.what);
+                }
+            }
+        }
+
+        @Override
+        public Set<MailItem.Type> registerForItemTypes() {
+            return ImapMessage.SUPPORTED_TYPES;
+        }
+    }
+
+    private void record(Object item) {
+        if (item instanceof MailItem && ImapMessage.SUPPORTED_TYPES.contains(((MailItem) item).getType())) {
+            MailItem mi = (MailItem) item;
+            if (mi.getMailboxId() == mailboxId) {
+                record(mi.getFolderId(), mi.getId(), mi.getModifiedSequence());
+            }
+        }
+    }
+}
@@ -21,7 +21,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -32,7 +31,10 @@ import java.util.concurrent.ConcurrentSkipListMap;
 
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.BaseFolderInfo;
 import com.zimbra.common.mailbox.BaseItemInfo;
 import com.zimbra.common.mailbox.FolderStore;
@@ -68,7 +70,8 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     private transient ImapListener session;
     private transient ImapPath path;
     private transient SessionData sessionData;
-    private transient Map<Integer, ImapMessage> messageIds;
+    private transient MessageIdMap messageIds;
+    private transient Cache<Long, ImapThreader.Headers> threadHeaders;
 
     private final ItemIdentifier folderIdentifier;
     private final int uidValidity;
@@ -373,14 +376,14 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         // if item id and IMAP uid differ, the message goes in the "mMessageIds" map
         if (messageIds == null) {
             // lookup miss means we need to generate the item-id-to-imap-message mapping
-            messageIds = new HashMap<Integer, ImapMessage>();
+            messageIds = new MessageIdMap();
             for (ImapMessage i4msg : sequence) {
                 if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
                     messageIds.put(i4msg.msgId, i4msg);
                 }
             }
         }
-        return checkRemoved(messageIds.get(Integer.valueOf(id)));
+        return checkRemoved(messageIds.get(id));
     }
 
     /** Returns the ImapMessage with the given IMAP UID from the folder's
@@ -508,9 +511,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         i4msg.sequence = position;
         if (messageIds != null) {
             if (i4msg.msgId != i4msg.imapUid) {
-                messageIds.put(Integer.valueOf(i4msg.msgId), i4msg);
+                messageIds.put(i4msg.msgId, i4msg);
             } else {
-                messageIds.remove(Integer.valueOf(i4msg.msgId));
+                messageIds.remove(i4msg.msgId);
             }
         }
     }
@@ -522,6 +525,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         if (messageIds != null) {
             messageIds.remove(i4msg.msgId);
         }
+        if (threadHeaders != null) {
+            threadHeaders.invalidate(ImapThreader.cacheKey(i4msg));
+        }
         SessionData sdata = sessionData;
         if (sdata != null) {
             sdata.dirtyMessages.remove(Integer.valueOf(i4msg.imapUid));
@@ -711,6 +717,16 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
     }
 
+    /** Returns the THREAD headers recently read from the content of the folder's messages that have
+     *  none stored, by item id and IMAP UID.  A message gets a new IMAP UID whenever its content changes. */
+    synchronized Cache<Long, ImapThreader.Headers> getThreadHeaders() {
+        if (threadHeaders == null) {
+            threadHeaders = CacheBuilder.newBuilder()
+                    .maximumSize(LC.imap_thread_headers_cache_size.intValue()).build();
+        }
+        return threadHeaders;
+    }
+
     protected synchronized ImapMessageSet getAllMessages() {
         ImapMessageSet result = new ImapMessageSet();
         if (getSize() > 0) {
@@ -33,7 +33,6 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -102,6 +101,8 @@ import com.zimbra.cs.imap.ImapCredentials.EnabledHack;
 import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
 import com.zimbra.cs.imap.ImapMessage.ImapMessageSet;
 import com.zimbra.cs.imap.ImapParseException.ImapMaximumSizeExceededException;
+import com.zimbra.cs.imap.ImapSearch.AndOperation;
+import com.zimbra.cs.imap.ImapSearch.MessageSetSearch;
 import com.zimbra.cs.imap.ImapSessionManager.FolderDetails;
 import com.zimbra.cs.imap.ImapSessionManager.InitialFolderValues;
 import com.zimbra.cs.index.SearchParams;
@@ -113,6 +114,7 @@ import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.MailServiceException.NoSuchItemException;
 import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mailbox.OperationContext;
 import com.zimbra.cs.mailbox.Tag;
 import com.zimbra.cs.mailclient.imap.IDInfo;
@@ -126,6 +128,9 @@ import com.zimbra.cs.service.admin.AdminAccessControl;
 import com.zimbra.cs.service.admin.FlushCache;
 import com.zimbra.cs.service.mail.FolderAction;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.external.ExternalStoreManager;
 import com.zimbra.cs.util.AccountUtil;
 import com.zimbra.cs.util.BuildInfo;
 import com.zimbra.soap.admin.type.CacheEntrySelector;
@@ -138,10 +143,10 @@ public abstract class ImapHandler {
     protected enum ImapExtension { CONDSTORE, QRESYNC }
 
     private static final Set<String> SUPPORTED_EXTENSIONS = new LinkedHashSet<String>(Arrays.asList(
-        "ACL", "BINARY", "CATENATE", "CHILDREN", "CONDSTORE", "ENABLE", "ESEARCH", "ESORT",
+        "ACL", "BINARY", "CATENATE", "CHILDREN", "COMPRESS=DEFLATE", "CONDSTORE", "ENABLE", "ESEARCH", "ESORT",
         "I18NLEVEL=1", "ID", "IDLE", "LIST-EXTENDED", "LIST-STATUS", "LITERAL+", "LOGIN-REFERRALS",
         "MULTIAPPEND", "NAMESPACE", "QRESYNC", "QUOTA", "RIGHTS=ektx", "SASL-IR", "SEARCHRES",
-        "SORT", "THREAD=ORDEREDSUBJECT", "UIDPLUS", "UNSELECT", "WITHIN", "XLIST"
+        "SORT", "THREAD=ORDEREDSUBJECT", "THREAD=REFERENCES", "UIDPLUS", "UNSELECT", "WITHIN", "XLIST"
     ));
 
     private static final long MAXIMUM_IDLE_PROCESSING_MILLIS = 15 * Constants.MILLIS_PER_SECOND;
@@ -251,6 +256,16 @@ public abstract class ImapHandler {
             "APPEND", "COPY", "CREATE", "EXAMINE", "FETCH", "LIST",
             "LSUB", "UID", "SEARCH", "SELECT", "SORT", "STORE", "XLIST");
 
+    // commands that get their own latency histogram, any other command goes to the UNKNOWN one
+    private static final Set<String> LATENCY_TRACKED_COMMANDS = ImmutableSet.of(
+            "APPEND", "AUTHENTICATE", "CAPABILITY", "CHECK", "CLOSE", "COMPRESS", "COPY", "CREATE", "DELETE",
+            "DELETEACL", "ENABLE", "EXAMINE", "EXPUNGE", "FETCH", "GETACL", "GETQUOTA", "GETQUOTAROOT", "ID", "IDLE",
+            "LIST", "LISTRIGHTS", "LOGIN", "LOGOUT", "LSUB", "MYRIGHTS", "NAMESPACE", "NOOP", "RENAME", "SEARCH",
+            "SELECT", "SETACL", "SETQUOTA", "SORT", "STARTTLS", "STATUS", "STORE", "SUBSCRIBE", "THREAD",
+            "UID COPY", "UID EXPUNGE", "UID FETCH", "UID SEARCH", "UID SORT", "UID STORE", "UID THREAD",
+            "UNSELECT", "UNSUBSCRIBE", "XLIST", "X-ZIMBRA-ADD-ACCOUNT-LOGGER", "X-ZIMBRA-FLUSHCACHE",
+            "X-ZIMBRA-RELOADLC");
+
     public static final Set<CacheEntryType> IMAP_CACHE_TYPES = EnumSet.of(
             CacheEntryType.all,
             CacheEntryType.account,
@@ -299,8 +314,14 @@ public abstract class ImapHandler {
     protected abstract void enableInactivityTimer() throws IOException;
     protected abstract void completeAuthentication() throws IOException;
     protected abstract boolean doSTARTTLS(String tag) throws IOException;
+    protected abstract boolean doCOMPRESS(String tag, String mechanism) throws IOException, ImapParseException;
     protected abstract InetSocketAddress getLocalAddress();
 
+    /** Returns true if the connection can be compressed with COMPRESS=DEFLATE. */
+    protected boolean isCompressionSupported() {
+        return false;
+    }
+
     protected ImapCredentials getCredentials() {
         return credentials;
     }
@@ -435,6 +456,35 @@ public abstract class ImapHandler {
         return ((ImapAuthenticatorUser) auth.getAuthenticatorUser()).canContinue();
     }
 
+    /**
+     * Records the latency of the last command in the per-command histograms, and logs the details of the command if
+     * it ran longer than LC imap_slow_command_threshold_ms.
+     *
+     * @param elapsed milliseconds the command took
+     * @param bytesWritten bytes of the response
+     * @param lockWait milliseconds the command waited for mailbox locks
+     */
+    protected void recordCommand(ImapRequest req, long elapsed, long bytesWritten, long lockWait) {
+        if (lastCommand == null) {
+            return;
+        }
+        String command = lastCommand.toUpperCase();
+        // the command name comes from the client, only a fixed set of histograms is kept
+        String stat = LATENCY_TRACKED_COMMANDS.contains(command) ? command : "UNKNOWN";
+        ZimbraPerf.IMAP_LATENCY_TRACKER.addStat(stat, elapsed, bytesWritten);
+        ZimbraPerf.IMAPD_LATENCY_TRACKER.addStat(stat, elapsed, bytesWritten);
+
+        long threshold = LC.imap_slow_command_threshold_ms.longValue();
+        if (threshold > 0 && elapsed >= threshold) {
+            ImapCredentials creds = credentials;
+            ImapListener i4selected = selectedFolderListener;
+            ZimbraLog.imap.warn("slow command: command=%s elapsed=%d lockWait=%d bytes=%d account=%s folder=%s " +
+                    "folderSize=%d args=\"%s\"", command, elapsed, lockWait, bytesWritten,
+                    creds == null ? "" : creds.getUsername(), i4selected == null ? "" : i4selected.getPath(),
+                    i4selected == null ? 0 : i4selected.getEstimatedSize(), req == null ? "" : req.getSummary(200));
+        }
+    }
+
     protected boolean checkAccountStatus() {
         if (!config.isServiceEnabled()) {
             ZimbraLog.imap.warn("user services are disabled; dropping connection");
@@ -564,6 +614,11 @@ public abstract class ImapHandler {
                 } else if (command.equals("CHECK")) {
                     checkEOF(tag, req);
                     return doCHECK(tag);
+                } else if (command.equals("COMPRESS") && extensionEnabled("COMPRESS=DEFLATE")) {
+                    req.skipSpace();
+                    String mechanism = req.readATOM();
+                    checkEOF(tag, req);
+                    return doCOMPRESS(tag, mechanism);
                 }
                 break;
             case 'D':
@@ -986,15 +1041,24 @@ public abstract class ImapHandler {
                 }
                 break;
             case 'T':
-                if (command.equals("THREAD") && extensionEnabled("THREAD=ORDEREDSUBJECT")) {
+                if (command.equals("THREAD") && (extensionEnabled("THREAD=ORDEREDSUBJECT") ||
+                        extensionEnabled("THREAD=REFERENCES"))) {
                     req.skipSpace();
-                    req.skipAtom("ORDEREDSUBJECT");
+                    String name = req.readATOM();
+                    ImapThreader.Algorithm algorithm;
+                    if (name.equals("ORDEREDSUBJECT") && extensionEnabled("THREAD=ORDEREDSUBJECT")) {
+                        algorithm = ImapThreader.Algorithm.ORDEREDSUBJECT;
+                    } else if (name.equals("REFERENCES") && extensionEnabled("THREAD=REFERENCES")) {
+                        algorithm = ImapThreader.Algorithm.REFERENCES;
+                    } else {
+                        throw new ImapParseException(tag, "unsupported THREAD algorithm: " + name);
+                    }
                     req.skipSpace();
                     Charset charset = req.readCharset();
                     req.skipSpace();
                     ImapSearch i4search = req.readSearch(charset);
                     checkEOF(tag, req);
-                    return isProxied ? imapProxy.proxy(req) : doTHREAD(tag, i4search, byUID);
+                    return isProxied ? imapProxy.proxy(req) : doTHREAD(tag, algorithm, i4search, byUID);
                 }
                 break;
             case 'U':
@@ -1002,7 +1066,8 @@ public abstract class ImapHandler {
                     req.skipSpace();  command = req.readATOM();
                     if (command.equals("FETCH") || command.equals("SEARCH") || command.equals("COPY") || command.equals("STORE") ||
                             (command.equals("EXPUNGE") && extensionEnabled("UIDPLUS")) || (command.equals("SORT") && extensionEnabled("SORT")) ||
-                            (command.equals("THREAD") && extensionEnabled("THREAD=ORDEREDSUBJECT"))) {
+                            (command.equals("THREAD") && (extensionEnabled("THREAD=ORDEREDSUBJECT") ||
+                                    extensionEnabled("THREAD=REFERENCES")))) {
                         byUID = true;
                         lastCommand += " " + command;
                         continue;
@@ -1280,6 +1345,7 @@ public abstract class ImapHandler {
         // [BINARY]           RFC 3516: IMAP4 Binary Content Extension
         // [CATENATE]         RFC 4469: Internet Message Access Protocol (IMAP) CATENATE Extension
         // [CHILDREN]         RFC 3348: IMAP4 Child Mailbox Extension
+        // [COMPRESS=DEFLATE] RFC 4978: The IMAP COMPRESS Extension
         // [CONDSTORE]        RFC 4551: IMAP Extension for Conditional STORE Operation or Quick Flag Changes Resynchronization
         // [ENABLE]           RFC 5161: The IMAP ENABLE Extension
         // [ESEARCH]          RFC 4731: IMAP4 Extension to SEARCH Command for Controlling What Kind of Information Is Returned
@@ -1300,6 +1366,7 @@ public abstract class ImapHandler {
         // [SEARCHRES]        RFC 5182: IMAP Extension for Referencing the Last SEARCH Result
         // [SORT]             RFC 5256: Internet Message Access Protocol - SORT and THREAD Extensions
         // [THREAD=ORDEREDSUBJECT]  RFC 5256: Internet Message Access Protocol - SORT and THREAD Extensions
+        // [THREAD=REFERENCES]      RFC 5256: Internet Message Access Protocol - SORT and THREAD Extensions
         // [UIDPLUS]          RFC 4315: Internet Message Access Protocol (IMAP) - UIDPLUS extension
         // [UNSELECT]         RFC 3691: IMAP UNSELECT command
         // [WITHIN]           RFC 5032: WITHIN Search Extension to the IMAP Protocol
@@ -1346,6 +1413,8 @@ public abstract class ImapHandler {
             return extensionEnabled("SORT");
         } else if (extension.equalsIgnoreCase("LIST-STATUS")) {
             return extensionEnabled("LIST-EXTENDED");
+        } else if (extension.equalsIgnoreCase("COMPRESS=DEFLATE")) {
+            return isCompressionSupported();
         } else if (extension.equalsIgnoreCase("IDLE") && credentials != null &&
                 credentials.isHackEnabled(EnabledHack.NO_IDLE)) {
             // see if the user's session has disabled the extension
@@ -1919,9 +1988,30 @@ public abstract class ImapHandler {
         }
 
         sendOK(tag, (writable ? "[READ-WRITE] " : "[READ-ONLY] ") + command + " completed");
+        prefetchNewest(i4folder);
         return true;
     }
 
+    /**
+     * Clients usually fetch the newest messages right after SELECT, so start loading their
+     * blobs from an external store now.
+     */
+    private void prefetchNewest(ImapFolder i4folder) {
+        int count = LC.imap_select_prefetch_messages.intValue();
+        StoreManager sm = StoreManager.getInstance();
+        if (count <= 0 || !(sm instanceof ExternalStoreManager) || !(i4folder.getMailbox() instanceof Mailbox)) {
+            return;
+        }
+        List<Integer> ids = new ArrayList<Integer>(count);
+        for (int seq = i4folder.getSize(); seq > 0 && ids.size() < count; seq--) {
+            ImapMessage i4msg = i4folder.getBySequence(seq);
+            if (i4msg != null) {
+                ids.add(i4msg.msgId);
+            }
+        }
+        ((ExternalStoreManager) sm).prefetch((Mailbox) i4folder.getMailbox(), ids);
+    }
+
     private boolean doCREATE(String tag, ImapPath path) throws IOException, ImapThrottledException {
         checkCommandThrottle(new CreateCommand(path));
         if (!checkState(tag, State.AUTHENTICATED)) {
@@ -3673,8 +3763,9 @@ public abstract class ImapHandler {
 
         try {
             MailboxStore mboxStore = i4folder.getMailbox();
-            // TODO any way this can be optimized for non-Mailbox MailboxStore?
-            if (unsorted && (mboxStore instanceof Mailbox) && i4search.canBeRunLocally()) {
+            AndOperation localCriteria = unsorted && i4search instanceof AndOperation ?
+                    ((AndOperation) i4search).getLocalCriteria() : null;
+            if (unsorted && i4search.canBeRunLocally()) {
                 mboxStore.lock(false);
                 try {
                     hits = i4search.evaluate(i4folder);
@@ -3682,6 +3773,35 @@ public abstract class ImapHandler {
                 } finally {
                     mboxStore.unlock();
                 }
+            } else if (localCriteria != null) {
+                // evaluate flags, sequences etc. against the folder and only send the rest to the index
+                ImapMessageSet matched;
+                mboxStore.lock(false);
+                try {
+                    matched = localCriteria.evaluate(i4folder);
+                    matched.remove(null);
+                } finally {
+                    mboxStore.unlock();
+                }
+                hits = new ImapMessageSet();
+                if (!matched.isEmpty()) {
+                    ImapSearch indexed = ((AndOperation) i4search).getIndexedCriteria();
+                    if (matched.size() <= LARGEST_FOLDER_BATCH && matched.size() < i4folder.getSize()) {
+                        indexed = new AndOperation(new MessageSetSearch(matched), indexed);
+                    }
+                    try (ZimbraQueryHitResults zqr = runSearch(indexed, i4folder, sort,
+                        requiresMODSEQ ? SearchParams.Fetch.MODSEQ : SearchParams.Fetch.IDS)) {
+                        for (ZimbraQueryHit hit = zqr.getNext(); hit != null; hit = zqr.getNext()) {
+                            ImapMessage i4msg = i4folder.getById(hit.getItemId());
+                            if (i4msg == null || i4msg.isExpunged() || !matched.contains(i4msg)) {
+                                continue;
+                            }
+                            hits.add(i4msg);
+                            if (requiresMODSEQ)
+                                modseq = Math.max(modseq, hit.getModifiedSequence());
+                        }
+                    }
+                }
             } else {
                 hits = unsorted ? new ImapMessageSet() : new ArrayList<ImapMessage>();
                 try (ZimbraQueryHitResults zqr = runSearch(i4search, i4folder, sort,
@@ -3816,7 +3936,7 @@ public abstract class ImapHandler {
         return mbox.searchImap(getContext(), params);
     }
 
-    private boolean doTHREAD(String tag, ImapSearch i4search, boolean byUID)
+    private boolean doTHREAD(String tag, ImapThreader.Algorithm algorithm, ImapSearch i4search, boolean byUID)
             throws IOException, ImapException {
         if (!checkState(tag, State.SELECTED)) {
             return true;
@@ -3838,37 +3958,32 @@ public abstract class ImapHandler {
         if (requiresMODSEQ && !sessionActivated(ImapExtension.CONDSTORE)) {
             throw new ImapParseException(tag, "NOMODSEQ", "cannot THREAD MODSEQ in this mailbox", true);
         }
-        LinkedHashMap<Integer, List<ImapMessage>> threads = new LinkedHashMap<Integer, List<ImapMessage>>();
+        String threads;
         try {
-            // RFC 5256 3: "The searched messages are sorted by base subject and then
-            //              by the sent date.  The messages are then split into separate
-            //              threads, with each thread containing messages with the same
-            //              base subject text.  Finally, the threads are sorted by the
-            //              sent date of the first message in the thread."
-            ZimbraQueryHitResults zqr = runSearch(i4search, i4folder, SortBy.DATE_ASC, SearchParams.Fetch.PARENT);
-            try {
-                for (ZimbraQueryHit hit = zqr.getNext(); hit != null; hit = zqr.getNext()) {
-                    ImapMessage i4msg = i4folder.getById(hit.getItemId());
-                    if (i4msg == null || i4msg.isExpunged()) {
-                        continue;
-                    }
-                    int parentId = hit.getParentId();
-                    if (parentId <= 0) {
-                        threads.put(-i4msg.msgId, Arrays.asList(i4msg));
-                        continue;
-                    }
-
-                    List<ImapMessage> contents = threads.get(parentId);
-                    if (contents == null) {
-                        (contents = new LinkedList<ImapMessage>()).add(i4msg);
-                        threads.put(parentId, contents);
-                    } else {
-                        contents.add(i4msg);
+            ImapMessageSet matched;
+            MailboxStore mboxStore = i4folder.getMailbox();
+            if (i4search.canBeRunLocally()) {
+                mboxStore.lock(false);
+                try {
+                    matched = i4search.evaluate(i4folder);
+                    matched.remove(null);
+                } finally {
+                    mboxStore.unlock();
+                }
+            } else {
+                matched = new ImapMessageSet();
+                try (ZimbraQueryHitResults zqr = runSearch(i4search, i4folder, SortBy.NONE, SearchParams.Fetch.IDS)) {
+                    for (ZimbraQueryHit hit = zqr.getNext(); hit != null; hit = zqr.getNext()) {
+                        ImapMessage i4msg = i4folder.getById(hit.getItemId());
+                        if (i4msg != null && !i4msg.isExpunged()) {
+                            matched.add(i4msg);
+                        }
                     }
                 }
-            } finally {
-                zqr.close();
             }
+            // the headers of messages threaded before are cached with the folder
+            threads = ImapThreader.format(ImapThreader.thread(algorithm,
+                    ImapThreader.getHeaders(i4folder, matched, getContext())), byUID);
         } catch (ServiceException e) {
             ZimbraLog.imap.warn("THREAD failed", e);
             sendNO(tag, "THREAD failed");
@@ -3877,23 +3992,7 @@ public abstract class ImapHandler {
 
         StringBuilder result = new StringBuilder("THREAD");
         if (!threads.isEmpty()) {
-            result.append(' ');
-            for (List<ImapMessage> thread : threads.values()) {
-                // ORDEREDSUBJECT: "(A)" for singletons, "(A B)" for pairs, "(A (B)(C)(D)(E))" for larger threads
-                Iterator<ImapMessage> it = thread.iterator();
-                result.append('(').append(getMessageId(it.next(), byUID));
-                if (it.hasNext()) {
-                    result.append(' ');
-                    if (thread.size() == 2) {
-                        result.append(getMessageId(it.next(), byUID));
-                    } else {
-                        while (it.hasNext()) {
-                            result.append('(').append(getMessageId(it.next(), byUID)).append(')');
-                        }
-                    }
-                }
-                result.append(')');
-            }
+            result.append(' ').append(threads);
         }
 
         sendUntagged(result.toString());
@@ -4011,9 +4110,18 @@ public abstract class ImapHandler {
         // if a CHANGEDSINCE sequence number was specified, narrow the message set before iterating over the messages
         if (changedSince >= 0) {
             try {
-                // get a list of all the messages modified since the checkpoint
+                // get a list of all the messages modified since the checkpoint, from the change journal if it
+                //   goes back that far
+                List<Integer> modifiedIds = null;
+                ImapChangeJournal journal = mbox instanceof Mailbox ? ImapChangeJournal.getInstance((Mailbox) mbox) : null;
+                if (journal != null) {
+                    modifiedIds = journal.getModifiedIds(i4folder.getId(), changedSince);
+                }
+                if (modifiedIds == null) {
+                    modifiedIds = mbox.getIdsOfModifiedItemsInFolder(getContext(), changedSince, i4folder.getId());
+                }
                 ImapMessageSet modified = new ImapMessageSet();
-                for (int id : mbox.getIdsOfModifiedItemsInFolder(getContext(), changedSince, i4folder.getId())) {
+                for (int id : modifiedIds) {
                     ImapMessage i4msg = i4folder.getById(id);
                     if (i4msg != null) {
                         modified.add(i4msg);
@@ -4040,6 +4148,14 @@ public abstract class ImapHandler {
             mbox.unlock();
         }
         ReentrantLock lock = null;
+        RemoteBulkFetch bulk = null;
+        if (!fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
+            try {
+                bulk = RemoteBulkFetch.create(i4folder, i4set);
+            } catch (ServiceException e) {
+                ZimbraLog.imap.debug("not using bulk fetch", e);
+            }
+        }
         try {
             for (ImapMessage i4msg : i4set) {
                 PrintStream result = new PrintStream(output, false, Charsets.UTF_8.name());
@@ -4060,10 +4176,13 @@ public abstract class ImapHandler {
                             lock = commandThrottle.lock(credentials.getAccountId());
                         }
                         try {
-                            String folderOwner = i4folder.getFolder().getFolderItemIdentifier().accountId;
-                            ItemIdentifier iid = ItemIdentifier.fromAccountIdAndItemId(
-                                    (folderOwner != null) ? folderOwner : mbox.getAccountId(), i4msg.msgId);
-                            item = mbox.getItemById(getContext(), iid, i4msg.getType().toCommon());
+                            item = bulk == null ? null : bulk.get(i4msg);
+                            if (item == null) {
+                                String folderOwner = i4folder.getFolder().getFolderItemIdentifier().accountId;
+                                ItemIdentifier iid = ItemIdentifier.fromAccountIdAndItemId(
+                                        (folderOwner != null) ? folderOwner : mbox.getAccountId(), i4msg.msgId);
+                                item = mbox.getItemById(getContext(), iid, i4msg.getType().toCommon());
+                            }
                         } catch (NoSuchItemException nsie) {
                             // just in case we're out of sync, force this message back into sync
                             i4folder.markMessageExpunged(i4msg);
@@ -4099,7 +4218,16 @@ public abstract class ImapHandler {
                     }
 
                     if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
-                        mm = ImapMessage.getMimeMessage(item);
+                        // BODYSTRUCTURE and ENVELOPE stored at delivery save parsing the blob
+                        String bodystructure = null, envelope = null;
+                        if (item instanceof Message) {
+                            bodystructure = ((Message) item).getImapBodyStructure();
+                            envelope = ((Message) item).getImapEnvelope();
+                        }
+                        boolean needsMime = (parts != null && !parts.isEmpty()) || (attributes & FETCH_BODY) != 0 ||
+                                ((attributes & FETCH_BODYSTRUCTURE) != 0 && bodystructure == null) ||
+                                ((attributes & FETCH_ENVELOPE) != 0 && envelope == null);
+                        mm = needsMime ? ImapMessage.getMimeMessage(item) : null;
                         if ((attributes & FETCH_BODY) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODY ");
@@ -4109,13 +4237,21 @@ public abstract class ImapHandler {
                         if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODYSTRUCTURE ");
-                            ImapMessage.serializeStructure(result, mm, true);
+                            if (bodystructure != null) {
+                                result.print(bodystructure);
+                            } else {
+                                ImapMessage.serializeStructure(result, mm, true);
+                            }
                             empty = false;
                         }
                         if ((attributes & FETCH_ENVELOPE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("ENVELOPE ");
-                            ImapMessage.serializeEnvelope(result, mm);
+                            if (envelope != null) {
+                                result.print(envelope);
+                            } else {
+                                ImapMessage.serializeEnvelope(result, mm);
+                            }
                             empty = false;
                         }
                         if (parts != null) {
@@ -4182,6 +4318,9 @@ public abstract class ImapHandler {
             if (lock != null) {
                 lock.unlock();
             }
+            if (bulk != null) {
+                bulk.close();
+            }
         }
         if (standalone) {
             sendNotifications(byUID, false);
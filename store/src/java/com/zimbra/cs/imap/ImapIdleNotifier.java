@@ -0,0 +1,145 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Sends untagged updates to IDLE sessions from a small shared pool of threads.
+ *
+ * Without it, the thread that commits a mailbox change builds and writes the updates of every
+ * IDLE session on the mailbox in turn, and a burst of changes writes each one separately.
+ * Here the IDLE sessions on a folder are queued together and notified by one task: changes
+ * arriving before the task runs are picked up by the same send, and a session is in the queue
+ * of its folder at most once.  The connection itself stays parked on the NIO reactor.
+ */
+public final class ImapIdleNotifier {
+
+    /** IDLE sessions waiting to be notified, by folder; guarded by itself */
+    private static final Map<String, Set<ImapHandler>> PENDING = new HashMap<String, Set<ImapHandler>>();
+    private static ScheduledThreadPoolExecutor executor;
+
+    private ImapIdleNotifier() {
+    }
+
+    /**
+     * Starts the notifier threads if IDLE sessions are notified from a pool (LC imap_idle_notify_threads).
+     */
+    public static void startup() {
+        int threads = LC.imap_idle_notify_threads.intValue();
+        synchronized (PENDING) {
+            if (threads <= 0 || executor != null) {
+                return;
+            }
+            executor = new ScheduledThreadPoolExecutor(threads,
+                    new ThreadFactoryBuilder().setNameFormat("ImapIdleNotifier-%d").setDaemon(true).build());
+            executor.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * Stops the notifier threads.  IDLE sessions still queued are not notified, and later changes
+     * are sent from the thread that made them.
+     */
+    public static void shutdown() {
+        synchronized (PENDING) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+            PENDING.clear();
+        }
+    }
+
+    /**
+     * Queues sending the pending updates of an IDLE session along with the other sessions on the
+     * same folder, unless it is queued already.
+     *
+     * @param folderKey identifies the folder the session has selected
+     * @return false if the notifier is not running and the caller must send the updates itself
+     */
+    static boolean schedule(final String folderKey, ImapHandler handler) {
+        synchronized (PENDING) {
+            if (executor == null) {
+                return false;
+            }
+            Set<ImapHandler> handlers = PENDING.get(folderKey);
+            if (handlers != null) {
+                handlers.add(handler);
+                return true;
+            }
+            handlers = new LinkedHashSet<ImapHandler>();
+            handlers.add(handler);
+            PENDING.put(folderKey, handlers);
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    notifyFolder(folderKey);
+                }
+            }, Math.max(LC.imap_idle_notify_delay_ms.longValue(), 0), TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+
+    private static void notifyFolder(String folderKey) {
+        // changes arriving from now on are not covered by this pass and queue the sessions again
+        Set<ImapHandler> handlers;
+        synchronized (PENDING) {
+            handlers = PENDING.remove(folderKey);
+        }
+        if (handlers == null) {
+            return;
+        }
+        for (ImapHandler handler : handlers) {
+            if (handler.isIdle()) { // otherwise updates go out with the response to the next command
+                sendNotifications(handler);
+            }
+        }
+    }
+
+    private static void sendNotifications(ImapHandler handler) {
+        handler.setLoggingContext();
+        try {
+            handler.sendNotifications(true, true);
+        } catch (IOException e) {
+            ZimbraLog.imap.info("Failed to notify IDLE session (%s), closing", e.toString());
+            handler.close();
+        } catch (RuntimeException e) {
+            ZimbraLog.imap.warn("Failed to notify IDLE session", e);
+        } finally {
+            ZimbraLog.clearContext();
+        }
+    }
+
+    @VisibleForTesting
+    static int getQueuedFolderCount() {
+        synchronized (PENDING) {
+            return PENDING.size();
+        }
+    }
+}
@@ -413,6 +413,11 @@ public abstract class ImapListener extends Session {
         return mFolder.hasNotifications();
     }
 
+    /** Returns true if the folder state is in memory rather than paged out to the session cache. */
+    protected boolean isLoaded() {
+        return mFolder instanceof ImapFolder;
+    }
+
     protected ImapHandler getHandler() {
         return handler;
     }
@@ -681,7 +686,9 @@ public abstract class ImapListener extends Session {
             }
 
             if (i4handler != null && i4handler.isIdle()) {
-                i4handler.sendNotifications(true, true);
+                if (!ImapIdleNotifier.schedule(getTargetAccountId() + ":" + folderId.id, i4handler)) {
+                    i4handler.sendNotifications(true, true);
+                }
             }
         } catch (IOException e) {
             // ImapHandler.dropConnection clears our mHandler and calls SessionCache.clearSession,
@@ -48,6 +48,7 @@ import org.apache.commons.codec.net.BCodec;
 import org.apache.commons.codec.net.QCodec;
 import org.apache.commons.io.IOUtils;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
 import com.zimbra.client.ZContact;
 import com.zimbra.client.ZMessage;
@@ -64,6 +65,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ArrayUtil;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.InputStreamWithSize;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
 import com.zimbra.cs.mailbox.Contact;
@@ -206,7 +208,7 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         if (item instanceof Message) {
             return item.getSize();
         }
-        if (item instanceof ZMessage) {
+        if (item instanceof ZMessage || item instanceof RemoteBulkFetch.Item) {
             /* TODO confirmed for raw and non-raw GetMsgRequest, this is correct. Need to confirm it is ok
              * for other ways to construct a ZMessage */
             return item.getSize();
@@ -293,7 +295,7 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
             } catch (Exception e) {
                 throw ServiceException.FAILURE("problems serializing contact " + item.getIdInMailbox(), e);
             }
-        } else if (item instanceof ZMessage) {
+        } else if (item instanceof ZMessage || item instanceof RemoteBulkFetch.Item) {
             return new InputStreamWithSize(item.getContentStream(), item.getSize());
         } else {
             return EMPTY_CONTENT;
@@ -310,7 +312,7 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
             return new Mime.FixedMimeMessage(JMSession.getSession(), is);
         } catch (MessagingException e) {
             throw ServiceException.FAILURE(String.format("error creating MimeMessage for %s %s",
-                    ((MailItem)item).getType(), item.getIdInMailbox()), e);
+                    item.getMailItemType(), item.getIdInMailbox()), e);
         } finally {
             ByteUtil.closeStream(is);
         }
@@ -595,6 +597,48 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         }
     }
 
+    /**
+     * Returns the BODYSTRUCTURE and ENVELOPE of the message as sent in FETCH responses, for storing
+     * with the message at delivery; or null if they are longer than {@code maxLength} characters in
+     * total or can not be computed.
+     */
+    public static Pair<String, String> serializeForStorage(MimeMessage mm, int maxLength) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            PrintStream ps = new PrintStream(baos, false, Charsets.UTF_8.name());
+            serializeStructure(ps, mm, true);
+            ps.flush();
+            String structure = baos.toString(Charsets.UTF_8.name());
+            baos.reset();
+            serializeEnvelope(ps, mm);
+            ps.flush();
+            String envelope = baos.toString(Charsets.UTF_8.name());
+            if (structure.length() + envelope.length() > maxLength) {
+                return null;
+            }
+            return new Pair<String, String>(structure, envelope);
+        } catch (IOException e) {
+            ZimbraLog.imap.debug("unable to serialize message structure for storage", e);
+            return null;
+        } catch (MessagingException e) {
+            ZimbraLog.imap.debug("unable to serialize message structure for storage", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the headers of the message that THREAD uses, for storing with the message at delivery;
+     * or null if they can not be read.
+     */
+    public static String serializeThreadHeaders(MimeMessage mm, long date) {
+        try {
+            return ImapThreader.serializeHeaders(mm, date);
+        } catch (MessagingException e) {
+            ZimbraLog.imap.debug("unable to serialize THREAD headers for storage", e);
+            return null;
+        }
+    }
+
     static void serializeEnvelope(PrintStream ps, MimeMessage mm) throws MessagingException {
         // 7.4.2: "The fields of the envelope structure are in the following order: date, subject,
         //         from, sender, reply-to, to, cc, bcc, in-reply-to, and message-id.  The date,
@@ -22,9 +22,11 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.security.auth.login.LoginException;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableSet;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
@@ -33,6 +35,7 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.mailclient.CommandFailedException;
 import com.zimbra.cs.mailclient.MailConfig;
 import com.zimbra.cs.mailclient.MailInputStream;
 import com.zimbra.cs.mailclient.auth.Authenticator;
@@ -46,6 +49,8 @@ import com.zimbra.cs.util.BuildInfo;
 
 public final class ImapProxy {
     private static final Set<String> UNSTRUCTURED_CODES = ImmutableSet.of("OK", "NO", "BAD", "PREAUTH", "BYE");
+    // commands that enable CONDSTORE on the backend for the rest of the connection
+    private static final Pattern CONDSTORE_COMMAND = Pattern.compile("MODSEQ|CHANGEDSINCE", Pattern.CASE_INSENSITIVE);
     private static final AuthenticatorFactory AUTH_FACTORY = new AuthenticatorFactory();
     static {
         AUTH_FACTORY.register(ZimbraAuthenticator.MECHANISM, ZimbraClientAuthenticator.class);
@@ -55,6 +60,11 @@ public final class ImapProxy {
     private final ImapPath path;
     private ImapConnection connection;
     private Thread idleThread;
+    // key of the connection in the ImapProxyPool, null if not pooled
+    private final String poolKey;
+    // false once the connection is in a state the next session must not inherit
+    private volatile boolean reusable;
+    private boolean selected;
 
     protected ImapProxy(final ImapHandler handler, final ImapPath path) throws ServiceException {
         this.handler = handler;
@@ -91,6 +101,19 @@ public final class ImapProxy {
             throw ServiceException.PROXY_ERROR(new Exception("no open IMAP port for server " + host), path.asImapPath());
         }
 
+        ImapProxyPool pool = ImapProxyPool.getInstance();
+        poolKey = pool == null ? null : ImapProxyPool.getKey(acct.getId(), host, config.getPort(),
+                handler.getNextVia(), handler.getOrigRemoteIp());
+        if (pool != null) {
+            connection = borrowConnection(pool, poolKey);
+            if (connection != null) {
+                ZimbraLog.imap.info("reusing proxy connection %s (user=%s, host=%s, path=%s)",
+                        connection, acct.getName(), host, path.getReferent().asImapPath());
+                reusable = true;
+                return;
+            }
+        }
+
         ZimbraLog.imap.info("opening proxy connection (user=%s, host=%s, path=%s)",
                 acct.getName(), host, path.getReferent().asImapPath());
         connection = new ImapConnection(config);
@@ -103,6 +126,26 @@ public final class ImapProxy {
             dropConnection();
             throw ServiceException.PROXY_ERROR(e, null);
         }
+        // the connection is reset with UNSELECT before it goes back to the pool
+        reusable = pool != null && connection.hasUnselect();
+    }
+
+    private static ImapConnection borrowConnection(ImapProxyPool pool, String key) {
+        ImapConnection conn;
+        while ((conn = pool.borrow(key)) != null) {
+            if (conn.isClosed()) {
+                continue;
+            }
+            try {
+                // the backend may have dropped the connection while it was in the pool
+                conn.noop();
+                return conn;
+            } catch (IOException e) {
+                ZimbraLog.imap.debug("dropping stale pooled proxy connection %s", conn);
+                conn.close();
+            }
+        }
+        return null;
     }
 
     /**
@@ -112,6 +155,7 @@ public final class ImapProxy {
             throws IOException, LoginException {
         this.handler = handler;
         path = null;
+        poolKey = null;
         ImapConfig config = new ImapConfig();
         config.setAuthenticationId(username);
         config.setMechanism(ZimbraAuthenticator.MECHANISM);
@@ -139,18 +183,44 @@ public final class ImapProxy {
         return path;
     }
 
+    /**
+     * Returns the connection to the {@link ImapProxyPool} if it can be reused, or closes it.
+     */
     protected void dropConnection() {
         ImapConnection conn = connection;
         connection = null;
         if (conn == null)
             return;
 
+        ImapProxyPool pool = poolKey == null ? null : ImapProxyPool.getInstance();
+        if (pool != null && reusable && idleThread == null && resetConnection(conn)) {
+            ZimbraLog.imap.info("returning proxy connection %s to the pool", conn);
+            pool.release(poolKey, conn);
+            return;
+        }
+
         // FIXME: should close cleanly (i.e. with tagged LOGOUT)
         ZimbraLog.imap.info("closing proxy connection %s", conn);
         conn.close();
     }
 
 
+    private boolean resetConnection(ImapConnection conn) {
+        if (!selected) {
+            return true;
+        }
+        try {
+            conn.unselect();
+            return true;
+        } catch (CommandFailedException e) {
+            // no longer selected, e.g. after a proxied CLOSE
+            return true;
+        } catch (IOException e) {
+            ZimbraLog.imap.debug("failed to reset proxy connection %s", conn, e);
+            return false;
+        }
+    }
+
     /**
      * Performs a {@code SELECT} on the remote folder passed into the constructor. Writes all tagged and untagged
      * responses back to the handler's output stream.
@@ -167,6 +237,7 @@ public final class ImapProxy {
         select.append(tag).append(' ').append(command).append(' ');
         select.append(path.getReferent().asUtf7String());
         if ((params & ImapFolder.SELECT_CONDSTORE) != 0) {
+            reusable = false;
             select.append(" (");
             if (qri == null) {
                 select.append("CONDSTORE");
@@ -181,7 +252,8 @@ public final class ImapProxy {
             select.append(')');
         }
 
-        return proxyCommand(select.append("\r\n").toString().getBytes(), true, false);
+        selected = proxyCommand(select.append("\r\n").toString().getBytes(), true, false);
+        return selected;
     }
 
     /**
@@ -225,8 +297,10 @@ public final class ImapProxy {
             try {
                 idle.join(5 * Constants.MILLIS_PER_SECOND);
             } catch (InterruptedException ie) { }
-            if (idle.isAlive())
+            if (idle.isAlive()) {
+                reusable = false;
                 handler.dropConnection(false);
+            }
         } else {
             final ImapConnection conn = connection;
             if (conn == null) {
@@ -254,6 +328,7 @@ public final class ImapProxy {
                         ZimbraLog.imap.warn("error encountered during IDLE; dropping connection", e);
                     }
                     if (!success) {
+                        reusable = false;
                         handler.dropConnection(true);
                     }
                 }
@@ -309,13 +384,18 @@ public final class ImapProxy {
         // proxy the request over to the remote server
         OutputStream remote = conn.getOutputStream();
         if (remote == null) {
+            reusable = false;
             dropConnection();
             throw new ImapProxyException("proxy connection already closed");
         }
+        if (reusable && CONDSTORE_COMMAND.matcher(new String(payload, Charsets.ISO_8859_1)).find()) {
+            reusable = false;
+        }
         try {
             remote.write(payload);
             remote.flush();
         } catch (IOException e) {
+            reusable = false;
             throw new ImapProxyException(e);
         }
         return conn;
@@ -327,6 +407,8 @@ public final class ImapProxy {
         MailInputStream min = conn.getInputStream();
         OutputStream out = handler.output;
         if (out == null) {
+            // the response was not read
+            reusable = false;
             dropConnection();
             throw new ImapProxyException("client connection already closed");
         }
@@ -360,6 +442,7 @@ public final class ImapProxy {
                             space2 = true;
                             String code = condition.toString().toUpperCase();
                             if ("BYE".equals(code)) { // unexpected BYE
+                                reusable = false;
                                 dropConnection();
                                 throw new ImapProxyException("proxy connection already closed");
                             }
@@ -429,8 +512,10 @@ public final class ImapProxy {
 
             out.flush();
         } catch (ImapProxyException e) {
+            reusable = false;
             throw e;
         } catch (IOException e) {
+            reusable = false;
             throw new ImapProxyException(e);
         }
         return success;
@@ -0,0 +1,150 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailclient.imap.ImapConnection;
+
+/**
+ * Authenticated connections to backend IMAP servers that {@link ImapProxy} sessions have finished
+ * with, kept open so that the next proxied session of the same user does not have to connect and
+ * authenticate again.
+ *
+ * Connections are pooled by user, backend server and client identity (the ID sent to the backend),
+ * in the AUTHENTICATED state.  At most LC imap_proxy_pool_size connections are kept; connections
+ * unused for LC imap_proxy_pool_idle_timeout_ms are closed the next time the pool is used.
+ */
+final class ImapProxyPool {
+
+    private static ImapProxyPool instance;
+
+    private static final class Entry {
+        final String key;
+        final ImapConnection connection;
+        final long released;
+
+        Entry(String key, ImapConnection connection, long released) {
+            this.key = key;
+            this.connection = connection;
+            this.released = released;
+        }
+    }
+
+    private final int maxSize;
+    private final long idleTimeout;
+    // least recently released first
+    private final LinkedList<Entry> idle = new LinkedList<Entry>();
+
+    @VisibleForTesting
+    ImapProxyPool(int maxSize, long idleTimeout) {
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns the pool, or null if pooling is disabled (LC imap_proxy_pool_size is 0).
+     */
+    static synchronized ImapProxyPool getInstance() {
+        int maxSize = LC.imap_proxy_pool_size.intValue();
+        if (maxSize <= 0) {
+            return null;
+        }
+        if (instance == null) {
+            instance = new ImapProxyPool(maxSize, LC.imap_proxy_pool_idle_timeout_ms.longValue());
+        }
+        return instance;
+    }
+
+    static String getKey(String accountId, String host, int port, String via, String origRemoteIp) {
+        return accountId + ' ' + host + ':' + port + ' ' + via + ' ' + origRemoteIp;
+    }
+
+    ImapConnection borrow(String key) {
+        return borrow(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Removes and returns the most recently released connection for {@code key}, or null if there
+     * is none.  The caller should check that the connection is still alive before using it.
+     */
+    @VisibleForTesting
+    ImapConnection borrow(String key, long now) {
+        List<ImapConnection> expired = new ArrayList<ImapConnection>();
+        ImapConnection conn = null;
+        synchronized (idle) {
+            expire(now, expired);
+            for (Iterator<Entry> iter = idle.descendingIterator(); iter.hasNext();) {
+                Entry entry = iter.next();
+                if (entry.key.equals(key)) {
+                    iter.remove();
+                    conn = entry.connection;
+                    break;
+                }
+            }
+        }
+        close(expired);
+        return conn;
+    }
+
+    void release(String key, ImapConnection conn) {
+        release(key, conn, System.currentTimeMillis());
+    }
+
+    /**
+     * Adds a connection in the AUTHENTICATED state to the pool, closing the least recently
+     * released connection if the pool is full.
+     */
+    @VisibleForTesting
+    void release(String key, ImapConnection conn, long now) {
+        List<ImapConnection> expired = new ArrayList<ImapConnection>();
+        synchronized (idle) {
+            idle.addLast(new Entry(key, conn, now));
+            expire(now, expired);
+            while (idle.size() > maxSize) {
+                expired.add(idle.removeFirst().connection);
+            }
+        }
+        close(expired);
+    }
+
+    private void expire(long now, List<ImapConnection> expired) {
+        while (!idle.isEmpty() && now - idle.getFirst().released > idleTimeout) {
+            expired.add(idle.removeFirst().connection);
+        }
+    }
+
+    private static void close(List<ImapConnection> connections) {
+        for (ImapConnection conn : connections) {
+            ZimbraLog.imap.debug("closing pooled proxy connection %s", conn);
+            conn.close();
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+}
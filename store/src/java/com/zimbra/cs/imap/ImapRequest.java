@@ -285,6 +285,26 @@ public abstract class ImapRequest {
         return isLogin;
     }
 
+    /**
+     * Returns the first line of the request for logging, without the arguments of LOGIN and AUTHENTICATE and cut to
+     * at most {@code maxLength} characters.
+     */
+    protected String getSummary(int maxLength) {
+        if (parts.isEmpty() || !parts.get(0).isString()) {
+            return "";
+        }
+        String line = parts.get(0).toString();
+        String cmd = getCommand(line);
+        if (isLogin || "AUTHENTICATE".equalsIgnoreCase(cmd)) {
+            int i = line.indexOf(' ') + 1;
+            line = line.substring(0, i + cmd.length()) + " ...";
+        }
+        if (line.length() > maxLength) {
+            line = line.substring(0, maxLength) + "...";
+        }
+        return line;
+    }
+
     public static String getCommand(String requestLine) {
         int i = requestLine.indexOf(' ') + 1;
         if (i > 0) {
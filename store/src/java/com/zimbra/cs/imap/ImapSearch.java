@@ -201,6 +201,32 @@ abstract class ImapSearch {
             }
             return matched;
         }
+
+        /**
+         * Returns the criteria that can be evaluated against the folder's state, or null if there
+         * are none.  The search matches the messages matched by these criteria and by
+         * {@link #getIndexedCriteria()}.
+         */
+        AndOperation getLocalCriteria() {
+            return getCriteria(true);
+        }
+
+        /**
+         * Returns the criteria that have to be run against the index, or null if there are none.
+         */
+        AndOperation getIndexedCriteria() {
+            return getCriteria(false);
+        }
+
+        private AndOperation getCriteria(boolean local) {
+            AndOperation criteria = new AndOperation();
+            for (ImapSearch i4search : mChildren) {
+                if (i4search.canBeRunLocally() == local) {
+                    criteria.addChild(i4search);
+                }
+            }
+            return criteria.mChildren.isEmpty() ? null : criteria;
+        }
     }
 
     static class OrOperation extends LogicalOperation {
@@ -341,6 +367,35 @@ abstract class ImapSearch {
         }
     }
 
+    /** Matches a set of messages already known, e.g. the result of the local part of a search. */
+    static class MessageSetSearch extends ImapSearch {
+        private ImapMessageSet mMessages;
+        MessageSetSearch(ImapMessageSet i4set)  { mMessages = i4set; }
+
+        @Override
+        protected boolean canBeRunLocally()  { return true; }
+
+        @Override
+        protected String toZimbraSearch(ImapFolder i4folder) {
+            return sequenceAsSearchTerm(i4folder, evaluate(i4folder), true);
+        }
+
+        @Override
+        protected ImapMessageSet evaluate(ImapFolder i4folder) {
+            return new ImapMessageSet(mMessages);
+        }
+
+        @Override
+        public int hashCode() {
+            return mMessages.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof MessageSetSearch && mMessages.equals(((MessageSetSearch) obj).mMessages);
+        }
+    }
+
     static class FlagSearch extends ImapSearch {
         private String mFlagName;
         FlagSearch(String flagName)  { mFlagName = flagName; }
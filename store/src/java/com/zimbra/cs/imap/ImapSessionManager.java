@@ -475,7 +475,6 @@ final class ImapSessionManager {
         if (i4listener == null) {
             return null;
         }
-        //   FIXME: may want to prefer loaded folders over paged-out folders
         synchronized (i4listener) {
             ImapFolder i4selected;
             try {
@@ -511,7 +510,7 @@ final class ImapSessionManager {
     /**
      * Choose the listener which knows about the most recent change, preferring ones associated with
      * a ZMailbox which is using a session, so that we know that our cache will be up to date to that
-     * change in that case.
+     * change in that case.  Among local listeners, prefer one whose folder is in memory.
      */
     private static ImapListener getSessionForFolder(int folderId, List<ImapListener> sessionList) {
         List<ImapListener> listeners = getSessionsForFolder(folderId, sessionList);
@@ -535,7 +534,16 @@ final class ImapSessionManager {
                 }
             }
         }
-        return bestListener != null ? bestListener : listeners.get(0);
+        if (bestListener != null) {
+            return bestListener;
+        }
+        // copying a folder that is in memory saves deserializing one that was paged out
+        for (ImapListener i4listener : listeners) {
+            if (i4listener.isLoaded()) {
+                return i4listener;
+            }
+        }
+        return listeners.get(0);
     }
 
     private static List<ImapListener> getSessionsForFolder(int folderId, List<ImapListener> sessionList) {
@@ -0,0 +1,536 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.common.mailbox.MailboxStore;
+import com.zimbra.common.mailbox.ZimbraMailItem;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+
+/**
+ * Threads messages for the IMAP THREAD command (RFC 5256), with the ORDEREDSUBJECT and
+ * REFERENCES algorithms.
+ *
+ * The headers threading needs are stored with each message at delivery.  The headers of
+ * messages stored without them, delivered before they were stored or in remote folders, are read
+ * from the content once and kept with the selected {@link ImapFolder}.
+ */
+final class ImapThreader {
+
+    enum Algorithm { ORDEREDSUBJECT, REFERENCES }
+
+    private static final Pattern MESSAGE_ID = Pattern.compile("<[^<>]*>");
+    private static final int MAX_STORED_REFERENCES = 10;
+    private static final int LOAD_BATCH_SIZE = 100;
+    private static final Pattern SUBJ_TRAILER = Pattern.compile("\\s*\\(fwd\\)\\s*$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SUBJ_REFWD = Pattern.compile(
+            "^(?:\\[[^\\[\\]]*\\]\\s*)*(?:re|fwd?)\\s*(?:\\[[^\\[\\]]*\\]\\s*)?:\\s*", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SUBJ_BLOB = Pattern.compile("^\\[[^\\[\\]]*\\]\\s*");
+    private static final Pattern SUBJ_FWD = Pattern.compile("^\\[fwd:(.*)\\]$", Pattern.CASE_INSENSITIVE);
+
+    private ImapThreader() {
+    }
+
+    /** The headers of a message that threading uses. */
+    static final class Headers {
+        final String messageId;
+        /** referenced message ids, oldest first */
+        final List<String> references;
+        final String baseSubject;
+        /** true if the subject had a reply or forward prefix or trailer */
+        final boolean replyOrForward;
+        final long sentDate;
+
+        Headers(String messageId, List<String> references, String subject, long sentDate) {
+            this.messageId = messageId;
+            this.references = references;
+            this.sentDate = sentDate;
+
+            // RFC 5256 2.1: extract the base subject
+            String base = subject == null ? "" : subject.replaceAll("\\s+", " ").trim();
+            boolean refwd = false;
+            while (true) {
+                Matcher m;
+                while ((m = SUBJ_TRAILER.matcher(base)).find()) {
+                    base = base.substring(0, m.start());
+                    refwd = true;
+                }
+                boolean changed;
+                do {
+                    changed = false;
+                    if ((m = SUBJ_REFWD.matcher(base)).find()) {
+                        base = base.substring(m.end());
+                        refwd = changed = true;
+                    }
+                    if ((m = SUBJ_BLOB.matcher(base)).find() && m.end() < base.length()) {
+                        base = base.substring(m.end());
+                        changed = true;
+                    }
+                } while (changed);
+                if (!(m = SUBJ_FWD.matcher(base)).matches()) {
+                    break;
+                }
+                base = m.group(1).trim();
+                refwd = true;
+            }
+            this.baseSubject = base.toLowerCase();
+            this.replyOrForward = refwd;
+        }
+    }
+
+    /**
+     * Reads the threading headers of a message.  Only the header block of the content is read.
+     */
+    static Headers readHeaders(ZimbraMailItem item) throws ServiceException, IOException {
+        InputStream in = ImapMessage.getContent(item).stream;
+        try {
+            InternetHeaders headers = new InternetHeaders(in);
+            return parseHeaders(headers.getHeader("Message-ID", " "), headers.getHeader("References", " "),
+                    headers.getHeader("In-Reply-To", " "), decodeSubject(headers.getHeader("Subject", " ")),
+                    headers.getHeader("Date", " "), item.getDate());
+        } catch (MessagingException e) {
+            throw ServiceException.FAILURE("error reading headers of item " + item.getIdInMailbox(), e);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    private static String decodeSubject(String subject) {
+        if (subject != null) {
+            try {
+                return MimeUtility.decodeText(MimeUtility.unfold(subject));
+            } catch (UnsupportedEncodingException e) {
+            }
+        }
+        return subject;
+    }
+
+    private static Headers parseHeaders(String messageId, String references, String inReplyTo, String subject,
+            String dateHeader, long internalDate) {
+        List<String> msgIds = parseMessageIds(messageId);
+        List<String> refs = parseMessageIds(references);
+        if (refs.isEmpty()) {
+            List<String> inReplyToIds = parseMessageIds(inReplyTo);
+            if (!inReplyToIds.isEmpty()) {
+                refs = inReplyToIds.subList(0, 1);
+            }
+        }
+        // RFC 5256 2.2: use the internal date if there is no valid Date header
+        long date = internalDate;
+        if (dateHeader != null) {
+            try {
+                date = new MailDateFormat().parse(dateHeader).getTime();
+            } catch (ParseException e) {
+            }
+        }
+        return new Headers(msgIds.isEmpty() ? null : msgIds.get(0), refs, subject, date);
+    }
+
+    /**
+     * Returns the threading headers of a message other than its subject, for storing with the
+     * message at delivery.  Of long References lists only the first and the last few ids are kept,
+     * the ones in between link the messages they belong to anyway.
+     */
+    static String serializeHeaders(MimeMessage mm, long internalDate) throws MessagingException {
+        Headers headers = parseHeaders(mm.getHeader("Message-ID", " "), mm.getHeader("References", " "),
+                mm.getHeader("In-Reply-To", " "), null, mm.getHeader("Date", " "), internalDate);
+        List<String> refs = headers.references;
+        if (refs.size() > MAX_STORED_REFERENCES) {
+            List<String> trimmed = new ArrayList<String>(MAX_STORED_REFERENCES);
+            trimmed.add(refs.get(0));
+            trimmed.addAll(refs.subList(refs.size() - MAX_STORED_REFERENCES + 1, refs.size()));
+            refs = trimmed;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(headers.sentDate).append('\n');
+        if (headers.messageId != null) {
+            sb.append(headers.messageId);
+        }
+        sb.append('\n');
+        for (int i = 0; i < refs.size(); i++) {
+            sb.append(i == 0 ? "" : " ").append(refs.get(i));
+        }
+        return sb.toString();
+    }
+
+    static Headers deserializeHeaders(String stored, String subject) {
+        String[] fields = stored.split("\n", 3);
+        List<String> refs = fields.length < 3 ? Collections.<String>emptyList() : parseMessageIds(fields[2]);
+        return new Headers(fields.length < 2 || fields[1].isEmpty() ? null : fields[1], refs, subject,
+                Long.parseLong(fields[0]));
+    }
+
+    private static List<String> parseMessageIds(String value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        List<String> ids = new ArrayList<String>(2);
+        Matcher m = MESSAGE_ID.matcher(value);
+        while (m.find()) {
+            ids.add(m.group());
+        }
+        return ids;
+    }
+
+    /** the message's content changes only along with its IMAP UID */
+    static long cacheKey(ImapMessage i4msg) {
+        return ((long) i4msg.msgId << 32) | (i4msg.imapUid & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the threading headers of the messages, in the order given.  The items are loaded in
+     * batches; the headers of messages delivered without stored THREAD headers are read from their
+     * content and kept with the folder.
+     */
+    static Map<ImapMessage, Headers> getHeaders(ImapFolder i4folder, Collection<ImapMessage> messages,
+            OperationContext octxt) throws ServiceException {
+        Cache<Long, Headers> cache = i4folder.getThreadHeaders();
+        Map<ImapMessage, Headers> result = new LinkedHashMap<ImapMessage, Headers>(messages.size() * 2);
+        List<ImapMessage> missing = new ArrayList<ImapMessage>();
+        for (ImapMessage i4msg : messages) {
+            Headers headers = cache.getIfPresent(cacheKey(i4msg));
+            result.put(i4msg, headers);
+            if (headers == null) {
+                missing.add(i4msg);
+            }
+        }
+        MailboxStore mbox = i4folder.getMailbox();
+        String owner = i4folder.getFolder().getFolderItemIdentifier().accountId;
+        if (owner == null) {
+            owner = mbox.getAccountId();
+        }
+        for (int start = 0; start < missing.size(); start += LOAD_BATCH_SIZE) {
+            List<ImapMessage> batch = missing.subList(start, Math.min(start + LOAD_BATCH_SIZE, missing.size()));
+            List<ItemIdentifier> iids = new ArrayList<ItemIdentifier>(batch.size());
+            for (ImapMessage i4msg : batch) {
+                iids.add(ItemIdentifier.fromAccountIdAndItemId(owner, i4msg.msgId));
+            }
+            List<ZimbraMailItem> items = null;
+            try {
+                items = mbox.getItemsById(octxt, iids);
+            } catch (ServiceException e) {
+                // e.g. a message expunged meanwhile; load the others one by one
+                ZimbraLog.imap.debug("unable to load messages for THREAD in a batch", e);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                ImapMessage i4msg = batch.get(i);
+                ZimbraMailItem item = items != null && items.size() == batch.size() ? items.get(i) :
+                    mbox.getItemById(octxt, iids.get(i), i4msg.getType().toCommon());
+                result.put(i4msg, getHeaders(item, i4msg, cache));
+            }
+        }
+        return result;
+    }
+
+    private static Headers getHeaders(ZimbraMailItem item, ImapMessage i4msg, Cache<Long, Headers> cache)
+            throws ServiceException {
+        if (item instanceof Message) {
+            String stored = ((Message) item).getImapThreadHeaders();
+            if (stored != null) {
+                return deserializeHeaders(stored, ((Message) item).getSubject());
+            }
+        }
+        Headers headers;
+        try {
+            headers = readHeaders(item);
+        } catch (IOException e) {
+            ZimbraLog.imap.warn("unable to read headers of message %d for THREAD", i4msg.msgId, e);
+            headers = new Headers(null, Collections.<String>emptyList(), null, 0);
+        }
+        cache.put(cacheKey(i4msg), headers);
+        return headers;
+    }
+
+    /** A node of a thread tree; a dummy if it has no message. */
+    static final class Container {
+        ImapMessage i4msg;
+        Headers headers;
+        Container parent;
+        final List<Container> children = new ArrayList<Container>(2);
+
+        boolean isDummy() {
+            return i4msg == null;
+        }
+
+        /** the message itself, or the first child of a dummy (children must be sorted) */
+        Container first() {
+            return isDummy() && !children.isEmpty() ? children.get(0).first() : this;
+        }
+
+        void addChild(Container child) {
+            child.parent = this;
+            children.add(child);
+        }
+
+        void unlink() {
+            if (parent != null) {
+                parent.children.remove(this);
+                parent = null;
+            }
+        }
+
+        boolean isAncestorOf(Container c) {
+            for (Container ancestor = c; ancestor != null; ancestor = ancestor.parent) {
+                if (ancestor == this) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // RFC 5256 2.2: by sent date, then by the order of the messages in the mailbox
+    private static final Comparator<Container> BY_DATE = new Comparator<Container>() {
+        @Override
+        public int compare(Container c1, Container c2) {
+            Container m1 = c1.first(), m2 = c2.first();
+            if (m1.headers == null || m2.headers == null) {
+                return m1.headers == null ? (m2.headers == null ? 0 : -1) : 1;
+            }
+            if (m1.headers.sentDate != m2.headers.sentDate) {
+                return m1.headers.sentDate < m2.headers.sentDate ? -1 : 1;
+            }
+            return Integer.compare(m1.i4msg.sequence, m2.i4msg.sequence);
+        }
+    };
+
+    static List<Container> thread(Algorithm algorithm, Map<ImapMessage, Headers> messages) {
+        return algorithm == Algorithm.REFERENCES ? references(messages) : orderedSubject(messages);
+    }
+
+    /**
+     * RFC 5256 ORDEREDSUBJECT: messages with the same base subject form a thread, in order of
+     * sent date; the first message is the parent of all the others.
+     */
+    @VisibleForTesting
+    static List<Container> orderedSubject(Map<ImapMessage, Headers> messages) {
+        Map<String, Container> threads = new HashMap<String, Container>();
+        List<Container> sorted = new ArrayList<Container>(messages.size());
+        for (Map.Entry<ImapMessage, Headers> entry : messages.entrySet()) {
+            Container c = new Container();
+            c.i4msg = entry.getKey();
+            c.headers = entry.getValue();
+            sorted.add(c);
+        }
+        Collections.sort(sorted, BY_DATE);
+
+        List<Container> roots = new ArrayList<Container>();
+        for (Container c : sorted) {
+            Container root = threads.get(c.headers.baseSubject);
+            if (root == null) {
+                threads.put(c.headers.baseSubject, c);
+                roots.add(c);
+            } else {
+                root.addChild(c);
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * RFC 5256 REFERENCES: threads by the Message-ID, References and In-Reply-To headers, then
+     * merges threads with the same base subject.
+     */
+    @VisibleForTesting
+    static List<Container> references(Map<ImapMessage, Headers> messages) {
+        // (1) link the messages by their references
+        Map<String, Container> ids = new HashMap<String, Container>(messages.size() * 2);
+        List<Container> all = new ArrayList<Container>(messages.size());
+        for (Map.Entry<ImapMessage, Headers> entry : messages.entrySet()) {
+            Headers headers = entry.getValue();
+            Container c = headers.messageId == null ? null : ids.get(headers.messageId);
+            if (c == null || !c.isDummy()) {
+                // a missing or duplicate Message-ID gets a container of its own
+                c = new Container();
+                all.add(c);
+                if (headers.messageId != null && !ids.containsKey(headers.messageId)) {
+                    ids.put(headers.messageId, c);
+                }
+            }
+            c.i4msg = entry.getKey();
+            c.headers = headers;
+
+            Container prev = null;
+            for (String ref : headers.references) {
+                Container rc = ids.get(ref);
+                if (rc == null) {
+                    rc = new Container();
+                    ids.put(ref, rc);
+                    all.add(rc);
+                }
+                if (prev != null && rc.parent == null && !rc.isAncestorOf(prev)) {
+                    prev.addChild(rc);
+                }
+                prev = rc;
+            }
+            c.unlink();
+            if (prev != null && !c.isAncestorOf(prev)) {
+                prev.addChild(c);
+            }
+        }
+
+        // (2) gather the root set and (3) prune dummies
+        List<Container> roots = new ArrayList<Container>();
+        for (Container c : all) {
+            if (c.parent == null) {
+                roots.add(c);
+            }
+        }
+        prune(roots, true);
+
+        // (4) sort the root set
+        for (Container root : roots) {
+            Collections.sort(root.children, BY_DATE);
+        }
+        Collections.sort(roots, BY_DATE);
+
+        // (5) merge threads with the same base subject
+        Map<String, Container> subjects = new HashMap<String, Container>();
+        for (Container root : roots) {
+            Headers first = root.first().headers;
+            if (first.baseSubject.isEmpty()) {
+                continue;
+            }
+            Container existing = subjects.get(first.baseSubject);
+            if (existing == null || (root.isDummy() && !existing.isDummy()) ||
+                    (!root.isDummy() && !existing.isDummy() && existing.headers.replyOrForward && !first.replyOrForward)) {
+                subjects.put(first.baseSubject, root);
+            }
+        }
+        Set<Container> merged = new HashSet<Container>();
+        for (Container root : new ArrayList<Container>(roots)) {
+            if (root.parent != null || merged.contains(root)) {
+                continue;
+            }
+            String subject = root.first().headers.baseSubject;
+            Container other = subjects.get(subject);
+            if (other == null || other == root) {
+                continue;
+            }
+            merged.add(root);
+            if (other.isDummy() && root.isDummy()) {
+                for (Container child : root.children) {
+                    other.addChild(child);
+                }
+                root.children.clear();
+            } else if (other.isDummy() || (!other.headers.replyOrForward && root.headers.replyOrForward)) {
+                other.addChild(root);
+            } else {
+                // the table holds a dummy whenever this root is one, so both are messages here
+                Container dummy = new Container();
+                roots.set(roots.indexOf(other), dummy);
+                dummy.addChild(other);
+                dummy.addChild(root);
+                subjects.put(subject, dummy);
+            }
+        }
+        roots.removeAll(merged);
+
+        // (6) sort the children of each thread, the threads keep the order of (4)
+        for (Container root : roots) {
+            sortTree(root.children);
+        }
+        return roots;
+    }
+
+    private static void prune(List<Container> siblings, boolean root) {
+        for (int i = 0; i < siblings.size(); ) {
+            Container c = siblings.get(i);
+            prune(c.children, false);
+            if (c.isDummy() && c.children.isEmpty()) {
+                siblings.remove(i);
+            } else if (c.isDummy() && (!root || c.children.size() == 1)) {
+                // promote the children of the dummy, a dummy is only kept at the top to group siblings
+                siblings.remove(i);
+                for (Container child : c.children) {
+                    child.parent = c.parent;
+                }
+                siblings.addAll(i, c.children);
+                i += c.children.size();
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private static void sortTree(List<Container> siblings) {
+        for (Container c : siblings) {
+            sortTree(c.children);
+        }
+        Collections.sort(siblings, BY_DATE);
+    }
+
+    /**
+     * Formats threads as the THREAD response does, e.g. {@code (3 6 (4 23)(44 7 96))}.
+     */
+    static String format(List<Container> threads, boolean byUID) {
+        StringBuilder result = new StringBuilder();
+        for (Container thread : threads) {
+            result.append('(');
+            formatMembers(thread, byUID, result);
+            result.append(')');
+        }
+        return result.toString();
+    }
+
+    private static void formatMembers(Container c, boolean byUID, StringBuilder result) {
+        if (!c.isDummy()) {
+            result.append(byUID ? c.i4msg.imapUid : c.i4msg.sequence);
+            if (c.children.size() == 1) {
+                result.append(' ');
+                formatMembers(c.children.get(0), byUID, result);
+                return;
+            } else if (!c.children.isEmpty()) {
+                result.append(' ');
+            }
+        }
+        for (Container child : c.children) {
+            result.append('(');
+            formatMembers(child, byUID, result);
+            result.append(')');
+        }
+    }
+}
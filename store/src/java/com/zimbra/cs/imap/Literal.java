@@ -129,7 +129,8 @@ abstract class Literal {
             try {
                 this.size = size;
                 builder = StoreManager.getInstance().getBlobBuilder();
-                builder.init();
+                // the literal size is the message size, let the store size its buffers for it
+                builder.setSizeHint(size).init();
             } catch (ServiceException e) {
                 throw error("Unable to initialize BlobBuilder", e);
             }
@@ -0,0 +1,124 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+/**
+ * Map from item id to {@link ImapMessage} for the messages of an {@link ImapFolder} whose IMAP
+ * UID differs from their item id.
+ *
+ * In a folder most of whose messages were moved in, every session holds one entry per message;
+ * open addressing over an int array keeps that to a few bytes per entry instead of a boxed key
+ * and an entry object.  Item ids are positive, 0 marks a free slot.
+ */
+final class MessageIdMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private ImapMessage[] values;
+    private int size;
+
+    MessageIdMap() {
+        keys = new int[MIN_CAPACITY];
+        values = new ImapMessage[MIN_CAPACITY];
+    }
+
+    int size() {
+        return size;
+    }
+
+    ImapMessage get(int id) {
+        for (int i = slot(id); keys[i] != 0; i = next(i)) {
+            if (keys[i] == id) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    void put(int id, ImapMessage i4msg) {
+        checkId(id);
+        int i = slot(id);
+        for (; keys[i] != 0; i = next(i)) {
+            if (keys[i] == id) {
+                values[i] = i4msg;
+                return;
+            }
+        }
+        keys[i] = id;
+        values[i] = i4msg;
+        // keep the load factor under 3/4
+        if (++size * 4 > keys.length * 3) {
+            resize(keys.length << 1);
+        }
+    }
+
+    void remove(int id) {
+        // 0 would match the first free slot
+        checkId(id);
+        int i = slot(id);
+        for (; keys[i] != id; i = next(i)) {
+            if (keys[i] == 0) {
+                return;
+            }
+        }
+        // shift back the entries that probed past the removed one
+        for (int j = next(i); keys[j] != 0; j = next(j)) {
+            int home = slot(keys[j]);
+            if ((j > i && (home <= i || home > j)) || (j < i && home <= i && home > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+        values[i] = null;
+        size--;
+    }
+
+    private static void checkId(int id) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("invalid item id: " + id);
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        ImapMessage[] oldValues = values;
+        keys = new int[capacity];
+        values = new ImapMessage[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int j = slot(oldKeys[i]);
+                while (keys[j] != 0) {
+                    j = next(j);
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private int slot(int id) {
+        // spread sequential ids over the table
+        return (id * 0x9E3779B9 >>> 1) & (keys.length - 1);
+    }
+
+    private int next(int i) {
+        return (i + 1) & (keys.length - 1);
+    }
+}
@@ -25,6 +25,7 @@ import org.apache.mina.filter.codec.RecoverableProtocolDecoderException;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailboxLock;
 import com.zimbra.cs.server.NioConnection;
 import com.zimbra.cs.server.NioHandler;
 import com.zimbra.cs.server.NioOutputStream;
@@ -34,6 +35,7 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
     private final ImapConfig config;
     private final NioConnection connection;
     private NioImapRequest request;
+    private boolean startedCompression;
 
     NioImapHandler(NioImapServer server, NioConnection conn) {
         super(server.getConfig());
@@ -112,6 +114,8 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         }
 
         long start = ZimbraPerf.STOPWATCH_IMAP.start();
+        long bytesBefore = connection.getWrittenBytes() + connection.getScheduledWriteBytes();
+        long lockWaitBefore = MailboxLock.getLockWaitMillis();
 
         try {
             if (!checkAccountStatus()) {
@@ -146,7 +150,8 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
             } else {
                 ZimbraLog.imap.info("(unknown) elapsed=%d (NIO)", elapsed);
             }
-
+            recordCommand(req, elapsed, connection.getWrittenBytes() + connection.getScheduledWriteBytes() - bytesBefore,
+                    MailboxLock.getLockWaitMillis() - lockWaitBefore);
         }
     }
 
@@ -267,6 +272,28 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         return true;
     }
 
+    @Override
+    protected boolean isCompressionSupported() {
+        return true;
+    }
+
+    @Override
+    protected boolean doCOMPRESS(String tag, String mechanism) throws IOException, ImapParseException {
+        if (!checkState(tag, State.AUTHENTICATED)) {
+            return true;
+        } else if (startedCompression) {
+            // RFC 4978 3: "the server MUST reply with NO with the COMPRESSIONACTIVE response code"
+            sendNO(tag, "[COMPRESSIONACTIVE] DEFLATE active via COMPRESS");
+            return true;
+        } else if (!mechanism.equals("DEFLATE")) {
+            throw new ImapParseException(tag, "unknown compression mechanism: " + mechanism);
+        }
+        connection.startCompression();
+        sendOK(tag, "DEFLATE active");
+        startedCompression = true;
+        return true;
+    }
+
     @Override
     protected InetSocketAddress getLocalAddress() {
         return connection.getLocalAddress();
@@ -0,0 +1,235 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.util.SharedByteArrayInputStream;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.FolderStore;
+import com.zimbra.common.mailbox.MailItemType;
+import com.zimbra.common.mailbox.ZimbraMailItem;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.service.UserServlet;
+import com.zimbra.cs.service.formatter.FormatterFactory.FormatType;
+import com.zimbra.cs.service.formatter.ImapBulkFormatter;
+
+/**
+ * Fetches the messages of an IMAP FETCH from the mailstore in batches, for the standalone imapd.
+ *
+ * Without it every message costs a GetMsgRequest and a UserServlet request.  The messages
+ * are requested in the order the FETCH walks them, LC imap_remote_bulk_fetch_batch_size at a
+ * time, and the response is read as the FETCH goes, so only one message is held in memory
+ * and the mailstore streams ahead as far as the connection buffers allow.  Messages that
+ * are not in the response (too large, gone, or the request failed) return null and are
+ * fetched the usual way.
+ */
+final class RemoteBulkFetch implements Closeable {
+
+    private final RemoteImapMailboxStore store;
+    private final int folderId;
+    private final List<ImapMessage> messages;
+    private final int batchSize;
+    private final long maxMessageSize;
+    // index in messages of the first message not requested yet
+    private int cursor;
+    // ids requested in the current batch whose content has not been read yet
+    private final Deque<Integer> pending = new ArrayDeque<Integer>();
+    private InputStream in;
+    private boolean failed;
+
+    private RemoteBulkFetch(RemoteImapMailboxStore store, int folderId, Collection<ImapMessage> messages,
+            int batchSize, long maxMessageSize) {
+        this.store = store;
+        this.folderId = folderId;
+        this.messages = new ArrayList<ImapMessage>(messages);
+        this.batchSize = batchSize;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Returns a bulk fetch of the messages, or null if the folder isn't in a remote mailbox
+     * owned by the session's account or bulk fetches are disabled.
+     */
+    static RemoteBulkFetch create(ImapFolder i4folder, Collection<ImapMessage> messages) throws ServiceException {
+        int batchSize = LC.imap_remote_bulk_fetch_batch_size.intValue();
+        ImapMailboxStore imapStore = i4folder.getImapMailboxStore();
+        if (batchSize <= 0 || messages.size() < 2 || !(imapStore instanceof RemoteImapMailboxStore)) {
+            return null;
+        }
+        FolderStore folder = i4folder.getFolder();
+        String owner = folder.getFolderItemIdentifier().accountId;
+        if (owner != null && !owner.equals(imapStore.getAccountId())) {
+            return null;
+        }
+        return new RemoteBulkFetch((RemoteImapMailboxStore) imapStore, i4folder.getId(), messages, batchSize,
+                LC.imap_remote_bulk_fetch_max_message_size.longValue());
+    }
+
+    /**
+     * Returns the message with its content, or null if it has to be fetched on its own.
+     */
+    ZimbraMailItem get(ImapMessage i4msg) {
+        if (failed || i4msg.getType() != MailItem.Type.MESSAGE) {
+            return null;
+        }
+        try {
+            if (!pending.contains(i4msg.msgId)) {
+                request(i4msg);
+                if (!pending.contains(i4msg.msgId)) {
+                    return null;
+                }
+            }
+            while (true) {
+                ImapBulkFormatter.Frame frame = ImapBulkFormatter.readHeader(in);
+                Integer expected = pending.poll();
+                if (frame == null || expected == null || frame.id != expected) {
+                    throw new IOException("unexpected message in bulk fetch response");
+                }
+                if (frame.id != i4msg.msgId || frame.size < 0 || frame.length != frame.size) {
+                    ByteStreams.skipFully(in, frame.length);
+                    if (frame.id == i4msg.msgId) {
+                        return null;
+                    }
+                    continue;
+                }
+                byte[] content = new byte[(int) frame.length];
+                ByteStreams.readFully(in, content);
+                return new Item(i4msg, frame, content);
+            }
+        } catch (IOException | ServiceException e) {
+            // the mailstore may not support bulk fetches, don't try again in this FETCH
+            ZimbraLog.imap.info("bulk fetch failed, fetching messages one at a time", e);
+            failed = true;
+            close();
+            return null;
+        }
+    }
+
+    private void request(ImapMessage i4msg) throws IOException, ServiceException {
+        close();
+        int start = messages.subList(cursor, messages.size()).indexOf(i4msg);
+        start = start < 0 ? messages.indexOf(i4msg) : cursor + start;
+        if (start < 0) {
+            return;
+        }
+        for (cursor = start; cursor < messages.size() && pending.size() < batchSize; cursor++) {
+            ImapMessage msg = messages.get(cursor);
+            if (!msg.isExpunged() && msg.getType() == MailItem.Type.MESSAGE) {
+                pending.add(msg.msgId);
+            }
+        }
+        Map<String, String> params = Maps.newHashMapWithExpectedSize(3);
+        params.put(UserServlet.QP_FMT, FormatType.IMAP_BULK.toString());
+        params.put(UserServlet.QP_LIST, Joiner.on(',').join(pending));
+        params.put(ImapBulkFormatter.QP_MAX_SIZE, Long.toString(maxMessageSize));
+        in = store.getRemoteContent(null, params);
+    }
+
+    @Override
+    public void close() {
+        pending.clear();
+        ByteUtil.closeStream(in);
+        in = null;
+    }
+
+    /**
+     * A message read from a bulk fetch response.  The content is kept in memory, so it can
+     * be read again for BODYSTRUCTURE after BODY[].
+     */
+    final class Item implements ZimbraMailItem {
+        private final ImapMessage i4msg;
+        private final ImapBulkFormatter.Frame frame;
+        private final byte[] content;
+
+        Item(ImapMessage i4msg, ImapBulkFormatter.Frame frame, byte[] content) {
+            this.i4msg = i4msg;
+            this.frame = frame;
+            this.content = content;
+        }
+
+        @Override
+        public MailItemType getMailItemType() {
+            return MailItemType.MESSAGE;
+        }
+
+        @Override
+        public int getIdInMailbox() {
+            return frame.id;
+        }
+
+        @Override
+        public int getImapUid() {
+            return i4msg.imapUid;
+        }
+
+        @Override
+        public int getFlagBitmask() {
+            return i4msg.flags;
+        }
+
+        @Override
+        public String[] getTags() {
+            return i4msg.tags;
+        }
+
+        @Override
+        public int getFolderIdInMailbox() {
+            return folderId;
+        }
+
+        @Override
+        public String getAccountId() {
+            return store.getAccountId();
+        }
+
+        @Override
+        public long getDate() {
+            return frame.date;
+        }
+
+        @Override
+        public long getSize() {
+            return frame.size;
+        }
+
+        @Override
+        public int getModifiedSequence() {
+            return frame.modseq;
+        }
+
+        @Override
+        public InputStream getContentStream() {
+            return new SharedByteArrayInputStream(content);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.google.common.base.MoreObjects;
@@ -136,24 +137,32 @@ public class RemoteImapMailboxStore extends ImapMailboxStore {
     @Override
     public InputStreamWithSize getByImapId(OperationContext octxt, int imapId, String folderId, String resolvedPath)
     throws ServiceException {
-        AuthToken auth;
-        try {
-            auth = AuthToken.getAuthToken(zMailbox.getAuthToken().getValue());
-        } catch (AuthTokenException ate) {
-            ZimbraLog.imap.error("Problem with auth token", ate);
-            throw ServiceException.AUTH_EXPIRED("Problem creating auth token for use with UserServlet");
-        }
         HashMap<String, String> params = Maps.newHashMapWithExpectedSize(1);
         params.put(UserServlet.QP_IMAP_ID, Integer.toString(imapId));
         UserServlet.HttpInputStream is;
         try {
-            is = UserServlet.getRemoteContentAsStream(auth, getAccount(), resolvedPath, params);
+            is = getRemoteContent(resolvedPath, params);
             return new InputStreamWithSize(is, (long) is.getContentLength());
         } catch (IOException e) {
             throw ServiceException.FAILURE(String.format("Failed to get content stream for item id %d",  imapId), e);
         }
     }
 
+    /**
+     * Requests content from the UserServlet of the mailstore with the credentials of the ZMailbox.
+     */
+    UserServlet.HttpInputStream getRemoteContent(String resolvedPath, Map<String, String> params)
+    throws ServiceException, IOException {
+        AuthToken auth;
+        try {
+            auth = AuthToken.getAuthToken(zMailbox.getAuthToken().getValue());
+        } catch (AuthTokenException ate) {
+            ZimbraLog.imap.error("Problem with auth token", ate);
+            throw ServiceException.AUTH_EXPIRED("Problem creating auth token for use with UserServlet");
+        }
+        return UserServlet.getRemoteContentAsStream(auth, getAccount(), resolvedPath, params);
+    }
+
     @Override
     public void checkAppendMessageFlags(OperationContext octxt, List<AppendMessage> appends) throws ServiceException {
         ImapFlagCache flagset = ImapFlagCache.getSystemFlags();
@@ -26,11 +26,13 @@ import java.net.SocketException;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
+import com.google.common.io.CountingOutputStream;
 import com.zimbra.common.io.TcpServerInputStream;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.NetUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailboxLock;
 import com.zimbra.cs.server.ProtocolHandler;
 import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.IOUtil;
@@ -42,6 +44,9 @@ final class TcpImapHandler extends ProtocolHandler {
     private final ImapConfig config;
     private Socket socket;
     private final HandlerDelegate delegate;
+    // counts the response bytes of the current output stream, and of the ones replaced by STARTTLS or SASL
+    private CountingOutputStream counter;
+    private long countedBytes;
 
     TcpImapHandler(TcpImapServer server) {
         super(server);
@@ -56,7 +61,7 @@ final class TcpImapHandler extends ProtocolHandler {
         INFO("connected");
 
         input = new TcpServerInputStream(connection.getInputStream());
-        delegate.output = new BufferedOutputStream(connection.getOutputStream());
+        delegate.output = countBytes(new BufferedOutputStream(connection.getOutputStream()));
 
         if (!config.isServiceEnabled()) {
             ZimbraLog.imap.debug("dropping TCP connection because user services are disabled");
@@ -69,6 +74,17 @@ final class TcpImapHandler extends ProtocolHandler {
         return true;
     }
 
+    private OutputStream countBytes(OutputStream os) {
+        countedBytes = getWrittenBytes();
+        counter = new CountingOutputStream(os);
+        return counter;
+    }
+
+    private long getWrittenBytes() {
+        CountingOutputStream cos = counter;
+        return cos == null ? countedBytes : countedBytes + cos.getCount();
+    }
+
     @Override
     protected boolean authenticate() {
         // we auth with the LOGIN command (and more to come)
@@ -104,6 +120,8 @@ final class TcpImapHandler extends ProtocolHandler {
             }
 
             long start = ZimbraPerf.STOPWATCH_IMAP.start();
+            long bytesBefore = getWrittenBytes();
+            long lockWaitBefore = MailboxLock.getLockWaitMillis();
             // check account status before executing command
             if (!delegate.checkAccountStatus()) {
                 return false;
@@ -124,6 +142,8 @@ final class TcpImapHandler extends ProtocolHandler {
             } else {
                 ZimbraLog.imap.info("(unknown) elapsed=%d (TCP)", elapsed);
             }
+            delegate.recordCommand(request, elapsed, getWrittenBytes() - bytesBefore,
+                    MailboxLock.getLockWaitMillis() - lockWaitBefore);
             return keepGoing && (LC.imap_max_consecutive_error.intValue() <= 0 || delegate.consecutiveError < LC.imap_max_consecutive_error.intValue());
         } catch (TcpImapRequest.ImapContinuationException e) {
             request.rewind();
@@ -323,7 +343,7 @@ final class TcpImapHandler extends ProtocolHandler {
             if (authenticator.isEncryptionEnabled()) {
                 // switch to encrypted streams
                 input = new TcpServerInputStream(authenticator.unwrap(connection.getInputStream()));
-                output = authenticator.wrap(connection.getOutputStream());
+                output = countBytes(authenticator.wrap(connection.getOutputStream()));
             }
         }
 
@@ -346,11 +366,18 @@ final class TcpImapHandler extends ProtocolHandler {
             startHandshake(tlsconn);
             ZimbraLog.imap.debug("suite: %s", tlsconn.getSession().getCipherSuite());
             input = new TcpServerInputStream(tlsconn.getInputStream());
-            output = new BufferedOutputStream(tlsconn.getOutputStream());
+            output = countBytes(new BufferedOutputStream(tlsconn.getOutputStream()));
             startedTLS = true;
             return true;
         }
 
+        @Override
+        protected boolean doCOMPRESS(String tag, String mechanism) throws IOException {
+            // COMPRESS=DEFLATE is not advertised for blocking connections
+            sendNO(tag, "COMPRESS not supported");
+            return true;
+        }
+
         @Override
         protected InetSocketAddress getLocalAddress() {
             return (InetSocketAddress) socket.getLocalSocketAddress();
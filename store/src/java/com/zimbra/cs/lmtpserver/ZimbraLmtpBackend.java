@@ -28,7 +28,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.mail.MessagingException;
@@ -36,13 +42,17 @@ import javax.mail.internet.MimeMessage;
 
 import org.apache.commons.io.IOUtils;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Strings;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Table;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.lmtp.LmtpClient;
 import com.zimbra.common.lmtp.LmtpProtocolException;
@@ -90,6 +100,8 @@ public class ZimbraLmtpBackend implements LmtpBackend {
     private static List<LmtpCallback> callbacks = new CopyOnWriteArrayList<LmtpCallback>();
     private static Map<String, Set<Integer>> receivedMessageIDs;
     private static final LoadingCache<Integer, ReentrantLock> mailboxDeliveryLocks = createMailboxDeliveryLocks();
+    // null unless lmtp_parallel_delivery_threads is set
+    private static ExecutorService deliveryExecutor = createDeliveryExecutor();
 
     private final LmtpConfig config;
 
@@ -128,6 +140,28 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         return cache;
     }
 
+    /*
+     * Shared by all LMTP connections.  When the queue is full the LMTP thread delivers to
+     * the recipient itself, which bounds the work a single large delivery can queue up.
+     */
+    private static ExecutorService createDeliveryExecutor() {
+        int threads = LC.lmtp_parallel_delivery_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(threads * 4),
+                new ThreadFactoryBuilder().setNameFormat("LmtpDelivery-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @VisibleForTesting
+    static void setDeliveryExecutor(ExecutorService executor) {
+        deliveryExecutor = executor;
+    }
+
     @Override public LmtpReply getAddressStatus(LmtpAddress address) {
         String addr = address.getEmailAddress();
 
@@ -319,6 +353,8 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         public Account account;
         public Mailbox mbox;
         public ParsedMessage pm;
+        // options pm was parsed with, null if pm wraps a MimeMessage that can not be parsed again
+        public ParsedMessageOptions pmo;
         public boolean esd; // whether endSharedDelivery should be called
         public DeliveryAction action;
 
@@ -384,7 +420,7 @@ public class ZimbraLmtpBackend implements LmtpBackend {
             }
 
             try {
-                blob = StoreManager.getInstance().storeIncoming(in);
+                blob = StoreManager.getInstance().storeIncoming(in, sizeHint);
             } catch (IOException ioe) {
                 throw new UnrecoverableLmtpException("Error in storing incoming message", ioe);
             }
@@ -392,7 +428,7 @@ public class ZimbraLmtpBackend implements LmtpBackend {
             // creating blob for EEW
             try {
                 if (inEEW != null) {
-                    blobEEW = StoreManager.getInstance().storeIncoming(inEEW);
+                    blobEEW = StoreManager.getInstance().storeIncoming(inEEW, sizeHint);
                 }
             } catch (IOException e) {
                 ZimbraLog.lmtp.warn("failed to create blob for EEW", e);
@@ -488,8 +524,10 @@ public class ZimbraLmtpBackend implements LmtpBackend {
 
             // ParsedMessage for users with attachments indexing
             ParsedMessage pmAttachIndex = null;
+            ParsedMessageOptions pmoAttachIndex = null;
             // ParsedMessage for users without attachments indexing
             ParsedMessage pmNoAttachIndex = null;
+            ParsedMessageOptions pmoNoAttachIndex = null;
 
             // message id for logging
             String msgId = null;
@@ -543,15 +581,19 @@ public class ZimbraLmtpBackend implements LmtpBackend {
                             pmo.setAttachmentIndexing(true);
                             ZimbraLog.lmtp.debug("Creating ParsedMessage from %s with attachment indexing enabled", data == null ? "file" : "memory");
                             pmAttachIndex = new ParsedMessage(pmo);
+                            pmoAttachIndex = pmo;
                         }
                         pm = pmAttachIndex;
+                        pmo = pmoAttachIndex;
                     } else {
                         if (pmNoAttachIndex == null) {
                             pmo.setAttachmentIndexing(false);
                             ZimbraLog.lmtp.debug("Creating ParsedMessage from %s with attachment indexing disabled", data == null ? "file" : "memory");
                             pmNoAttachIndex = new ParsedMessage(pmo);
+                            pmoNoAttachIndex = pmo;
                         }
                         pm = pmNoAttachIndex;
+                        pmo = pmoNoAttachIndex;
                     }
 
                     msgId = pm.getMessageID();
@@ -574,7 +616,11 @@ public class ZimbraLmtpBackend implements LmtpBackend {
                             da = DeliveryAction.defer;
                         }
                     }
-                    rcptMap.put(recipient, new RecipientDetail(account, mbox, pm, endSharedDelivery, da));
+                    RecipientDetail rd = new RecipientDetail(account, mbox, pm, endSharedDelivery, da);
+                    if (pmo.getMimeMessage() == null) {
+                        rd.pmo = pmo;
+                    }
+                    rcptMap.put(recipient, rd);
                     if (da == DeliveryAction.deliver) {
                         targetMailboxIds.add(mbox.getId());
                     }
@@ -597,196 +643,62 @@ public class ZimbraLmtpBackend implements LmtpBackend {
             }
 
             DeliveryContext sharedDeliveryCtxt = new DeliveryContext(shared, targetMailboxIds);
-            sharedDeliveryCtxt.setIncomingBlob(blob);
+            sharedDeliveryCtxt.setIncomingBlob(blob).shareStagedBlob();
 
             // instantiating delivery context for EEW
             DeliveryContext sharedDeliveryCtxtEEW = new DeliveryContext(shared, targetMailboxIds);
             if (blobEEW != null && ExternalEmailWarning.getInstance().isEnabled()) {
-                sharedDeliveryCtxtEEW.setIncomingBlob(blobEEW);
+                sharedDeliveryCtxtEEW.setIncomingBlob(blobEEW).shareStagedBlob();
             }
 
             // We now know which addresses are valid and which ParsedMessage
             // version each recipient needs.  Deliver!
-            for (LmtpAddress recipient : recipients) {
-                String rcptEmail = recipient.getEmailAddress();
-                LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
-                RecipientDetail rd = rcptMap.get(recipient);
-                if (rd == null) {
-                    // Account or mailbox not found.
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
-                            envSender, rcptEmail);
-                    recipient.setDeliveryStatus(LmtpReply.PERMANENT_FAILURE);
-                    continue;
-                }
-                if (rd.account != null) {
-                    ZimbraLog.addAccountNameToContext(rd.account.getName());
-                }
-                if (rd.mbox != null) {
-                    ZimbraLog.addMboxToContext(rd.mbox.getId());
-                }
-
-                boolean success = false;
-                try {
-                    switch (rd.action) {
-                    case discard:
-                        ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
+            String deliveryMsgId = msgId;
+            List<Future<?>> deliveries = new ArrayList<Future<?>>();
+            // ParsedMessages shared by the delivery threads, by parse options and default charset
+            Table<ParsedMessageOptions, String, ParsedMessage> parallelMessages = HashBasedTable.create();
+            Map<String, String> logContext = ZimbraLog.getContextMap();
+            try {
+                for (LmtpAddress recipient : recipients) {
+                    String rcptEmail = recipient.getEmailAddress();
+                    RecipientDetail rd = rcptMap.get(recipient);
+                    if (rd == null) {
+                        // Account or mailbox not found.
+                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
                                 envSender, rcptEmail);
-                        if (rd.account.getPrefMailForwardingAddress() != null) {
-                            // mail forwarding is set up
-                            for (LmtpCallback callback : callbacks) {
-                                ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
-                            }
-                        }
-                        reply = LmtpReply.DELIVERY_OK;
-                        break;
-                    case deliver:
-                        Account account = rd.account;
-                        Mailbox mbox = rd.mbox;
-                        ParsedMessage pm = rd.pm;
-                        List<ItemId> addedMessageIds = null;
-                        ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
-                        boolean acquiredLock;
-                        try {
-                            // Wait for the lock, up to the timeout
-                            acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-                        } catch (InterruptedException e) {
-                            acquiredLock = false;
-                        }
-                        if (!acquiredLock) {
-                            ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
-                                    envSender, rcptEmail);
-                            reply = LmtpReply.TEMPORARY_FAILURE;
-                            break;
-                        }
-                        try {
-                            if (dedupe(pm, mbox)) {
-                                // message was already delivered to this mailbox
-                                ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
-                            } else if (mbox.dedupeForSelfMsg(pm)) {
-                                ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
-                                        pm.getMessageID());
-
-                            } else if (recipient.getSkipFilters()) {
-                                msgId = pm.getMessageID();
-                                int folderId = Mailbox.ID_FOLDER_INBOX;
-                                if (recipient.getFolder() != null) {
-                                    try {
-                                        Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
-                                        folderId = folder.getId();
-                                    } catch (ServiceException se) {
-                                        if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
-                                            Folder folder = mbox.createFolder(null, recipient.getFolder(),
-                                                    new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
-                                            folderId = folder.getId();
-                                        } else {
-                                            throw se;
-                                        }
-                                    }
-                                }
-                                int flags = Flag.BITMASK_UNREAD;
-                                if (recipient.getFlags() != null) {
-                                    flags = Flag.toBitmask(recipient.getFlags());
-                                }
-                                DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
-                                dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
-                                Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                            } else if (!DebugConfig.disableIncomingFilter) {
-                                // Get msgid first, to avoid having to reopen and reparse the blob
-                                // file if Mailbox.addMessageInternal() closes it.
-                                pm.getMessageID();
-                                if (blobEEW != null && ExternalEmailWarning.getInstance().isEnabled()
-                                        && ExternalEmailWarning.getInstance().isExternal(account.getName(),
-                                                envSender)) {
-                                    // invoking for EEW
-                                    addedMessageIds = RuleManager.applyRulesToIncomingMessage(null, mbox, pm,
-                                            (int) blobEEW.getRawSize(), rcptEmail, env, sharedDeliveryCtxtEEW,
-                                            Mailbox.ID_FOLDER_INBOX, false, true);
-                                } else {
-                                    // invoking for non-EEW
-                                    addedMessageIds = RuleManager.applyRulesToIncomingMessage(
-                                        null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
-                                        Mailbox.ID_FOLDER_INBOX, false, true);
-                                }
-                            } else {
-                                pm.getMessageID();
-                                DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
-                                dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
-                                Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                            }
-                            success = true;
-                            if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                addToDedupeCache(pm, mbox);
-                            }
-                        } finally {
-                            lock.unlock();
-                        }
-
-                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                            // Execute callbacks
-                            for (LmtpCallback callback : callbacks) {
-                                for (ItemId id : addedMessageIds) {
-                                    if (id.belongsTo(mbox)) {
-                                        // Message was added to the local mailbox, as opposed to a mountpoint.
-                                        ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                        try {
-                                            Message msg = mbox.getMessageById(null, id.getId());
-                                            callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
-                                        } catch (OutOfMemoryError oome) {
-                                            Zimbra.halt("LMTP callback failed", oome);
-                                        } catch (Throwable t) {
-                                            ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
-                                        }
-                                    }
+                        recipient.setDeliveryStatus(LmtpReply.PERMANENT_FAILURE);
+                        continue;
+                    }
+                    ParsedMessage parallelPm = null;
+                    if (canDeliverInParallel(env, recipient, rd, blobEEW, sharedDeliveryCtxt, sharedDeliveryCtxtEEW)) {
+                        parallelPm = getParallelParsedMessage(rd, parallelMessages);
+                    }
+                    if (parallelPm != null) {
+                        ParsedMessage pm = parallelPm;
+                        deliveries.add(deliveryExecutor.submit(new Runnable() {
+                            @Override
+                            public void run() {
+                                ZimbraLog.setContext(logContext);
+                                ZimbraLog.addMsgIdToContext(deliveryMsgId);
+                                try {
+                                    deliverToRecipient(env, recipient, rd, pm, blob, blobEEW,
+                                            sharedDeliveryCtxt, sharedDeliveryCtxtEEW, deliveryMsgId);
+                                } finally {
+                                    ZimbraLog.clearContext();
                                 }
                             }
-                        }
-                        reply = LmtpReply.DELIVERY_OK;
-                        break;
-                    case defer:
-                        // Delivery to mailbox skipped.  Let MTA retry again later.
-                        // This case happens for shared delivery to a mailbox in
-                        // backup mode.
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
-                                envSender, rcptEmail);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                        break;
-                    }
-                } catch (DeliveryServiceException e) {
-                    ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
-                    reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
-                } catch (ServiceException e) {
-                    if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED) || e.getCode().equals(MailServiceException.DOMAIN_QUOTA_EXCEEDED)) {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
-                        if (config.isPermanentFailureWhenOverQuota()) {
-                            reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
-                        } else {
-                            reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
-                        }
-                    } else if (e.isReceiversFault()) {
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
+                        }));
                     } else {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (Exception e) {
-                    reply = LmtpReply.TEMPORARY_FAILURE;
-                    ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                } finally {
-                    if (rd.action == DeliveryAction.deliver && !success) {
-                        // Message was not delivered.  Remove it from the dedupe
-                        // cache so we don't dedupe it on LMTP retry.
-                        removeFromDedupeCache(msgId, rd.mbox);
-                    }
-                    recipient.setDeliveryStatus(reply);
-                    if (shared && rd != null && rd.esd) {
-                        rd.mbox.endSharedDelivery();
-                        rd.esd = false;
+                        deliverToRecipient(env, recipient, rd, rd.pm, blob, blobEEW,
+                                sharedDeliveryCtxt, sharedDeliveryCtxtEEW, msgId);
                     }
                 }
+            } finally {
+                // the delivery threads must be done before the shared delivery is ended
+                // and the incoming blob is cleaned up
+                awaitDeliveries(deliveries);
+                sharedDeliveryCtxt.releaseStagedBlob();
+                sharedDeliveryCtxtEEW.releaseStagedBlob();
             }
 
             if (LC.lmtp_extended_logs_enabled.booleanValue()) {
@@ -828,6 +740,291 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
+    /**
+     * A recipient of a shared delivery can be handed to a delivery thread once the delivery
+     * context it uses has stored the message blob (later recipients only link to it and
+     * don't log another StoreIncomingBlob), and its message can be parsed again into the
+     * ParsedMessage the delivery threads share (see {@link #getParallelParsedMessage}).
+     * Deliveries to the same mailbox are still serialized by {@link #mailboxDeliveryLocks}.
+     */
+    private boolean canDeliverInParallel(LmtpEnvelope env, LmtpAddress recipient, RecipientDetail rd,
+            Blob blobEEW, DeliveryContext sharedDeliveryCtxt, DeliveryContext sharedDeliveryCtxtEEW) {
+        if (deliveryExecutor == null || !sharedDeliveryCtxt.getShared() || rd.action != DeliveryAction.deliver ||
+                rd.pmo == null || sharedDeliveryCtxt.isFirst()) {
+            return false;
+        }
+        if (blobEEW != null && ExternalEmailWarning.getInstance().isEnabled() && sharedDeliveryCtxtEEW.isFirst() &&
+                !recipient.getSkipFilters() && !DebugConfig.disableIncomingFilter &&
+                ExternalEmailWarning.getInstance().isExternal(rd.account.getName(), env.getSender().getEmailAddress())) {
+            // first recipient of the EEW version of the message
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the ParsedMessage the delivery threads share for the recipient's default charset,
+     * parsed and analyzed up front once per charset so that the threads only read it.  It is never
+     * the one delivered from the LMTP thread, since delivery resets that to each recipient's
+     * charset.  Returns {@code null} if the message can't be prepared, in which case the
+     * recipient is delivered from the LMTP thread.
+     */
+    private static ParsedMessage getParallelParsedMessage(RecipientDetail rd,
+            Table<ParsedMessageOptions, String, ParsedMessage> parallelMessages) {
+        String charset = rd.account.getPrefMailDefaultCharset();
+        ParsedMessage pm = parallelMessages.get(rd.pmo, Strings.nullToEmpty(charset));
+        if (pm == null) {
+            try {
+                pm = new ParsedMessage(rd.pmo).setDefaultCharset(charset).prepareForSharedDelivery();
+            } catch (ServiceException e) {
+                ZimbraLog.lmtp.warn("unable to prepare message for parallel delivery, delivering serially", e);
+                return null;
+            }
+            parallelMessages.put(rd.pmo, Strings.nullToEmpty(charset), pm);
+        }
+        return pm;
+    }
+
+    private void awaitDeliveries(List<Future<?>> deliveries) {
+        boolean interrupted = false;
+        for (Future<?> delivery : deliveries) {
+            while (true) {
+                try {
+                    delivery.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // keep waiting, the delivery threads use the shared delivery state
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    ZimbraLog.lmtp.warn("parallel delivery failed", e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Delivers the message to one local recipient and sets its delivery status.  Called from
+     * the LMTP thread, or from a delivery thread for the recipients of a shared delivery after
+     * the message blob has been stored once.
+     *
+     * @param pm the message to deliver: {@link RecipientDetail#pm}, or the ParsedMessage shared
+     *           by the delivery threads
+     */
+    private void deliverToRecipient(LmtpEnvelope env, LmtpAddress recipient, RecipientDetail rd,
+            ParsedMessage pm, Blob blob, Blob blobEEW, DeliveryContext sharedDeliveryCtxt, DeliveryContext sharedDeliveryCtxtEEW,
+            String msgId) {
+        String envSender = env.getSender().getEmailAddress();
+        String rcptEmail = recipient.getEmailAddress();
+        boolean shared = env.getLocalRecipients().size() > 1;
+        LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
+        if (rd.account != null) {
+            ZimbraLog.addAccountNameToContext(rd.account.getName());
+        }
+        if (rd.mbox != null) {
+            ZimbraLog.addMboxToContext(rd.mbox.getId());
+        }
+
+        boolean success = false;
+        try {
+            switch (rd.action) {
+            case discard:
+                ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
+                        envSender, rcptEmail);
+                if (rd.account.getPrefMailForwardingAddress() != null) {
+                    // mail forwarding is set up
+                    for (LmtpCallback callback : callbacks) {
+                        ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                        callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
+                    }
+                }
+                reply = LmtpReply.DELIVERY_OK;
+                break;
+            case deliver:
+                Account account = rd.account;
+                Mailbox mbox = rd.mbox;
+                List<ItemId> addedMessageIds;
+                try {
+                    addedMessageIds = deliverWithMailboxDeliveryLock(env, recipient, account, mbox, pm, blob, blobEEW,
+                            sharedDeliveryCtxt, sharedDeliveryCtxtEEW);
+                } catch (TimeoutException e) {
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
+                            envSender, rcptEmail);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                    break;
+                }
+                success = true;
+
+                if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                    // Execute callbacks
+                    for (LmtpCallback callback : callbacks) {
+                        for (ItemId id : addedMessageIds) {
+                            if (id.belongsTo(mbox)) {
+                                // Message was added to the local mailbox, as opposed to a mountpoint.
+                                ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                                try {
+                                    Message msg = mbox.getMessageById(null, id.getId());
+                                    callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
+                                } catch (OutOfMemoryError oome) {
+                                    Zimbra.halt("LMTP callback failed", oome);
+                                } catch (Throwable t) {
+                                    ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
+                                }
+                            }
+                        }
+                    }
+                }
+                reply = LmtpReply.DELIVERY_OK;
+                break;
+            case defer:
+                // Delivery to mailbox skipped.  Let MTA retry again later.
+                // This case happens for shared delivery to a mailbox in
+                // backup mode.
+                ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
+                        envSender, rcptEmail);
+                reply = LmtpReply.TEMPORARY_FAILURE;
+                break;
+            }
+        } catch (DeliveryServiceException e) {
+            ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: sieve filter rule", envSender, rcptEmail);
+            reply = LmtpReply.PERMANENT_MESSAGE_REFUSED;
+        } catch (ServiceException e) {
+            if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED) || e.getCode().equals(MailServiceException.DOMAIN_QUOTA_EXCEEDED)) {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
+                if (config.isPermanentFailureWhenOverQuota()) {
+                    reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
+                } else {
+                    reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
+                }
+            } else if (e.isReceiversFault()) {
+                ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.TEMPORARY_FAILURE;
+            } else {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.PERMANENT_FAILURE;
+            }
+        } catch (Exception e) {
+            reply = LmtpReply.TEMPORARY_FAILURE;
+            ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+        } finally {
+            if (rd.action == DeliveryAction.deliver && !success) {
+                // Message was not delivered.  Remove it from the dedupe
+                // cache so we don't dedupe it on LMTP retry.
+                removeFromDedupeCache(msgId, rd.mbox);
+            }
+            recipient.setDeliveryStatus(reply);
+            if (shared && rd != null && rd.esd) {
+                rd.mbox.endSharedDelivery();
+                rd.esd = false;
+            }
+        }
+    }
+
+    /**
+     * Runs {@link #deliverToMailbox} holding the delivery lock of the mailbox.
+     *
+     * @throws TimeoutException if the lock could not be acquired within zimbra_mailbox_lock_timeout
+     */
+    private List<ItemId> deliverWithMailboxDeliveryLock(LmtpEnvelope env, LmtpAddress recipient,
+            Account account, Mailbox mbox, ParsedMessage pm, Blob blob, Blob blobEEW,
+            DeliveryContext sharedDeliveryCtxt, DeliveryContext sharedDeliveryCtxtEEW)
+    throws ServiceException, TimeoutException, ExecutionException {
+        ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
+        long timeout = TimeUnit.SECONDS.toMillis(LC.zimbra_mailbox_lock_timeout.intValue());
+        boolean acquiredLock;
+        try {
+            // Wait for the lock, up to the timeout
+            acquiredLock = lock.tryLock(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            acquiredLock = false;
+        }
+        if (!acquiredLock) {
+            throw new TimeoutException();
+        }
+        try {
+            return deliverToMailbox(env, recipient, account, mbox, pm, blob, blobEEW,
+                    sharedDeliveryCtxt, sharedDeliveryCtxtEEW);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the message to the mailbox unless it is a duplicate, applying the incoming filters.
+     * Must be called holding the delivery lock of the mailbox.
+     *
+     * @return the ids of the added messages, null if none was added
+     */
+    private List<ItemId> deliverToMailbox(LmtpEnvelope env, LmtpAddress recipient, Account account, Mailbox mbox,
+            ParsedMessage pm, Blob blob, Blob blobEEW, DeliveryContext sharedDeliveryCtxt,
+            DeliveryContext sharedDeliveryCtxtEEW) throws ServiceException {
+        String envSender = env.getSender().getEmailAddress();
+        String rcptEmail = recipient.getEmailAddress();
+        List<ItemId> addedMessageIds = null;
+        if (dedupe(pm, mbox)) {
+            // message was already delivered to this mailbox
+            ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
+        } else if (mbox.dedupeForSelfMsg(pm)) {
+            ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
+                    pm.getMessageID());
+
+        } else if (recipient.getSkipFilters()) {
+            int folderId = Mailbox.ID_FOLDER_INBOX;
+            if (recipient.getFolder() != null) {
+                try {
+                    Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
+                    folderId = folder.getId();
+                } catch (ServiceException se) {
+                    if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
+                        Folder folder = mbox.createFolder(null, recipient.getFolder(),
+                                new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+                        folderId = folder.getId();
+                    } else {
+                        throw se;
+                    }
+                }
+            }
+            int flags = Flag.BITMASK_UNREAD;
+            if (recipient.getFlags() != null) {
+                flags = Flag.toBitmask(recipient.getFlags());
+            }
+            DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
+            dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
+            Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+        } else if (!DebugConfig.disableIncomingFilter) {
+            // Get msgid first, to avoid having to reopen and reparse the blob
+            // file if Mailbox.addMessageInternal() closes it.
+            pm.getMessageID();
+            if (blobEEW != null && ExternalEmailWarning.getInstance().isEnabled()
+                    && ExternalEmailWarning.getInstance().isExternal(account.getName(),
+                            envSender)) {
+                // invoking for EEW
+                addedMessageIds = RuleManager.applyRulesToIncomingMessage(null, mbox, pm,
+                        (int) blobEEW.getRawSize(), rcptEmail, env, sharedDeliveryCtxtEEW,
+                        Mailbox.ID_FOLDER_INBOX, false, true);
+            } else {
+                // invoking for non-EEW
+                addedMessageIds = RuleManager.applyRulesToIncomingMessage(
+                    null, mbox, pm, (int) blob.getRawSize(), rcptEmail, env, sharedDeliveryCtxt,
+                    Mailbox.ID_FOLDER_INBOX, false, true);
+            }
+        } else {
+            pm.getMessageID();
+            DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+            dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
+            Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
+            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+        }
+        if (addedMessageIds != null && addedMessageIds.size() > 0) {
+            addToDedupeCache(pm, mbox);
+        }
+        return addedMessageIds;
+    }
+
     private void deliverMessageToRemoteMailboxes(Blob blob, byte[] data, LmtpEnvelope env) {
         Multimap<String, LmtpAddress> serverToRecipientsMap = env.getRemoteServerToRecipientsMap();
         for (String server : serverToRecipientsMap.keySet()) {
@@ -21,12 +21,16 @@
 package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.StoreManager.StoreFeature;
 
 /**
  * Class that facilitates blob file sharing when delivering a message to
@@ -40,10 +44,16 @@ public class DeliveryContext {
 
     private boolean mShared;
     private Blob mIncomingBlob;
-    private MailboxBlob mMailboxBlob;
+    // written by the first delivery and read by parallel deliveries to the other recipients
+    private volatile MailboxBlob mMailboxBlob;
     private List<Integer> mMailboxIdList;
-    private boolean mIsFirst = true;
+    private volatile boolean mIsFirst = true;
     private Map <Integer,Blob> mailBoxBlobMap;
+    // the incoming blob staged once for all recipients, see shareStagedBlob()
+    private StagedBlob mStagedBlob;
+    // references to mStagedBlob: one held by the context while sharing, plus one per recipient using it
+    private int mStagedBlobRefs;
+    private boolean mShareStagedBlob;
 
     /**
      * Constructor for non-shared case
@@ -64,7 +74,7 @@ public class DeliveryContext {
         mMailboxBlob = null;
         mMailboxIdList = mboxIdList;
         if (mShared) {
-            mailBoxBlobMap =  new HashMap<Integer,Blob>();
+            mailBoxBlobMap =  new ConcurrentHashMap<Integer,Blob>();
         }
     }
 
@@ -126,6 +136,79 @@ public class DeliveryContext {
         }
     }
 
+    /**
+     * Makes the recipients of a shared delivery use a single staged copy of the incoming blob,
+     * if the store supports it.  The caller must call {@link #releaseStagedBlob()} once the
+     * delivery is done.
+     *
+     * This only saves work when staging copies the blob, which for {@code FileBlobStore} is when
+     * the current message volume changed after the blob was received.  Otherwise the blob is
+     * already hard linked into each mailbox, and external stores do not share staged blobs at all.
+     */
+    public synchronized DeliveryContext shareStagedBlob() {
+        if (mShared && !mShareStagedBlob) {
+            mShareStagedBlob = true;
+            mStagedBlobRefs = 1;
+        }
+        return this;
+    }
+
+    /**
+     * Stages the blob for delivery to a mailbox.  The returned blob must be released with
+     * {@link #release(StoreManager, StagedBlob)} instead of being deleted.
+     */
+    public StagedBlob stage(StoreManager sm, Blob blob, Mailbox mbox) throws IOException, ServiceException {
+        if (blob == mIncomingBlob && sm.supports(StoreFeature.SHARED_STAGING)) {
+            synchronized (this) {
+                if (mShareStagedBlob) {
+                    // later recipients wait for the first one to stage the blob
+                    if (mStagedBlob == null) {
+                        mStagedBlob = sm.stage(blob, mbox);
+                    }
+                    mStagedBlobRefs++;
+                    return mStagedBlob;
+                }
+            }
+        }
+        return sm.stage(blob, mbox);
+    }
+
+    /**
+     * Releases a blob returned by {@link #stage(StoreManager, Blob, Mailbox)}; the shared staged
+     * blob is deleted once it is released by all recipients and the context.
+     */
+    public void release(StoreManager sm, StagedBlob staged) {
+        synchronized (this) {
+            if (staged != null && staged == mStagedBlob) {
+                if (--mStagedBlobRefs > 0) {
+                    return;
+                }
+                mStagedBlob = null;
+            }
+        }
+        sm.quietDelete(staged);
+    }
+
+    /**
+     * Ends sharing the staged blob, see {@link #shareStagedBlob()}.
+     */
+    public void releaseStagedBlob() {
+        StagedBlob staged;
+        synchronized (this) {
+            if (!mShareStagedBlob) {
+                return;
+            }
+            mShareStagedBlob = false;
+            staged = mStagedBlob;
+            // drop the context's own reference
+            if (staged == null || --mStagedBlobRefs > 0) {
+                return;
+            }
+            mStagedBlob = null;
+        }
+        StoreManager.getInstance().quietDelete(staged);
+    }
+
    public Blob getMailBoxSpecificBlob(int mailBoxId) {
         if(mailBoxBlobMap != null) {
             return mailBoxBlobMap.get(mailBoxId);
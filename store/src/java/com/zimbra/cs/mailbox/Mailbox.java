@@ -6326,7 +6326,7 @@ public class Mailbox implements MailboxStore {
             deleteIncoming = true;
         }
 
-        StagedBlob staged = sm.stage(blob, this);
+        StagedBlob staged = dctxt.stage(sm, blob, this);
 
         Account account = this.getAccount();
         boolean localMsgMarkedRead = false;
@@ -6355,7 +6355,7 @@ public class Mailbox implements MailboxStore {
                     sm.quietDelete(dctxt.getMailBoxSpecificBlob(mId));
                     dctxt.clearMailBoxSpecificBlob(mId);
                 }
-                sm.quietDelete(staged);
+                dctxt.release(sm, staged);
             }
         } finally {
             lock.release();
@@ -9768,6 +9768,41 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Points the blobs of items at a new locator after the store copied them there, e.g. to another volume.
+     * Blobs whose locator or revision changed since they were copied are left alone.
+     *
+     * @return the blobs that now have the new locator
+     */
+    public List<MailboxBlob.MailboxBlobInfo> updateBlobLocators(List<MailboxBlob.MailboxBlobInfo> blobs, String locator)
+    throws ServiceException {
+        List<MailboxBlob.MailboxBlobInfo> updated = new ArrayList<MailboxBlob.MailboxBlobInfo>(blobs.size());
+        if (blobs.isEmpty()) {
+            return updated;
+        }
+        lock.lock();
+        try {
+            DbConnection conn = DbPool.getConnection(this);
+            try {
+                for (MailboxBlob.MailboxBlobInfo info : blobs) {
+                    if (DbMailItem.updateLocator(conn, this, info.itemId, info.revision, info.locator, locator) > 0) {
+                        updated.add(info);
+                    }
+                }
+                conn.commit();
+            } finally {
+                conn.closeQuietly();
+            }
+            // cached items still refer to the old locator
+            for (MailboxBlob.MailboxBlobInfo info : updated) {
+                uncacheItem(info.itemId);
+            }
+        } finally {
+            lock.release();
+        }
+        return updated;
+    }
+
     /**
      * Optimize the underlying database.
      */
@@ -27,6 +27,7 @@ import com.zimbra.cs.account.Account;
 import com.zimbra.cs.datasource.DataSourceFolderListener;
 import com.zimbra.cs.fb.FreeBusyProvider;
 import com.zimbra.cs.filter.FilterListener;
+import com.zimbra.cs.imap.ImapChangeJournal;
 import com.zimbra.cs.mailbox.MailItem.Type;
 import com.zimbra.cs.mailbox.acl.AclPushListener;
 import com.zimbra.cs.mailbox.acl.ShareExpirationListener;
@@ -96,6 +97,8 @@ public abstract class MailboxListener {
         register(new FreeBusyProvider.Listener());
         register(new DataSourceFolderListener());
         register(new ShareStartStopListener());
+        // does nothing until IMAP creates a journal, so journals can be enabled without a restart
+        register(new ImapChangeJournal.Listener());
         if (application.supports(AclPushListener.class)) {
             register(new AclPushListener());
         }
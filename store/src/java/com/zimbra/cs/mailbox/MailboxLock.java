@@ -110,13 +110,34 @@ public final class MailboxLock {
     }
 
     private boolean tryLockWithTimeout(boolean write) throws InterruptedException {
-        if (write) {
-            return zLock.writeLock().tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-        } else {
-            return zLock.readLock().tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+        long start = System.nanoTime();
+        try {
+            if (write) {
+                return zLock.writeLock().tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+            } else {
+                return zLock.readLock().tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+            }
+        } finally {
+            LOCK_WAIT_NANOS.get()[0] += System.nanoTime() - start;
         }
     }
 
+    // time the current thread spent waiting for contended mailbox locks
+    private static final ThreadLocal<long[]> LOCK_WAIT_NANOS = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * Returns the total time in milliseconds the current thread has spent waiting for mailbox locks held by other
+     * threads. Callers measure the wait of an operation as the difference of two calls.
+     */
+    public static long getLockWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(LOCK_WAIT_NANOS.get()[0]);
+    }
+
     private ThreadLocal<Boolean> assertReadLocks = null;
 
     private synchronized boolean neverReadBeforeWrite(boolean write) {
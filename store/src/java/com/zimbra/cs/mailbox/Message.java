@@ -37,11 +37,13 @@ import com.zimbra.common.calendar.ZCalendar.ICalTok;
 import com.zimbra.common.calendar.ZCalendar.ZProperty;
 import com.zimbra.common.calendar.ZCalendar.ZVCalendar;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.Color;
 import com.zimbra.common.mime.InternetAddress;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.zmime.ZMimeMessage;
@@ -51,6 +53,7 @@ import com.zimbra.cs.account.CalendarResource;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.Rights.User;
 import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.imap.ImapMessage;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.mailbox.MailItem.CustomMetadata.CustomMetadataList;
@@ -204,6 +207,11 @@ public class Message extends MailItem {
 
     private static final Log LOG = LogFactory.getLog(Message.class);
 
+    private static final String FN_IMAP_BODYSTRUCTURE = "bs";
+    private static final String FN_IMAP_ENVELOPE = "e";
+    private static final String FN_IMAP_DIGEST = "d";
+    private static final String FN_IMAP_THREAD_HEADERS = "th";
+
     private String sender;
     private String recipients;
     private String fragment;
@@ -213,6 +221,14 @@ public class Message extends MailItem {
     private ArrayList<CalendarItemInfo> calendarItemInfos;
     private String calendarIntendedFor;
 
+    // IMAP BODYSTRUCTURE and ENVELOPE computed at delivery, and the digest of the content they describe
+    private String imapBodyStructure;
+    private String imapEnvelope;
+    private String imapStructureDigest;
+    // IMAP THREAD headers computed at delivery, and the digest of the content they were read from
+    private String imapThreadHeaders;
+    private String imapThreadDigest;
+
     Message(Mailbox mbox, UnderlyingData ud) throws ServiceException {
         this(mbox, ud, false);
     }
@@ -469,10 +485,13 @@ public class Message extends MailItem {
      * @see TnefConverter
      * @see UUEncodeConverter */
     public MimeMessage getMimeMessage(boolean runConverters) throws ServiceException {
-        MimeMessage mm = MessageCache.getMimeMessage(this, runConverters);
+        return fixMimeMessage(MessageCache.getMimeMessage(this, runConverters), mMailbox.getAccount());
+    }
+
+    private static MimeMessage fixMimeMessage(MimeMessage mm, Account acct) {
         if (mm instanceof ZMimeMessage && ZMimeMessage.usingZimbraParser()) {
             try {
-                mm = new Mime.FixedMimeMessage(mm, mMailbox.getAccount());
+                mm = new Mime.FixedMimeMessage(mm, acct);
             } catch (MessagingException e) {
                 ZimbraLog.mailbox.info("could not copy MimeMessage; using original", e);
             }
@@ -480,6 +499,106 @@ public class Message extends MailItem {
         return mm;
     }
 
+    /**
+     * Returns the IMAP BODYSTRUCTURE of the message stored at delivery, or null if none is stored for the
+     * current content (see LC imap_stored_structure_max_length).
+     */
+    public String getImapBodyStructure() {
+        return isImapStructureCurrent() ? imapBodyStructure : null;
+    }
+
+    /**
+     * Returns the IMAP ENVELOPE of the message stored at delivery, or null if none is stored for the
+     * current content.
+     */
+    public String getImapEnvelope() {
+        return isImapStructureCurrent() ? imapEnvelope : null;
+    }
+
+    private boolean isImapStructureCurrent() {
+        return imapStructureDigest != null && imapStructureDigest.equals(getDigest());
+    }
+
+    private static Metadata encodeImapStructure(ParsedMessage pm, Account acct, String digest) {
+        int maxLength = LC.imap_stored_structure_max_length.intValue();
+        // MIME built in memory may not match what IMAP later parses from the blob, e.g. in part sizes
+        if (maxLength <= 0 || digest == null || !pm.hasRawContent()) {
+            return null;
+        }
+        Pair<String, String> structure = ImapMessage.serializeForStorage(
+                fixMimeMessage(pm.getOriginalMessage(), acct), maxLength);
+        if (structure == null) {
+            return null;
+        }
+        Metadata meta = new Metadata();
+        meta.put(FN_IMAP_BODYSTRUCTURE, structure.getFirst());
+        meta.put(FN_IMAP_ENVELOPE, structure.getSecond());
+        meta.put(FN_IMAP_DIGEST, digest);
+        return meta;
+    }
+
+    private Metadata encodeImapStructure() {
+        if (imapStructureDigest == null) {
+            return null;
+        }
+        Metadata meta = new Metadata();
+        meta.put(FN_IMAP_BODYSTRUCTURE, imapBodyStructure);
+        meta.put(FN_IMAP_ENVELOPE, imapEnvelope);
+        meta.put(FN_IMAP_DIGEST, imapStructureDigest);
+        return meta;
+    }
+
+    private void decodeImapStructure(Metadata meta) {
+        if (meta == null) {
+            imapBodyStructure = imapEnvelope = imapStructureDigest = null;
+        } else {
+            imapBodyStructure = meta.get(FN_IMAP_BODYSTRUCTURE, null);
+            imapEnvelope = meta.get(FN_IMAP_ENVELOPE, null);
+            imapStructureDigest = meta.get(FN_IMAP_DIGEST, null);
+        }
+    }
+
+    /**
+     * Returns the headers IMAP THREAD uses, as stored at delivery, or null if none are stored for the
+     * current content.  The subject is not part of them, it is stored with the message anyway.
+     */
+    public String getImapThreadHeaders() {
+        return imapThreadDigest != null && imapThreadDigest.equals(getDigest()) ? imapThreadHeaders : null;
+    }
+
+    private static Metadata encodeImapThread(ParsedMessage pm, long date, String digest) {
+        if (digest == null) {
+            return null;
+        }
+        String headers = ImapMessage.serializeThreadHeaders(pm.getMimeMessage(), date);
+        if (headers == null) {
+            return null;
+        }
+        Metadata meta = new Metadata();
+        meta.put(FN_IMAP_THREAD_HEADERS, headers);
+        meta.put(FN_IMAP_DIGEST, digest);
+        return meta;
+    }
+
+    private Metadata encodeImapThread() {
+        if (imapThreadDigest == null) {
+            return null;
+        }
+        Metadata meta = new Metadata();
+        meta.put(FN_IMAP_THREAD_HEADERS, imapThreadHeaders);
+        meta.put(FN_IMAP_DIGEST, imapThreadDigest);
+        return meta;
+    }
+
+    private void decodeImapThread(Metadata meta) {
+        if (meta == null) {
+            imapThreadHeaders = imapThreadDigest = null;
+        } else {
+            imapThreadHeaders = meta.get(FN_IMAP_THREAD_HEADERS, null);
+            imapThreadDigest = meta.get(FN_IMAP_DIGEST, null);
+        }
+    }
+
     @Override
     boolean isTaggable() {
         return true;
@@ -592,7 +711,9 @@ public class Message extends MailItem {
         data.setFlags(flags & (Flag.FLAGS_MESSAGE | Flag.FLAGS_GENERIC));
         data.setTags(ntags);
         data.setSubject(pm.getNormalizedSubject());
-        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null).toString();
+        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null)
+                .put(Metadata.FN_IMAP_STRUCTURE, encodeImapStructure(pm, acct, staged.getDigest()))
+                .put(Metadata.FN_IMAP_THREAD, encodeImapThread(pm, data.date * 1000L, staged.getDigest())).toString();
         data.unreadCount = unread ? 1 : 0;
         data.contentChanged(mbox);
 
@@ -1481,9 +1602,18 @@ public class Message extends MailItem {
             mData.size = newSize;
         }
 
+        // content reanalyzed from the blob keeps the IMAP structure and THREAD headers stored for it at delivery
+        if (!isImapStructureCurrent()) {
+            decodeImapStructure(encodeImapStructure(pm, acct, getDigest()));
+        }
+        if (getImapThreadHeaders() == null) {
+            decodeImapThread(encodeImapThread(pm, getDate(), getDigest()));
+        }
+
         // rewrite the DB row to reflect our new view
         saveData(new DbMailItem(mMailbox), encodeMetadata(mRGBColor, mMetaVersion, mVersion, mExtendedData, pm, fragment,
-                draftInfo, calendarItemInfos, calendarIntendedFor));
+                draftInfo, calendarItemInfos, calendarIntendedFor).put(Metadata.FN_IMAP_STRUCTURE, encodeImapStructure())
+                .put(Metadata.FN_IMAP_THREAD, encodeImapThread()));
 
         if (parent instanceof VirtualConversation) {
             ((VirtualConversation) parent).recalculateMetadata(Collections.singletonList(this));
@@ -1537,6 +1667,8 @@ public class Message extends MailItem {
             }
         }
         calendarIntendedFor = meta.get(Metadata.FN_CAL_INTENDED_FOR, null);
+        decodeImapStructure(meta.getMap(Metadata.FN_IMAP_STRUCTURE, true));
+        decodeImapThread(meta.getMap(Metadata.FN_IMAP_THREAD, true));
 
         Metadata draftMeta = meta.getMap(Metadata.FN_DRAFT, true);
         if (draftMeta != null) {
@@ -1558,7 +1690,9 @@ public class Message extends MailItem {
     @Override
     Metadata encodeMetadata(Metadata meta) {
         return encodeMetadata(meta, mRGBColor, mMetaVersion, mVersion, mExtendedData, sender, recipients, fragment,
-                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor);
+                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor)
+                .put(Metadata.FN_IMAP_STRUCTURE, encodeImapStructure())
+                .put(Metadata.FN_IMAP_THREAD, encodeImapThread());
     }
 
     private static Metadata encodeMetadata(Color color, int metaVersion, int version, CustomMetadataList extended, ParsedMessage pm,
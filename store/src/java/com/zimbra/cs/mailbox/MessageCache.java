@@ -342,7 +342,7 @@ public class MessageCache {
         if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
             return StoreManager.getReaderSMInstance(mblob.getLocator()).getContent(mblob);
         } else {
-            return StoreManager.getReaderSMInstance(mblob.getLocator()).getContent(mblob.getLocalBlob());
+            return StoreManager.getReaderSMInstance(mblob.getLocator()).getLocalContent(mblob);
         }
     }
 
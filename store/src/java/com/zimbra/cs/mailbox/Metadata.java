@@ -76,6 +76,8 @@ public final class Metadata {
     public static final String FN_DELETED_UNREAD   = "i4du";
     public static final String FN_RECENT           = "i4l";
     public static final String FN_RECENT_CUTOFF    = "i4r";
+    public static final String FN_IMAP_STRUCTURE   = "i4s";
+    public static final String FN_IMAP_THREAD      = "i4t";
     public static final String FN_REMOTE_ID        = "id";
     public static final String FN_IDENTITY_ID      = "idnt";
     public static final String FN_INV              = "inv";
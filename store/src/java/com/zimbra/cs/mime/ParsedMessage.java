@@ -17,7 +17,6 @@
 
 package com.zimbra.cs.mime;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -27,13 +26,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.mail.Address;
 import javax.mail.Header;
@@ -50,6 +48,7 @@ import javax.mail.util.SharedByteArrayInputStream;
 import org.apache.lucene.document.Document;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
@@ -62,9 +61,9 @@ import com.zimbra.common.mime.ContentType;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.mime.shim.JavaMailInternetAddress;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.BufferStream;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.EmailUtil;
-import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.L10nUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
@@ -87,6 +86,7 @@ import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.Threader;
 import com.zimbra.cs.object.ObjectHandlerException;
 import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.BlobCodec;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.StoreManager;
 import com.zimbra.cs.util.JMSession;
@@ -118,6 +118,7 @@ public final class ParsedMessage {
     private boolean indexAttachments;
     private int numParseErrors = 0;
     private String defaultCharset;
+    private boolean defaultCharsetSet = false;
 
     /** if TRUE then there was a _temporary_ failure analyzing the message.  We should attempt
      * to re-index this message at a later time */
@@ -146,7 +147,9 @@ public final class ParsedMessage {
     private CalendarPartInfo calendarPartInfo;
     private boolean wasMutated;
     private InputStream sharedStream;
-    private final Map<Mailbox, Threader> threaders = new HashMap<Mailbox, Threader>();
+    // size of the raw message if known, used to size buffers holding a copy of it
+    private long rawSize = -1;
+    private final Map<Mailbox, Threader> threaders = new ConcurrentHashMap<Mailbox, Threader>();
     private String dataSourceId = null;
 
     public ParsedMessage(MimeMessage msg, boolean indexAttachments) throws ServiceException {
@@ -208,12 +211,14 @@ public final class ParsedMessage {
             throw ServiceException.FAILURE("Message data cannot be null or empty.", null);
         }
         sharedStream = new SharedByteArrayInputStream(rawData);
+        rawSize = rawData.length;
         initialize(receivedDate, indexAttachments);
     }
 
     private void initialize(Blob blob, Long receivedDate, boolean indexAttachments)
             throws IOException, ServiceException {
         sharedStream = StoreManager.getInstance().getContent(blob);
+        rawSize = blob.getRawSize();
         initialize(receivedDate, indexAttachments);
     }
 
@@ -227,12 +232,13 @@ public final class ParsedMessage {
         }
 
         long size;
-        if (FileUtil.isGzipped(file)) {
-            size = ByteUtil.getDataLength(new GZIPInputStream(new FileInputStream(file)));
+        if (BlobCodec.detect(file) != null) {
+            size = ByteUtil.getDataLength(BlobCodec.decompressAny(new FileInputStream(file)));
         } else {
             size = file.length();
         }
         sharedStream = new BlobInputStream(file, size);
+        rawSize = size;
         initialize(receivedDate, indexAttachments);
     }
 
@@ -260,7 +266,7 @@ public final class ParsedMessage {
             if (!(sharedStream instanceof SharedInputStream)) {
                 InputStream in = sharedStream;
                 sharedStream = null;
-                byte[] content = ByteUtil.getContent(in, 0);
+                byte[] content = ByteUtil.getContent(in, getRawSizeHint());
                 sharedStream = new SharedByteArrayInputStream(content);
             }
 
@@ -278,13 +284,7 @@ public final class ParsedMessage {
 
         if (wasMutated()) {
             // Original data is now invalid.
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            mimeMessage.writeTo(buffer);
-            byte[] content = buffer.toByteArray();
-            ByteUtil.closeStream(sharedStream);
-            sharedStream = new SharedByteArrayInputStream(content);
-            mimeMessage = expandedMessage = null;
-            mimeMessage = expandedMessage = new Mime.FixedMimeMessage(JMSession.getSession(), sharedStream);
+            reloadMimeMessage();
         }
 
         ExpandMimeMessage expand = new ExpandMimeMessage(mimeMessage);
@@ -309,7 +309,12 @@ public final class ParsedMessage {
     }
 
     public ParsedMessage setDefaultCharset(String charset) {
+        if (defaultCharsetSet && Objects.equal(defaultCharset, charset)) {
+            // nothing to reset; also keeps a message prepared for shared delivery read-only
+            return this;
+        }
         defaultCharset = charset;
+        defaultCharsetSet = true;
         if (mimeMessage instanceof ZMimeMessage) {
             ((ZMimeMessage) mimeMessage).setProperty("mail.mime.charset", charset);
         }
@@ -473,6 +478,26 @@ public final class ParsedMessage {
         analyzeNonBodyParts();
     }
 
+    /**
+     * Computes everything mail delivery reads lazily from this message, so that the deliveries to
+     * several mailboxes can then read it from different threads at the same time.  All of them must
+     * use the default charset set here before the call, and none of them may mutate the message
+     * (sieve actions that do work on a copy of it).
+     *
+     * @return the ParsedMessage itself
+     */
+    public ParsedMessage prepareForSharedDelivery() throws ServiceException {
+        analyzeBodyParts();
+        getCalendarPartInfo(); // analyzes attachments too when there is a calendar part
+        normalizeSubject();
+        isInReplyTo();
+        getParsedRecipients();
+        getParsedSender();
+        getDateHeader();
+        getReceivedDate();
+        return this;
+    }
+
     /**
      * Returns the {@link MimeMessage}.  Affected by both conversion and mutation.
      */
@@ -491,7 +516,7 @@ public final class ParsedMessage {
      * Returns the raw MIME data.  Affected by mutation but not conversion.
      */
     public byte[] getRawData() throws IOException {
-        return ByteUtil.getContent(getRawInputStream(), 1024);
+        return ByteUtil.getContent(getRawInputStream(), Math.max(getRawSizeHint(), 1024));
     }
 
     /**
@@ -513,6 +538,14 @@ public final class ParsedMessage {
         }
     }
 
+    /**
+     * Returns whether the MIME was parsed from the raw message content, and so describes the stored
+     * content byte for byte, rather than passed in as a {@link MimeMessage}.
+     */
+    public boolean hasRawContent() {
+        return sharedStream != null;
+    }
+
     public boolean isAttachmentIndexingEnabled() {
         return indexAttachments;
     }
@@ -1026,7 +1059,11 @@ public final class ParsedMessage {
             appendToContent(contentPrepend, fn); // also add the non-tokenized form, so full-filename searches match
         }
 
-        String text = contentPrepend.toString() + " " + fullContent.toString();
+        // prepend in place, the full content can be large and is copied once into the text
+        fullContent.insert(0, contentPrepend.append(' '));
+        String text = fullContent.toString();
+        fullContent.setLength(0);
+        fullContent.trimToSize();
         doc.addContent(text);
 
         try {
@@ -1393,12 +1430,29 @@ public final class ParsedMessage {
     }
 
     public void updateMimeMessage () throws IOException, MessagingException {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            mimeMessage.writeTo(buffer);
-            byte[] content = buffer.toByteArray();
-            ByteUtil.closeStream(sharedStream);
-            sharedStream = new SharedByteArrayInputStream(content);
-            mimeMessage = expandedMessage = null;
-            mimeMessage = expandedMessage = new Mime.FixedMimeMessage(JMSession.getSession(), sharedStream);
+        reloadMimeMessage();
+    }
+
+    /**
+     * Serializes the current {@link MimeMessage} and parses it again from that data.  The
+     * serialized message is kept in the write buffer itself: the buffer is sized from the raw
+     * message and wrapped as is, instead of growing a <tt>ByteArrayOutputStream</tt> and then
+     * copying it out with <tt>toByteArray()</tt>.
+     */
+    private void reloadMimeMessage() throws IOException, MessagingException {
+        // leave some room for headers added by mutators
+        BufferStream buffer = new BufferStream(rawSize > 0 ? rawSize + 8192 : 0);
+        mimeMessage.writeTo(buffer);
+        int size = (int) buffer.getSize();
+        byte[] content = size == 0 ? new byte[0] : buffer.getRawBuffer();
+        ByteUtil.closeStream(sharedStream);
+        sharedStream = new SharedByteArrayInputStream(content, 0, size);
+        rawSize = size;
+        mimeMessage = expandedMessage = null;
+        mimeMessage = expandedMessage = new Mime.FixedMimeMessage(JMSession.getSession(), sharedStream);
+    }
+
+    private int getRawSizeHint() {
+        return rawSize > 0 && rawSize < Integer.MAX_VALUE ? (int) rawSize : 0;
     }
 }
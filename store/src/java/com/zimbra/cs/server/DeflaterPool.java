@@ -0,0 +1,82 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Shared pool of raw (RFC 1951, no zlib header) deflaters and inflaters, as used by the IMAP
+ * COMPRESS=DEFLATE extension.
+ *
+ * Each holds a few hundred KB of native memory, so connections that negotiate compression
+ * reuse them instead of allocating a pair per connection and waiting for finalization to free
+ * them.  At most LC nio_deflate_pool_size of each are kept, extra ones are ended on release.
+ */
+public final class DeflaterPool {
+
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<Deflater>();
+    private static final AtomicInteger POOLED_DEFLATERS = new AtomicInteger();
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<Inflater>();
+    private static final AtomicInteger POOLED_INFLATERS = new AtomicInteger();
+
+    private DeflaterPool() {
+    }
+
+    public static Deflater getDeflater() {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        POOLED_DEFLATERS.decrementAndGet();
+        return deflater;
+    }
+
+    public static Inflater getInflater() {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            return new Inflater(true);
+        }
+        POOLED_INFLATERS.decrementAndGet();
+        return inflater;
+    }
+
+    public static void release(Deflater deflater) {
+        if (POOLED_DEFLATERS.incrementAndGet() <= LC.nio_deflate_pool_size.intValue()) {
+            deflater.reset();
+            DEFLATERS.offer(deflater);
+        } else {
+            POOLED_DEFLATERS.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    public static void release(Inflater inflater) {
+        if (POOLED_INFLATERS.incrementAndGet() <= LC.nio_deflate_pool_size.intValue()) {
+            inflater.reset();
+            INFLATERS.offer(inflater);
+        } else {
+            POOLED_INFLATERS.decrementAndGet();
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+
+/**
+ * MINA filter compressing both directions of a connection with raw DEFLATE, as negotiated by
+ * the IMAP COMPRESS command (RFC 4978).
+ *
+ * Every write is sync-flushed so the client sees each response as soon as it is sent.  The
+ * deflater and inflater come from the {@link DeflaterPool} and go back to it when the filter
+ * is removed or the session is closed.
+ */
+public final class NioCompressionFilter extends IoFilterAdapter {
+
+    /** When set, compression is disabled for the first write */
+    public static final String DISABLE_COMPRESSION_ONCE =
+        NioCompressionFilter.class.getName() + ".DisableCompressionOnce";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private Deflater deflater = DeflaterPool.getDeflater();
+    private Inflater inflater = DeflaterPool.getInflater();
+    private final byte[] deflateBuffer = new byte[BUFFER_SIZE];
+    private final byte[] inflateBuffer = new byte[BUFFER_SIZE];
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message) throws IOException {
+        if (!(message instanceof IoBuffer)) {
+            nextFilter.messageReceived(session, message);
+            return;
+        }
+        IoBuffer buf = (IoBuffer) message;
+        IoBuffer out;
+        synchronized (inflateBuffer) {
+            if (inflater == null) {
+                return; // session closed
+            }
+            out = inflate(buf);
+        }
+        if (out.hasRemaining()) {
+            nextFilter.messageReceived(session, out);
+        }
+    }
+
+    private IoBuffer inflate(IoBuffer buf) throws IOException {
+        int size = buf.remaining();
+        if (buf.hasArray()) {
+            inflater.setInput(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        } else {
+            byte[] b = new byte[buf.remaining()];
+            buf.get(b);
+            inflater.setInput(b);
+        }
+        IoBuffer out = IoBuffer.allocate(Math.max(size * 4, 256)).setAutoExpand(true);
+        buf.position(buf.limit());
+        try {
+            while (true) {
+                int len = inflater.inflate(inflateBuffer);
+                if (len > 0) {
+                    out.put(inflateBuffer, 0, len);
+                } else if (inflater.needsInput() || inflater.finished()) {
+                    break;
+                } else if (inflater.needsDictionary()) {
+                    throw new IOException("preset dictionary not supported");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("invalid compressed data", e);
+        }
+        return out.flip();
+    }
+
+    @Override
+    public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws IOException {
+        Object message = writeRequest.getMessage();
+        // Allows us to disable compression until the COMPRESS OK response has been sent to client.
+        if (session.containsAttribute(DISABLE_COMPRESSION_ONCE)) {
+            session.removeAttribute(DISABLE_COMPRESSION_ONCE);
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        if (!(message instanceof IoBuffer) || !((IoBuffer) message).hasRemaining()) {
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+
+        IoBuffer buf = (IoBuffer) message;
+        int size = buf.remaining();
+        // compress and pass on under the lock, so the compressed stream goes out in the order it was produced
+        synchronized (deflateBuffer) {
+            if (deflater == null) {
+                nextFilter.filterWrite(session, writeRequest);
+                return;
+            }
+            if (buf.hasArray()) {
+                deflater.setInput(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            } else {
+                byte[] b = new byte[buf.remaining()];
+                buf.get(b);
+                deflater.setInput(b);
+            }
+            IoBuffer out = IoBuffer.allocate(Math.max(size / 2, 64)).setAutoExpand(true);
+            buf.position(buf.limit());
+            int len;
+            do {
+                len = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH);
+                out.put(deflateBuffer, 0, len);
+            } while (len == deflateBuffer.length);
+            nextFilter.filterWrite(session, new DefaultWriteRequest(out.flip(), writeRequest.getFuture()));
+        }
+    }
+
+    @Override
+    public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+        release();
+        nextFilter.sessionClosed(session);
+    }
+
+    @Override
+    public void onPostRemove(IoFilterChain parent, String name, NextFilter nextFilter) {
+        release();
+    }
+
+    private void release() {
+        synchronized (deflateBuffer) {
+            if (deflater != null) {
+                DeflaterPool.release(deflater);
+                deflater = null;
+            }
+        }
+        synchronized (inflateBuffer) {
+            if (inflater != null) {
+                DeflaterPool.release(inflater);
+                inflater = null;
+            }
+        }
+    }
+}
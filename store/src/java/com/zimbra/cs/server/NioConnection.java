@@ -86,6 +86,15 @@ public final class NioConnection {
         session.setAttribute(SaslFilter.DISABLE_ENCRYPTION_ONCE, true);
     }
 
+    /**
+     * Compresses the rest of the session, except for the next write which is the response to the
+     * command that started compression.  Compression sits above TLS and SASL.
+     */
+    public void startCompression() {
+        session.getFilterChain().addBefore("executer", "compression", new NioCompressionFilter());
+        session.setAttribute(NioCompressionFilter.DISABLE_COMPRESSION_ONCE, true);
+    }
+
     public void send(Object obj) {
         session.write(obj);
     }
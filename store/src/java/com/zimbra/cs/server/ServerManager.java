@@ -20,6 +20,7 @@ import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.imap.ImapConfig;
+import com.zimbra.cs.imap.ImapIdleNotifier;
 import com.zimbra.cs.imap.ImapServer;
 import com.zimbra.cs.imap.NioImapServer;
 import com.zimbra.cs.imap.TcpImapServer;
@@ -65,6 +66,7 @@ public final class ServerManager {
             }
         }
         if (app.supports(ImapServer.class)) {
+            ImapIdleNotifier.startup();
             if (isEnabled(Provisioning.A_zimbraImapServerEnabled)) {
                 imapServer = startImapServer(false);
             }
@@ -130,6 +132,7 @@ public final class ServerManager {
         if (imapSSLServer != null) {
             imapSSLServer.stop();
         }
+        ImapIdleNotifier.shutdown();
         if (milterServer != null) {
             milterServer.stop();
         }
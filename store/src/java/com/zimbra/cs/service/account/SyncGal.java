@@ -60,6 +60,7 @@ public class SyncGal extends GalDocumentHandler {
         String galAcctId = request.getAttribute(AccountConstants.A_GAL_ACCOUNT_ID, null);
         boolean idOnly   = request.getAttributeBool(AccountConstants.A_ID_ONLY, false);
         boolean getCount   = request.getAttributeBool(AccountConstants.A_GET_COUNT, false);
+        boolean deltaAttrs = request.getAttributeBool(AccountConstants.A_DELTA_ATTRS, false);
         int limit = request.getAttributeInt(MailConstants.A_LIMIT, 0);
 
         GalSearchParams params = new GalSearchParams(account, zsc);
@@ -70,6 +71,7 @@ public class SyncGal extends GalDocumentHandler {
         params.setResponseName(AccountConstants.SYNC_GAL_RESPONSE);
         params.setIdOnly(idOnly);
         params.setGetCount(getCount);
+        params.setDeltaAttrs(deltaAttrs);
         params.setUserAgent(zsc.getUserAgent());
         params.setLimit(limit);
         if (galAcctId != null)
@@ -45,6 +45,7 @@ public class FormatterFactory {
             HTML_ONLYOFFICE("onlyoffice", MimeConstants.CT_TEXT_HTML),
             ICS("ics", MimeConstants.CT_TEXT_CALENDAR),
             IFB("ifb", MimeConstants.CT_TEXT_CALENDAR),
+            IMAP_BULK("imapbulk", MimeConstants.CT_APPLICATION_OCTET_STREAM),
             JSON("json", MimeConstants.CT_APPLICATION_JSON),
             RSS("rss", "application/rss+xml"),
             SYNC("sync", MimeConstants.CT_APPLICATION_OCTET_STREAM),
@@ -145,6 +146,7 @@ public class FormatterFactory {
         addFormatter(new ContactFolderFormatter());
         addFormatter(new OctopusPatchFormatter());
         addFormatter(new MobileConfigFormatter());
+        addFormatter(new ImapBulkFormatter());
     }
 
     /**
@@ -0,0 +1,149 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.formatter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.service.UserServletContext;
+import com.zimbra.cs.service.UserServletException;
+import com.zimbra.cs.service.formatter.FormatterFactory.FormatType;
+
+/**
+ * Streams the content of many messages in one response, for the standalone imapd.
+ *
+ * The messages are requested with the {@code list} parameter and returned in that order.
+ * Each message is a header line {@code <id> <date> <modseq> <size> <length>} followed by
+ * {@code length} bytes of content.  {@code length} is the message size, or 0 if the message
+ * is larger than the {@code maxsize} parameter and has to be fetched on its own.  Items that
+ * don't exist or aren't messages have a size of -1.
+ */
+public class ImapBulkFormatter extends Formatter {
+
+    public static final String QP_MAX_SIZE = "maxsize";
+
+    @Override
+    public FormatType getType() {
+        return FormatType.IMAP_BULK;
+    }
+
+    @Override
+    public void formatCallback(UserServletContext context)
+    throws UserServletException, ServiceException, IOException {
+        if (context.requestedItems == null) {
+            throw new UserServletException(HttpServletResponse.SC_BAD_REQUEST, "no items requested");
+        }
+        long maxSize = Long.MAX_VALUE;
+        String max = context.params.get(QP_MAX_SIZE);
+        if (max != null) {
+            try {
+                maxSize = Long.parseLong(max);
+            } catch (NumberFormatException e) {
+                throw new UserServletException(HttpServletResponse.SC_BAD_REQUEST, "invalid " + QP_MAX_SIZE);
+            }
+        }
+
+        OutputStream out = context.resp.getOutputStream();
+        for (UserServletContext.Item item : context.requestedItems) {
+            MailItem mailItem = item.mailItem;
+            if (!(mailItem instanceof Message)) {
+                writeHeader(out, new Frame(item.id, 0, 0, -1, 0));
+                continue;
+            }
+            Message msg = (Message) mailItem;
+            long size = msg.getSize();
+            Frame frame = new Frame(msg.getId(), msg.getDate(), msg.getModifiedSequence(), size,
+                    size <= maxSize ? size : 0);
+            writeHeader(out, frame);
+            if (frame.length > 0) {
+                InputStream in = msg.getContentStream();
+                try {
+                    // a short blob would break the framing of everything after it
+                    if (ByteStreams.copy(ByteStreams.limit(in, frame.length), out) != frame.length) {
+                        throw new IOException("content of message " + msg.getId() + " is shorter than its size");
+                    }
+                } finally {
+                    ByteUtil.closeStream(in);
+                }
+            }
+        }
+    }
+
+    private static void writeHeader(OutputStream out, Frame frame) throws IOException {
+        String header = frame.id + " " + frame.date + " " + frame.modseq + " " + frame.size + " " + frame.length + "\r\n";
+        out.write(header.getBytes(Charsets.US_ASCII));
+    }
+
+    /**
+     * Reads the header line of the next message, or returns null at the end of the stream.
+     * The caller must consume {@link Frame#length} bytes of content before reading the next
+     * header.
+     */
+    public static Frame readHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("truncated header");
+            } else if (c != '\r') {
+                line.write(c);
+            }
+        }
+        String[] fields = new String(line.toByteArray(), Charsets.US_ASCII).split(" ");
+        if (fields.length != 5) {
+            throw new IOException("malformed header: " + line);
+        }
+        try {
+            return new Frame(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+                    Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed header: " + line, e);
+        }
+    }
+
+    public static final class Frame {
+        public final int id;
+        public final long date;
+        public final int modseq;
+        /** message size, or -1 if the item is missing */
+        public final long size;
+        /** number of content bytes following the header */
+        public final long length;
+
+        public Frame(int id, long date, int modseq, long size, long length) {
+            this.id = id;
+            this.date = date;
+            this.modseq = modseq;
+            this.size = size;
+            this.length = length;
+        }
+    }
+}
@@ -17,6 +17,8 @@
 
 package com.zimbra.cs.stats;
 
+import java.util.List;
+
 import com.zimbra.common.stats.DeltaCalculator;
 
 public class JmxImapDaemonStats implements JmxImapDaemonStatsMBean {
@@ -36,6 +38,12 @@ public class JmxImapDaemonStats implements JmxImapDaemonStatsMBean {
         return (long) imapDeltaCalc.getRealtimeAverage();
     }
 
+    @Override
+    public String[] getImapCommandLatencies() {
+        List<String> summary = ZimbraPerf.IMAPD_LATENCY_TRACKER.getSummary();
+        return summary.toArray(new String[summary.size()]);
+    }
+
     @Override
     public void reset() {
         imapDeltaCalc.reset();
@@ -20,4 +20,6 @@ package com.zimbra.cs.stats;
 public interface JmxImapDaemonStatsMBean extends JmxStatsMBeanBase {
     long getImapRequests();
     long getImapResponseMs();
+    /** command,count,avg,p50,p95,p99,max latency in ms and average response bytes, one per IMAP command */
+    String[] getImapCommandLatencies();
 }
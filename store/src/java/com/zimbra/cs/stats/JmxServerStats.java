@@ -160,6 +160,11 @@ public class JmxServerStats implements JmxServerStatsMBean {
         return (long) mImap.getRealtimeAverage();
     }
 
+    public String[] getImapCommandLatencies() {
+        List<String> summary = ZimbraPerf.IMAP_LATENCY_TRACKER.getSummary();
+        return summary.toArray(new String[summary.size()]);
+    }
+
     public long getPopRequests() {
         return ZimbraPerf.STOPWATCH_POP.getCount();
     }
@@ -26,6 +26,8 @@ public interface JmxServerStatsMBean extends JmxStatsMBeanBase
     long getDatabaseConnectionsInUse();
     long getImapRequests();
     long getImapResponseMs();
+    /** command,count,avg,p50,p95,p99,max latency in ms and average response bytes, one per IMAP command */
+    String[] getImapCommandLatencies();
     long getItemCacheHitRate();
     long getLdapDirectoryContextGetMs();
     long getLdapDirectoryContextGets();
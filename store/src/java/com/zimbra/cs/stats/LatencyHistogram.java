@@ -0,0 +1,116 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in milliseconds, in the manner of HdrHistogram: values up
+ * to {@value #SUB_BUCKETS} ms are counted exactly, larger ones in buckets whose width doubles
+ * with each power of two, so every value is recorded with a relative error under
+ * 1/{@value #SUB_BUCKETS}.
+ */
+public final class LatencyHistogram {
+
+    static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    // covers up to 2^31 ms
+    private static final int BUCKETS = (31 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        counts.incrementAndGet(index(millis));
+        count.incrementAndGet();
+        total.addAndGet(millis);
+        long current;
+        while (millis > (current = max.get()) && !max.compareAndSet(current, millis)) {
+        }
+    }
+
+    static int index(long millis) {
+        if (millis < SUB_BUCKETS) {
+            return (int) millis;
+        }
+        millis = Math.min(millis, Integer.MAX_VALUE);
+        // the top SUB_BUCKET_BITS + 1 bits select the bucket
+        int shift = 63 - Long.numberOfLeadingZeros(millis) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (millis >>> shift) - SUB_BUCKETS;
+    }
+
+    /** Returns the highest value counted in the bucket at {@code index}. */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getAverage() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /**
+     * Returns the value below or at which {@code percentile} percent of the recorded values
+     * fall, rounded up to the end of its bucket and capped at the maximum recorded value.
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(percentile / 100 * n), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the histogram.  Values recorded concurrently may be lost or counted in part.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.stats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.zimbra.common.stats.Counter;
+import com.zimbra.common.stats.StatsDumperDataSource;
+
+/**
+ * Like {@link ActivityTracker}, but keeps a {@link LatencyHistogram} per command so the stats
+ * file shows the latency distribution of each command, along with the bytes it sent back.
+ */
+public class LatencyTracker implements StatsDumperDataSource {
+
+    private static final class Stat {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final Counter bytes = new Counter();
+    }
+
+    private final String filename;
+    private final ConcurrentHashMap<String, Stat> stats = new ConcurrentHashMap<String, Stat>();
+
+    public LatencyTracker(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * @param bytes bytes written in response, or a negative number if not known
+     */
+    public void addStat(String commandName, long elapsedMillis, long bytes) {
+        Stat stat = stats.get(commandName);
+        if (stat == null) {
+            stat = new Stat();
+            Stat previous = stats.putIfAbsent(commandName, stat);
+            if (previous != null) {
+                stat = previous;
+            }
+        }
+        stat.latency.record(elapsedMillis);
+        if (bytes >= 0) {
+            stat.bytes.increment(bytes);
+        }
+    }
+
+    /**
+     * Returns one line per command for the current stats period, in the format of the stats
+     * file.  Unlike {@link #getDataLines()} this does not reset the counters.
+     */
+    public List<String> getSummary() {
+        Map<String, Stat> sorted = new TreeMap<String, Stat>(stats);
+        List<String> lines = new ArrayList<String>(sorted.size());
+        for (Map.Entry<String, Stat> entry : sorted.entrySet()) {
+            if (entry.getValue().latency.getCount() > 0) {
+                lines.add(format(entry.getKey(), entry.getValue()));
+            }
+        }
+        return lines;
+    }
+
+    private static String format(String command, Stat stat) {
+        LatencyHistogram latency = stat.latency;
+        return String.format("%s,%d,%d,%d,%d,%d,%d,%d", command, latency.getCount(), (long) latency.getAverage(),
+                latency.getPercentile(50), latency.getPercentile(95), latency.getPercentile(99), latency.getMax(),
+                (long) stat.bytes.getAverage());
+    }
+
+    ////////////// StatsDumperDataSource implementation //////////////
+
+    @Override
+    public Collection<String> getDataLines() {
+        if (stats.isEmpty()) {
+            return null;
+        }
+        List<String> dataLines = new ArrayList<String>(stats.size());
+        for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+            Stat stat = entry.getValue();
+            if (stat.latency.getCount() > 0) {
+                // not atomic with concurrent updates, like ActivityTracker a few values may be off by one period
+                dataLines.add(format(entry.getKey(), stat));
+                stat.latency.reset();
+                stat.bytes.reset();
+            }
+        }
+        return dataLines;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getHeader() {
+        return "command,exec_count,exec_ms_avg,exec_ms_p50,exec_ms_p95,exec_ms_p99,exec_ms_max,bytes_avg";
+    }
+
+    @Override
+    public boolean hasTimestampColumn() {
+        return true;
+    }
+}
@@ -202,6 +202,8 @@ public class ZimbraPerf {
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
     public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv");
     public static final ActivityTracker IMAPD_TRACKER = new ActivityTracker("imapd.csv");
+    public static final LatencyTracker IMAP_LATENCY_TRACKER = new LatencyTracker("imap_latency.csv");
+    public static final LatencyTracker IMAPD_LATENCY_TRACKER = new LatencyTracker("imapd_latency.csv");
     public static final ActivityTracker POP_TRACKER = new ActivityTracker("pop3.csv");
     public static final ActivityTracker LDAP_TRACKER = new ActivityTracker("ldap.csv");
     public static final ActivityTracker SYNC_TRACKER = new ActivityTracker("sync.csv");
@@ -558,6 +560,7 @@ public class ZimbraPerf {
         StatsDumper.schedule(new Stats("mailboxd.csv", sAccumulators, jmxServerStats), CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SOAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(IMAP_TRACKER, CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(IMAP_LATENCY_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(POP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(LDAP_TRACKER, CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(SYNC_TRACKER, CSV_DUMP_FREQUENCY);
@@ -578,6 +581,7 @@ public class ZimbraPerf {
         StatsDumper.schedule(new Stats("imapd_stats.csv", sAccumulators, jmxImapDaemonStats),
                 CSV_DUMP_FREQUENCY);
         StatsDumper.schedule(IMAPD_TRACKER, CSV_DUMP_FREQUENCY);
+        StatsDumper.schedule(IMAPD_LATENCY_TRACKER, CSV_DUMP_FREQUENCY);
     }
 
     /**
@@ -25,14 +25,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.io.FileUtils;
 
 import com.google.common.base.MoreObjects;
 import com.zimbra.common.util.ByteUtil;
-import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.zmime.ZSharedFileInputStream;
+import com.zimbra.cs.store.file.ChunkedBlobFile;
 
 /**
  * Represents a blob in blob store incoming directory.  An incoming blob
@@ -45,6 +44,7 @@ public class Blob {
     private File file;
     private String path;
     private Boolean compressed = null;
+    private Boolean chunked = null;
     private String digest;
     private Long rawSize;
 
@@ -80,9 +80,12 @@ public class Blob {
     }
 
     public InputStream getInputStream() throws IOException {
+        if (isChunked()) {
+            return ChunkedBlobFile.read(file).getInputStream();
+        }
         InputStream in = new ZSharedFileInputStream(file);
         if (isCompressed()) {
-            in = new GZIPInputStream(in);
+            in = BlobCodec.decompressAny(in);
         }
         return in;
     }
@@ -92,12 +95,24 @@ public class Blob {
             if (rawSize != null && rawSize.longValue() == file.length()) {
                 this.compressed = Boolean.FALSE;
             } else {
-                this.compressed = FileUtil.isGzipped(file);
+                this.compressed = BlobCodec.detect(file) != null;
             }
         }
         return compressed;
     }
 
+    /** Returns true if the blob file is a {@link ChunkedBlobFile} manifest. */
+    public boolean isChunked() throws IOException {
+        if (chunked == null) {
+            if (rawSize != null && rawSize.longValue() == file.length()) {
+                this.chunked = Boolean.FALSE;
+            } else {
+                this.chunked = !isCompressed() && ChunkedBlobFile.isChunked(file);
+            }
+        }
+        return chunked;
+    }
+
     /** Returns the SHA-256 digest of this blob's uncompressed data,
      *  encoded in base64. */
     public String getDigest() throws IOException {
@@ -111,7 +126,9 @@ public class Blob {
      *  returns the uncompressed size. */
     public long getRawSize() throws IOException {
         if (rawSize == null) {
-            if (!isCompressed()) {
+            if (isChunked()) {
+                this.rawSize = ChunkedBlobFile.read(file).getRawSize();
+            } else if (!isCompressed()) {
                 this.rawSize = file.length();
             } else {
                 initializeSizeAndDigest();
@@ -174,6 +191,9 @@ public class Blob {
         if (compressed == null && other.compressed != null) {
             this.compressed = other.compressed;
         }
+        if (chunked == null && other.chunked != null) {
+            this.chunked = other.chunked;
+        }
         if (digest == null && other.digest != null) {
             this.digest = other.digest;
         }
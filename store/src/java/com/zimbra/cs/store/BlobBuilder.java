@@ -27,8 +27,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Arrays;
+
 import org.apache.commons.io.IOUtils;
 
 import com.zimbra.common.localconfig.DebugConfig;
@@ -36,6 +36,7 @@ import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.znative.IO;
 
 public class BlobBuilder {
     protected Blob blob;
@@ -45,6 +46,8 @@ public class BlobBuilder {
     private MessageDigest digest;
     private OutputStream out;
     private FileChannel fc;
+    // the file was extended to the size hint and is cut to what was written by finish()
+    private boolean preallocated;
     private long totalBytes;
     private boolean finished;
     private byte[] buf;
@@ -103,25 +106,52 @@ public class BlobBuilder {
         fc = getFileChannel();
 
         if (useCompression()) {
-            buf = new byte[getCompressionThreshold()];
+            // don't allocate the whole threshold for messages known to be smaller
+            int threshold = getCompressionThreshold();
+            buf = new byte[sizeHint > 0 && sizeHint < threshold ? (int) sizeHint : threshold];
         } else {
             // Kind of a gross hack.  If the caller disabled compression,
             // it's probably because the data stream is already compressed.
             if (!disableCompression) {
                 blob.setCompressed(false);
             }
+            preallocate();
         }
 
         return this;
     }
 
+    /**
+     * Allocates the file's disk space up front when its size is known, so that it is not extended
+     * write by write.  Compressed blobs are smaller than the size hint and aren't preallocated.
+     */
+    private void preallocate() {
+        long minSize = LC.zimbra_store_preallocate_min_size.longValue();
+        if (minSize <= 0 || sizeHint < minSize || fc == null) {
+            return;
+        }
+        try {
+            preallocated = IO.preallocate(blob.getFile().getPath(), sizeHint);
+        } catch (IOException e) {
+            // the writes will report a real problem
+            ZimbraLog.store.debug("unable to preallocate %d bytes for %s", sizeHint, blob.getFile().getPath(), e);
+        }
+    }
+
     protected OutputStream createOutputStream(File file) throws FileNotFoundException
     {
-        return new FileOutputStream(file);
+        FileOutputStream fos = new FileOutputStream(file);
+        if (DirectBufferOutputStream.isEnabled()) {
+            return new DirectBufferOutputStream(fos.getChannel());
+        }
+        return fos;
     }
 
     protected FileChannel getFileChannel()
     {
+        if (out instanceof DirectBufferOutputStream) {
+            return ((DirectBufferOutputStream) out).getChannel();
+        }
         return ((FileOutputStream)out).getChannel();
     }
 
@@ -152,7 +182,12 @@ public class BlobBuilder {
         checkInitialized();
 
         if (!compressionThresholdExceeded && useCompression()) {
-            if (bufLen + len <= getCompressionThreshold()) {
+            int threshold = getCompressionThreshold();
+            if (bufLen + len <= threshold) {
+                if (bufLen + len > buf.length) {
+                    // size hint was short
+                    buf = Arrays.copyOf(buf, Math.min(threshold, Math.max(buf.length * 2, bufLen + len)));
+                }
                 // Read into buffer.
                 System.arraycopy(b, off, buf, bufLen, len);
                 bufLen += len;
@@ -162,7 +197,7 @@ public class BlobBuilder {
 
             // This call exceeded compression threshold.  Compress the stream and
             // write everything that we've read so far.
-            out = new GZIPOutputStream(out);
+            out = BlobCodec.getDefault().compress(out);
             writeToFile(buf, 0, bufLen);
             blob.setCompressed(true);
             compressionThresholdExceeded = true;
@@ -221,17 +256,20 @@ public class BlobBuilder {
         }
 
         try {
-            if (!DebugConfig.disableMessageStoreFsync) {
-                out.flush();
-                if (fc != null) {
-                    fc.force(true);
+            out.flush();
+            if (preallocated) {
+                // drop the preallocated space the blob didn't use
+                fc.truncate(fc.position());
+            }
+            if (!DebugConfig.disableMessageStoreFsync && fc != null) {
+                if (!FileSystemSyncer.isEnabled() || !FileSystemSyncer.sync(blob.getFile())) {
+                    fc.force(!LC.zimbra_store_fsync_data_only.booleanValue());
                 }
             }
+            out.close();
         } catch (IOException e) {
             dispose();
             throw e;
-        } finally {
-            ByteUtil.closeStream(out);
         }
 
         // set the blob's digest and size
@@ -243,10 +281,10 @@ public class BlobBuilder {
             if (blob.isCompressed() && totalBytes == file.length())
             {
               ZimbraLog.store.info("Blob compression is useless avoid it");
-              GZIPInputStream in = null;
+              InputStream in = null;
               try {
                 uncompresedFile = File.createTempFile("blob","",file.getParentFile());
-                in = new GZIPInputStream(new FileInputStream(file));
+                in = BlobCodec.decompressAny(new FileInputStream(file));
                 out = createOutputStream(uncompresedFile);
                 IOUtils.copy(in,out);
                 blob.setCompressed(false);
@@ -0,0 +1,192 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import com.google.common.io.ByteStreams;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Compression codecs for blobs.  Each codec writes its own magic number at the start of the
+ * blob, which serves as the codec tag: the codec of a compressed blob is detected from its
+ * header, so a volume may hold blobs written with different codecs.  New blobs are compressed
+ * with the codec set in LC zimbra_blob_compression_codec.
+ */
+public enum BlobCodec {
+    gzip(new byte[] { 0x1f, (byte) 0x8b }) {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in);
+        }
+    },
+
+    // cheap to decompress, for volumes that are read more than they are written
+    lz4(new byte[] { 0x04, 0x22, 0x4d, 0x18 }) {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new FramedLZ4CompressorOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new FramedLZ4CompressorInputStream(in);
+        }
+    },
+
+    // best ratio, for archive volumes
+    xz(new byte[] { (byte) 0xfd, '7', 'z', 'X', 'Z', 0x00 }) {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new XZCompressorOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new XZCompressorInputStream(in);
+        }
+    };
+
+    private static final int MAX_MAGIC_LENGTH = 6;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] magic;
+
+    private BlobCodec(byte[] magic) {
+        this.magic = magic;
+    }
+
+    /**
+     * Wraps the stream so that data written to it is compressed.  Closing the returned stream
+     * completes the compressed data and closes <tt>out</tt>.
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    /**
+     * Wraps the stream of compressed data so that reads return the uncompressed data.
+     */
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    private boolean matches(byte[] header, int len) {
+        return len >= magic.length && Arrays.equals(magic, Arrays.copyOf(header, magic.length));
+    }
+
+    /**
+     * Returns the codec set in LC zimbra_blob_compression_codec, or gzip if the setting is
+     * not a known codec.
+     */
+    public static BlobCodec getDefault() {
+        String name = LC.zimbra_blob_compression_codec.value();
+        try {
+            return BlobCodec.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            ZimbraLog.store.warn("unknown blob compression codec %s, using gzip", name);
+            return gzip;
+        }
+    }
+
+    private static BlobCodec detect(byte[] header, int len) {
+        for (BlobCodec codec : values()) {
+            if (codec.matches(header, len)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the codec the file was compressed with, or null if the file is not compressed.
+     */
+    public static BlobCodec detect(File file) throws IOException {
+        byte[] header = new byte[MAX_MAGIC_LENGTH];
+        InputStream in = new FileInputStream(file);
+        try {
+            return detect(header, ByteStreams.read(in, header, 0, header.length));
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    /**
+     * Returns a stream of the uncompressed data of a compressed blob, detecting the codec
+     * from its header.  Data with no known header is assumed to be gzipped.
+     */
+    public static InputStream decompressAny(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        byte[] header = new byte[MAX_MAGIC_LENGTH];
+        in.mark(header.length);
+        int len = ByteStreams.read(in, header, 0, header.length);
+        in.reset();
+        BlobCodec codec = detect(header, len);
+        return (codec == null ? gzip : codec).decompress(in);
+    }
+
+    /**
+     * Compresses file <tt>src</tt> into file <tt>dest</tt>.
+     */
+    public void compress(File src, File dest, boolean sync) throws IOException {
+        InputStream in = null;
+        FileOutputStream fos = null;
+        boolean isComplete = false;
+        try {
+            in = new FileInputStream(src);
+            fos = new FileOutputStream(dest);
+            OutputStream out = compress(new CloseShieldOutputStream(fos));
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            int numRead;
+            while ((numRead = in.read(buf)) != -1) {
+                out.write(buf, 0, numRead);
+            }
+            // completes the compressed data but leaves fos open for the sync
+            out.close();
+            if (sync) {
+                fos.getChannel().force(true);
+            }
+            isComplete = true;
+        } finally {
+            ByteUtil.closeStream(in);
+            ByteUtil.closeStream(fos);
+            if (!isComplete) {
+                dest.delete();
+            }
+        }
+    }
+}
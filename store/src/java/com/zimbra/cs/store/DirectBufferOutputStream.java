@@ -0,0 +1,141 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Writes to a {@link FileChannel} through a direct buffer taken from a small shared pool.
+ *
+ * The data is still copied once from the caller's array, as {@code FileOutputStream} copies it
+ * into a native buffer.  What this saves is the write system call per small append, since
+ * appends are gathered into buffers of LC zimbra_store_copy_buffer_size_kb, and the native
+ * buffer that {@code FileOutputStream} allocates and frees for each write larger than 8KB.
+ * The pool holds at most LC zimbra_store_direct_buffer_pool_size buffers, extra buffers are
+ * left to the garbage collector.
+ */
+final class DirectBufferOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = Math.max(LC.zimbra_store_copy_buffer_size_kb.intValue(), 1) * 1024;
+    private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+
+    DirectBufferOutputStream(FileChannel channel) {
+        this.channel = channel;
+        this.buffer = acquire();
+    }
+
+    /**
+     * Returns true if incoming blobs are written through pooled direct buffers.
+     */
+    static boolean isEnabled() {
+        return LC.zimbra_store_direct_buffer_pool_size.intValue() > 0;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            release(buffer);
+            buffer = null;
+            channel.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buffer == null) {
+            throw new IOException("stream closed");
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private static ByteBuffer acquire() {
+        ByteBuffer bb = POOL.poll();
+        if (bb == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        POOLED.decrementAndGet();
+        bb.clear();
+        return bb;
+    }
+
+    private static void release(ByteBuffer bb) {
+        if (POOLED.incrementAndGet() <= LC.zimbra_store_direct_buffer_pool_size.intValue()) {
+            POOL.offer(bb);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+}
@@ -27,20 +27,19 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
-import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.store.file.ChunkedBlobFile;
 
 /**
- * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
+ * Caches file descriptors to blobs in the mail store.  If the blob is compressed or chunked,
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
@@ -162,12 +161,17 @@ public class FileDescriptorCache
         mHitRate.increment(0);
         File file = new File(path);
 
-        if (file.length() != rawSize && FileUtil.isGzipped(file)) {
+        BlobCodec codec = file.length() != rawSize ? BlobCodec.detect(file) : null;
+        if (codec != null || (file.length() != rawSize && ChunkedBlobFile.isChunked(file))) {
             sLog.debug("Adding file descriptor cache entry for %s from the uncompressed file cache.", path);
             FileCache.Item uncompressed = mUncompressedFileCache.get(path);
             if (uncompressed == null) {
                 InputStream in = null;
-                in = new GZIPInputStream(new FileInputStream(file));
+                if (codec != null) {
+                    in = codec.decompress(new FileInputStream(file));
+                } else {
+                    in = ChunkedBlobFile.read(file).getInputStream();
+                }
                 mUncompressedFileCache.put(path, in);
                 uncompressed = mUncompressedFileCache.get(path);
                 if (uncompressed == null) {
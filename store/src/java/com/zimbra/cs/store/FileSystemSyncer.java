@@ -0,0 +1,127 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.znative.IO;
+
+/**
+ * Shares one file system sync between the incoming blobs that finish at the same time, instead
+ * of syncing each blob file on its own.
+ *
+ * A blob waits for a sync that started after its data was written.  While one sync runs, the
+ * blobs that finish meanwhile queue up and are all covered by the next one.  A file system sync
+ * also writes out everything else that is modified on that file system, so this only pays off
+ * with many concurrent deliveries to an incoming directory on a file system of its own; it is
+ * enabled by LC zimbra_store_fsync_batch.  Where the native library can't sync a file system,
+ * {@link #sync(File)} returns false and blobs are synced one by one.
+ */
+class FileSystemSyncer {
+
+    private static final ConcurrentMap<String, FileSystemSyncer> SYNCERS =
+            new ConcurrentHashMap<String, FileSystemSyncer>();
+    private static volatile boolean unsupported;
+
+    private final String path;
+    // requests so far, and requests covered by the last completed sync
+    private long requested;
+    private long synced;
+    private boolean syncing;
+
+    @VisibleForTesting
+    FileSystemSyncer(String path) {
+        this.path = path;
+    }
+
+    static boolean isEnabled() {
+        return LC.zimbra_store_fsync_batch.booleanValue() && !unsupported;
+    }
+
+    /**
+     * Writes the file system of a file to disk, sharing the sync with concurrent callers syncing
+     * files in the same directory.
+     *
+     * @return false if the file system can't be synced, and the caller must sync the file itself
+     */
+    static boolean sync(File file) throws IOException {
+        String dir = file.getParent();
+        FileSystemSyncer syncer = SYNCERS.get(dir);
+        if (syncer == null) {
+            FileSystemSyncer existing = SYNCERS.putIfAbsent(dir, syncer = new FileSystemSyncer(dir));
+            if (existing != null) {
+                syncer = existing;
+            }
+        }
+        if (!syncer.sync()) {
+            unsupported = true;
+            return false;
+        }
+        return true;
+    }
+
+    @VisibleForTesting
+    boolean sync() throws IOException {
+        long covered;
+        synchronized (this) {
+            long ticket = ++requested;
+            try {
+                while (syncing && synced < ticket) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a sync of " + path);
+            }
+            if (synced >= ticket) {
+                return true;
+            }
+            // the data of every request so far was written before it was made
+            syncing = true;
+            covered = requested;
+        }
+        boolean success = false;
+        try {
+            success = syncFileSystem(path);
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (success) {
+                    synced = covered;
+                }
+                notifyAll();
+            }
+        }
+        return success;
+    }
+
+    @VisibleForTesting
+    synchronized long getRequested() {
+        return requested;
+    }
+
+    @VisibleForTesting
+    boolean syncFileSystem(String dir) throws IOException {
+        return IO.syncFileSystem(dir);
+    }
+}
@@ -232,6 +232,11 @@ public abstract class StoreManager {
          * It requires to be handled using zxsuite command
          */
         CUSTOM_STORE_API,
+        /**
+         * A {@code StagedBlob} can be linked into any number of mailboxes, so
+         * the recipients of a multi-recipient delivery can share one staged copy.
+         */
+        SHARED_STAGING,
     };
 
     /**
@@ -267,6 +272,17 @@ public abstract class StoreManager {
         return storeIncoming(data, false);
     }
 
+    /**
+     * Store a blob in incoming directory, like {@link #storeIncoming(InputStream)}.
+     * @param data
+     * @param sizeHint expected size of the data, or {@code 0} if not known; stores that
+     *        buffer data before writing it may use it to size their buffers
+     */
+    public Blob storeIncoming(InputStream data, long sizeHint)
+    throws IOException, ServiceException {
+        return storeIncoming(data, false);
+    }
+
     /**
      * Store a blob in incoming directory.
      * @param data
@@ -509,6 +525,18 @@ public abstract class StoreManager {
      */
     public abstract InputStream getContent(Blob blob) throws IOException;
 
+    /**
+     * Return an InputStream of the content of the blob's local copy, as
+     * {@link #getContent(Blob)} on {@link MailboxBlob#getLocalBlob()} does.
+     * Caller should close the stream when done.
+     * @param mboxBlob
+     * @return
+     * @throws IOException
+     */
+    public InputStream getLocalContent(MailboxBlob mboxBlob) throws IOException {
+        return getContent(mboxBlob.getLocalBlob());
+    }
+
     /**
      * Deletes a user's entire store.  SHOULD BE CALLED CAREFULLY.  No going back.
      * @param mbox
@@ -16,25 +16,59 @@
  */
 package com.zimbra.cs.store.external;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
 import com.zimbra.cs.store.StagedBlob;
 
 /**
  * Abstract framework for StoreManager implementations which require content hash or other content-based locator
  * The base implementation here handles the more common cases where blob is cached locally by storeIncoming and then pushed to remote store during stage operation
+ * If LC external_store_async_upload_threads is set, the push to the remote store is done in the background by ExternalUploadQueue
  */
 public abstract class ContentAddressableStoreManager extends ExternalStoreManager {
 
+    private ExternalUploadQueue uploadQueue;
+
+    @Override
+    public void startup() throws IOException, ServiceException {
+        super.startup();
+        int threads = LC.external_store_async_upload_threads.intValue();
+        if (threads > 0) {
+            uploadQueue = new ExternalUploadQueue(this, new File(LC.external_store_upload_staging_directory.value()), threads,
+                    LC.external_store_async_upload_max_attempts.intValue());
+            uploadQueue.start();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (uploadQueue != null) {
+            uploadQueue.shutdown();
+            uploadQueue = null;
+        }
+        super.shutdown();
+    }
+
+    @VisibleForTesting
+    ExternalUploadQueue getUploadQueue() {
+        return uploadQueue;
+    }
+
     @Override
     public String writeStreamToStore(InputStream in, long actualSize,
                     Mailbox mbox) throws IOException, ServiceException {
@@ -86,6 +120,12 @@ public abstract class ContentAddressableStoreManager extends ExternalStoreManage
             ZimbraLog.store.debug("staged to locator %s", locator);
             localCache.put(locator, getContent(blob));
             return new ExternalStagedBlob(mbox, blob.getDigest(), blob.getRawSize(), locator);
+        } else if (uploadQueue != null) {
+            String locator = getLocator(blob);
+            uploadQueue.add(blob, mbox, locator);
+            ZimbraLog.store.debug("queued upload to locator %s", locator);
+            localCache.put(locator, getContent(blob));
+            return new ExternalStagedBlob(mbox, blob.getDigest(), blob.getRawSize(), locator);
         } else {
             InputStream is = getContent(blob);
             String locator = getLocator(blob);
@@ -102,6 +142,37 @@ public abstract class ContentAddressableStoreManager extends ExternalStoreManage
         }
     }
 
+    @Override
+    protected InputStream readPendingUpload(String locator, Mailbox mbox) {
+        File file = uploadQueue == null ? null : uploadQueue.getPendingFile(mbox, locator);
+        while (file != null) {
+            try {
+                return new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                // upload completed in the meantime, or gave up and moved the file to the failed directory
+                File moved = uploadQueue.getPendingFile(mbox, locator);
+                file = file.equals(moved) ? null : moved;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean delete(StagedBlob staged) throws IOException {
+        if (uploadQueue != null && staged != null && !((ExternalStagedBlob) staged).isInserted()) {
+            uploadQueue.cancel(staged.getMailbox(), staged.getLocator());
+        }
+        return super.delete(staged);
+    }
+
+    @Override
+    public boolean delete(MailboxBlob mblob) throws IOException {
+        if (uploadQueue != null && mblob != null) {
+            uploadQueue.cancel(mblob.getMailbox(), mblob.getLocator());
+        }
+        return super.delete(mblob);
+    }
+
     @Override
     public StagedBlob stage(InputStream in, long actualSize, Mailbox mbox) throws ServiceException, IOException {
         Blob blob = storeIncoming(in);
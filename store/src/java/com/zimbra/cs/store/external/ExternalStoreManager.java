@@ -24,15 +24,21 @@ import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MessageCache;
 import com.zimbra.cs.store.Blob;
@@ -53,6 +59,7 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
 
     private final IncomingDirectory incoming = new IncomingDirectory(LC.zimbra_tmp_directory.value() + File.separator + "incoming");
     protected FileCache<String> localCache;
+    private ThreadPoolExecutor prefetchExecutor;
 
     @Override
     public void startup() throws IOException, ServiceException {
@@ -81,6 +88,14 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
             .removeCallback(new MessageCacheChecker()).build();
         BlobInputStream.setFileDescriptorCache(new FileDescriptorCache(ufCache).loadSettings());
 
+        int prefetchThreads = LC.external_store_prefetch_threads.intValue();
+        if (prefetchThreads > 0) {
+            // prefetch is only a hint, drop the oldest requests when it falls behind
+            prefetchExecutor = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(prefetchThreads * 16),
+                new ThreadFactoryBuilder().setNameFormat("ExternalPrefetch-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+        }
     }
 
     private class MessageCacheChecker implements FileCache.RemoveCallback {
@@ -189,6 +204,39 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
         return new ExternalBlobInputStream(blob);
     }
 
+    /**
+     * Loads the blobs of the given items into the local cache in the background, ahead of
+     * expected reads.  Does nothing unless LC external_store_prefetch_threads is set.
+     */
+    public void prefetch(final Mailbox mbox, Collection<Integer> itemIds) {
+        if (prefetchExecutor == null || itemIds.isEmpty()) {
+            return;
+        }
+        final List<Integer> ids = new ArrayList<Integer>(itemIds);
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int id : ids) {
+                    try {
+                        MailboxBlob mblob = mbox.getItemById(null, id, MailItem.Type.UNKNOWN).getBlob();
+                        if (mblob instanceof ExternalMailboxBlob) {
+                            getLocalBlob(mbox, mblob.getLocator(), true);
+                        }
+                    } catch (ServiceException | IOException e) {
+                        ZimbraLog.store.debug("unable to prefetch item %d in mailbox %d", id, mbox.getId(), e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the content of a blob that is not in the remote store yet, or null.
+     */
+    protected InputStream readPendingUpload(String locator, Mailbox mbox) {
+        return null;
+    }
+
     protected Blob getLocalBlob(Mailbox mbox, String locator, boolean fromCache) throws IOException {
         FileCache.Item cached = null;
         if (fromCache) {
@@ -201,7 +249,10 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
             }
         }
 
-        InputStream is = readStreamFromStore(locator, mbox);
+        InputStream is = readPendingUpload(locator, mbox);
+        if (is == null) {
+            is = readStreamFromStore(locator, mbox);
+        }
         if (is == null) {
             throw new IOException("Store " + this.getClass().getName() +" returned null for locator " + locator);
         } else {
@@ -244,6 +295,10 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
     @Override
     public void shutdown() {
         IncomingDirectory.stopSweeper();
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+        }
     }
 
     @Override
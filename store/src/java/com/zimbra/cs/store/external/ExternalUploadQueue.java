@@ -0,0 +1,410 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.store.Blob;
+
+/**
+ * Uploads staged blobs to a content-addressable store in the background, so that delivery
+ * does not wait for the remote store.
+ *
+ * A staged blob is first copied to a local staging directory and synced, then uploaded by
+ * one of the upload threads.  Failed uploads are retried with a growing delay, up to a number
+ * of attempts; a blob that still can't be uploaded is moved to the <tt>failed</tt> directory
+ * under the staging directory and logged as an error.  It is still read from there, and is
+ * uploaded again after a restart once moved back to the staging directory.  Blobs left in the
+ * staging directory by a shutdown or crash are uploaded after the next startup.  Until its
+ * upload completes, the staged copy is what readers get for the blob.
+ *
+ * Blobs with the same content in a mailbox share one upload, which is cancelled when the last
+ * of them is deleted.  The count is not kept across restarts, so uploads resumed at startup
+ * are not cancelled.
+ */
+final class ExternalUploadQueue {
+
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 5 * 60 * 1000;
+    private static final Pattern PAT_TEMP_FILE = Pattern.compile("\\.tmp[0-9]+$");
+    private static final String FAILED_DIR = "failed";
+
+    private static final class Pending {
+        final int mailboxId;
+        final String locator;
+        File file;
+        // blobs waiting for this upload, 0 if unknown
+        int refs;
+        boolean uploading;
+        boolean cancelled;
+        boolean finished;
+        // gave up after the last attempt, file is in the failed directory
+        boolean failed;
+
+        Pending(int mailboxId, String locator, File file, int refs) {
+            this.mailboxId = mailboxId;
+            this.locator = locator;
+            this.file = file;
+            this.refs = refs;
+        }
+    }
+
+    private final ContentAddressableStoreManager store;
+    private final File dir;
+    private final File failedDir;
+    private final int maxAttempts;
+    private final ScheduledThreadPoolExecutor executor;
+    // keyed by staging file name
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+    ExternalUploadQueue(ContentAddressableStoreManager store, File dir, int threads, int maxAttempts) {
+        this.store = store;
+        this.dir = dir;
+        this.failedDir = new File(dir, FAILED_DIR);
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.executor = new ScheduledThreadPoolExecutor(threads,
+                new ThreadFactoryBuilder().setNameFormat("ExternalUpload-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Schedules the uploads left over from the last run.
+     */
+    void start() throws IOException {
+        FileUtil.ensureDirExists(dir);
+        FileUtil.ensureDirExists(failedDir);
+        // uploads that failed for good are still read from the failed directory
+        int failed = 0;
+        File[] files = failedDir.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            Pending upload = load(file);
+            if (upload != null) {
+                upload.failed = true;
+                pending.put(file.getName(), upload);
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            ZimbraLog.store.error("%d blobs in %s could not be uploaded to the external store; move them to %s " +
+                    "to retry after a restart", failed, failedDir.getPath(), dir.getPath());
+        }
+
+        files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        int resumed = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                continue;
+            }
+            if (PAT_TEMP_FILE.matcher(file.getName()).find()) {
+                // copy interrupted before it was staged
+                file.delete();
+                continue;
+            }
+            Pending upload = load(file);
+            if (upload != null) {
+                pending.put(file.getName(), upload);
+                schedule(upload, 0, 0);
+                resumed++;
+            }
+        }
+        if (resumed > 0) {
+            ZimbraLog.store.info("resuming %d external store uploads", resumed);
+        }
+    }
+
+    /**
+     * Returns the upload of a file staged before the last shutdown, or null if the file name is not one of a staged blob.
+     */
+    private static Pending load(File file) {
+        String name = file.getName();
+        int sep = name.indexOf('_');
+        int mailboxId;
+        try {
+            mailboxId = Integer.parseInt(name.substring(0, Math.max(sep, 0)));
+        } catch (NumberFormatException e) {
+            ZimbraLog.store.warn("ignoring unknown file %s in upload staging directory", file.getPath());
+            return null;
+        }
+        return new Pending(mailboxId, decode(name.substring(sep + 1)), file, 0);
+    }
+
+    void shutdown() {
+        // staged files stay on disk and are uploaded after the next startup
+        executor.shutdownNow();
+    }
+
+    private static String getName(int mailboxId, String locator) {
+        try {
+            return mailboxId + "_" + URLEncoder.encode(locator, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Copies the blob to the staging directory and schedules its upload.
+     */
+    void add(Blob blob, Mailbox mbox, String locator) throws IOException {
+        String name = getName(mbox.getId(), locator);
+        while (!join(pending.get(name))) {
+            File file = new File(dir, name);
+            File temp = new File(dir, name + ".tmp" + Thread.currentThread().getId());
+            InputStream in = blob.getInputStream();
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(temp);
+                ByteUtil.copy(in, false, out, false);
+                out.getChannel().force(true);
+            } finally {
+                ByteUtil.closeStream(in);
+                ByteUtil.closeStream(out);
+            }
+            FileUtil.rename(temp, file);
+            // the staged copy is the only one until it is uploaded, make the rename durable too
+            syncDir(dir);
+            Pending upload = new Pending(mbox.getId(), locator, file, 1);
+            if (pending.putIfAbsent(name, upload) == null) {
+                schedule(upload, 0, 0);
+                return;
+            }
+            // staged by another thread in the meantime, join its upload unless it finished
+            // and deleted the file
+        }
+    }
+
+    /**
+     * Adds a blob to an upload of the same content that has not finished yet.
+     */
+    private static boolean join(Pending upload) {
+        if (upload == null) {
+            return false;
+        }
+        synchronized (upload) {
+            if (upload.finished) {
+                return false;
+            }
+            if (upload.refs > 0) {
+                upload.refs++;
+            }
+            upload.cancelled = false;
+            return true;
+        }
+    }
+
+    /**
+     * Returns the staged copy of a blob whose upload has not completed, or null.
+     */
+    File getPendingFile(Mailbox mbox, String locator) {
+        Pending upload = pending.get(getName(mbox.getId(), locator));
+        if (upload == null) {
+            return null;
+        }
+        synchronized (upload) {
+            return upload.file;
+        }
+    }
+
+    /**
+     * Releases the upload of a deleted blob, and cancels it if no other blob is waiting for it.
+     * If the upload is already running, the blob is deleted from the store when it completes.
+     */
+    void cancel(Mailbox mbox, String locator) {
+        Pending upload = pending.get(getName(mbox.getId(), locator));
+        if (upload == null) {
+            return;
+        }
+        synchronized (upload) {
+            if (upload.finished || upload.refs == 0 || --upload.refs > 0) {
+                return;
+            }
+            upload.cancelled = true;
+            if (!upload.uploading) {
+                finish(upload);
+            }
+        }
+    }
+
+    private void finish(Pending upload) {
+        upload.finished = true;
+        pending.remove(upload.file.getName(), upload);
+        upload.file.delete();
+    }
+
+    private void schedule(final Pending upload, final int attempt, long delayMillis) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                upload(upload, attempt);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void upload(Pending upload, int attempt) {
+        synchronized (upload) {
+            if (upload.cancelled || upload.finished) {
+                return;
+            }
+            upload.uploading = true;
+        }
+        boolean uploaded = false;
+        Mailbox mbox = null;
+        InputStream in = null;
+        try {
+            try {
+                mbox = MailboxManager.getInstance().getMailboxById(upload.mailboxId);
+            } catch (ServiceException e) {
+                if (!MailServiceException.NO_SUCH_MBOX.equals(e.getCode())) {
+                    throw e;
+                }
+                ZimbraLog.store.info("dropping upload of %s to external store, mailbox %d was deleted",
+                        upload.locator, upload.mailboxId);
+                synchronized (upload) {
+                    upload.uploading = false;
+                    finish(upload);
+                }
+                return;
+            }
+            in = new FileInputStream(upload.file);
+            store.writeStreamToStore(in, upload.file.length(), mbox, upload.locator);
+            uploaded = true;
+        } catch (IOException | ServiceException e) {
+            if (attempt + 1 >= maxAttempts) {
+                ZimbraLog.store.error("upload of %s to external store failed %d times, giving up", upload.locator,
+                        maxAttempts, e);
+                fail(upload);
+                return;
+            }
+            long delay = Math.min(MIN_RETRY_MILLIS << Math.min(attempt, 20), MAX_RETRY_MILLIS);
+            ZimbraLog.store.warn("upload of %s to external store failed, retrying in %dms", upload.locator, delay, e);
+            schedule(upload, attempt + 1, delay);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+
+        synchronized (upload) {
+            upload.uploading = false;
+            if (upload.cancelled && uploaded) {
+                try {
+                    store.deleteFromStore(upload.locator, mbox);
+                } catch (IOException e) {
+                    ZimbraLog.store.warn("unable to delete %s from external store", upload.locator, e);
+                }
+            }
+            if (uploaded || upload.cancelled) {
+                finish(upload);
+            }
+        }
+    }
+
+    /**
+     * Moves the staged copy of an upload that failed for good to the failed directory, where
+     * it is still read from.
+     */
+    private void fail(Pending upload) {
+        synchronized (upload) {
+            upload.uploading = false;
+            if (upload.cancelled) {
+                finish(upload);
+                return;
+            }
+            File file = new File(failedDir, upload.file.getName());
+            try {
+                FileUtil.rename(upload.file, file);
+                syncDir(failedDir);
+                syncDir(dir);
+                upload.file = file;
+                ZimbraLog.store.error("moved %s to %s, move it back to %s to retry the upload after a restart",
+                        upload.locator, file.getPath(), dir.getPath());
+            } catch (IOException e) {
+                ZimbraLog.store.error("unable to move %s to %s", upload.file.getPath(), failedDir.getPath(), e);
+            }
+            upload.failed = true;
+        }
+    }
+
+    private static void syncDir(File dir) throws IOException {
+        FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Returns the number of uploads that gave up after the last attempt.
+     */
+    int getFailedCount() {
+        int failed = 0;
+        for (Pending upload : pending.values()) {
+            synchronized (upload) {
+                if (upload.failed) {
+                    failed++;
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Waits until every upload has completed or failed for good.
+     */
+    @VisibleForTesting
+    boolean awaitUploads(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (pending.size() > getFailedCount()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.store.Blob;
+
+/**
+ * Example implementation of ContentAddressableStoreManager which writes to a flat directory structure,
+ * using the hex encoded SHA-256 of the content as locator
+ * This is intended for illustration purposes only; it should *never* be used in a production environment
+ */
+public class SimpleContentAddressableStoreManager extends ContentAddressableStoreManager {
+
+    private File directory;
+
+    @Override
+    public void startup() throws IOException, ServiceException {
+        ZimbraLog.store.info("Using SimpleContentAddressableStoreManager. If you are seeing this in production you have done something WRONG!");
+        directory = new File(LC.zimbra_tmp_directory.value(), "simplecas/blobs");
+        FileUtil.mkdirs(directory);
+        super.startup();
+    }
+
+    private File getFile(Mailbox mbox, String locator) {
+        return new File(new File(directory, mbox.getAccountId()), locator);
+    }
+
+    @Override
+    public byte[] getHash(Blob blob) throws ServiceException, IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw ServiceException.FAILURE("SHA-256 digest not found", e);
+        }
+        InputStream in = getContent(blob);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+        return digest.digest();
+    }
+
+    @Override
+    protected String getLocator(Blob blob) throws ServiceException, IOException {
+        return getLocator(getHash(blob));
+    }
+
+    @Override
+    public String getLocator(byte[] hash) {
+        return new String(Hex.encodeHex(hash));
+    }
+
+    @Override
+    protected void writeStreamToStore(InputStream in, long actualSize, Mailbox mbox, String locator) throws IOException {
+        File file = getFile(mbox, locator);
+        FileUtil.mkdirs(file.getParentFile());
+        FileUtil.copy(in, false, file);
+    }
+
+    @Override
+    public InputStream readStreamFromStore(String locator, Mailbox mbox) throws IOException {
+        return new FileInputStream(getFile(mbox, locator));
+    }
+
+    @Override
+    public boolean deleteFromStore(String locator, Mailbox mbox) throws IOException {
+        return getFile(mbox, locator).delete();
+    }
+
+    @Override
+    public boolean supports(StoreFeature feature) {
+        if (feature == StoreFeature.CENTRALIZED) {
+            return false;
+        } else {
+            return super.supports(feature);
+        }
+    }
+}
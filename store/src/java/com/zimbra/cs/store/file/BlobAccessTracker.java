@@ -0,0 +1,127 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Sampled record of which items' blobs are read, kept per mailbox in a count-min sketch.
+ *
+ * Each sketch is a fixed 4 KB of saturating byte counters, so the estimated read count of an
+ * item can be too high (when items share counters) but never too low.  A blob estimated at
+ * zero reads was certainly not read in a sampled read.  The counters are halved after every
+ * blob tiering pass so that old reads fade out.  Counter updates are not synchronized; a
+ * racing update may lose a count, which is fine for a sampled estimate.
+ *
+ * Sketches live in memory only and are lost on restart.
+ */
+final class BlobAccessTracker {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH_BITS = 10;
+    private static final int WIDTH = 1 << WIDTH_BITS;
+    // odd multipliers, one hash function per row
+    private static final int[] SEEDS = { 0x9e3779b1, 0x85ebca77, 0xc2b2ae3d, 0x27d4eb2f };
+
+    private static final ConcurrentMap<Integer, byte[]> SKETCHES = new ConcurrentHashMap<Integer, byte[]>();
+
+    private BlobAccessTracker() {
+    }
+
+    static boolean isEnabled() {
+        return LC.zimbra_blob_access_sample_rate.intValue() > 0;
+    }
+
+    private static int index(int row, int itemId) {
+        return row * WIDTH + ((itemId * SEEDS[row]) >>> (32 - WIDTH_BITS));
+    }
+
+    /**
+     * Records a read of the item's blob, if the read is sampled.
+     */
+    static void recordAccess(int mailboxId, int itemId) {
+        int rate = LC.zimbra_blob_access_sample_rate.intValue();
+        if (rate <= 0 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0)) {
+            return;
+        }
+        byte[] sketch = SKETCHES.get(mailboxId);
+        if (sketch == null) {
+            sketch = new byte[DEPTH * WIDTH];
+            byte[] existing = SKETCHES.putIfAbsent(mailboxId, sketch);
+            if (existing != null) {
+                sketch = existing;
+            }
+        }
+        for (int row = 0; row < DEPTH; row++) {
+            int i = index(row, itemId);
+            if ((sketch[i] & 0xff) < 0xff) {
+                sketch[i]++;
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated number of sampled reads of the item's blob since the counters
+     * were last decayed to zero.
+     */
+    static int getAccessCount(int mailboxId, int itemId) {
+        byte[] sketch = SKETCHES.get(mailboxId);
+        if (sketch == null) {
+            return 0;
+        }
+        int count = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            count = Math.min(count, sketch[index(row, itemId)] & 0xff);
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if any sampled reads are recorded for the mailbox.
+     */
+    static boolean hasAccesses(int mailboxId) {
+        return SKETCHES.containsKey(mailboxId);
+    }
+
+    /**
+     * Halves all counters, and drops the sketches that are all zero.
+     */
+    static void decay() {
+        for (Iterator<byte[]> iter = SKETCHES.values().iterator(); iter.hasNext(); ) {
+            byte[] sketch = iter.next();
+            boolean empty = true;
+            for (int i = 0; i < sketch.length; i++) {
+                sketch[i] = (byte) ((sketch[i] & 0xff) >>> 1);
+                empty &= sketch[i] == 0;
+            }
+            if (empty) {
+                iter.remove();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static void reset() {
+        SKETCHES.clear();
+    }
+}
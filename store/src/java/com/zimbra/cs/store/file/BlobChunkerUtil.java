@@ -0,0 +1,435 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.CliUtil;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.store.BlobCodec;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+
+/**
+ * Converts the blobs of file volumes to the {@link ChunkedBlobFile} format and removes
+ * chunks that are no longer referenced.
+ *
+ * Blobs are converted in place: the manifest is written next to the blob, verified against
+ * the blob data and then renamed over the blob, so readers always see either format.  Blobs
+ * hard linked by message dedupe get one manifest, linked again in place of each of them.  The
+ * chunk store of a volume is the <tt>chunks</tt> directory under the volume root.  Volumes
+ * are read from the database, so the tool runs on a mailbox server.
+ *
+ * gc only removes chunks that have not been written or reused for the grace period, since a
+ * blob being written when the mark phase runs may refer to chunks whose manifest it does not
+ * see yet.
+ */
+public class BlobChunkerUtil {
+
+    private static final String LO_HELP = "help";
+    private static final String LO_VERBOSE = "verbose";
+    private static final String LO_PATHS = "paths";
+    private static final String LO_MIN_SIZE = "min-size";
+    private static final String LO_GRACE_PERIOD = "grace-period";
+
+    private static final String INCOMING_DIR = "incoming";
+    private static final Pattern PAT_BLOB_FILENAME = Pattern.compile("[0-9]+-[0-9]+\\.msg");
+    private static final long DEFAULT_MIN_SIZE = 256 * 1024;
+    private static final long DEFAULT_GRACE_PERIOD = 24 * 3600;
+
+    private enum Action { migrate, gc }
+
+    private Options options;
+    private boolean verbose = false;
+    private List<String> paths;
+    // roots of all message volumes, and the ones to migrate or gc
+    private Set<File> allRoots = new HashSet<File>();
+    private List<File> roots = new ArrayList<File>();
+    private long minSize = DEFAULT_MIN_SIZE;
+    private long gracePeriodSecs = DEFAULT_GRACE_PERIOD;
+    private Action action;
+    // converted blobs that have other hard links, by the file key the blob had before
+    private Map<Object, File> convertedLinks = new HashMap<Object, File>();
+
+    private int blobsConverted = 0;
+    private int linksConverted = 0;
+    private long rawBytes = 0;
+    private long manifestBytes = 0;
+
+    private BlobChunkerUtil() {
+        options = new Options();
+
+        options.addOption(new Option("h", LO_HELP, false, "Display this help message."));
+        options.addOption(new Option("v", LO_VERBOSE, false, "Display stack trace on error."));
+
+        Option o = new Option(null, LO_PATHS, true, "Root directories of the message volumes to work on.  " +
+            "Default all message volumes.  gc reads the manifests of all message volumes either way.");
+        o.setArgName("paths");
+        options.addOption(o);
+
+        o = new Option(null, LO_MIN_SIZE, true, "Only convert blobs of at least this many bytes.  Default " +
+            DEFAULT_MIN_SIZE + ".");
+        o.setArgName("bytes");
+        options.addOption(o);
+
+        o = new Option(null, LO_GRACE_PERIOD, true, "gc only removes chunks not written or reused for this " +
+            "many seconds.  Default " + DEFAULT_GRACE_PERIOD + ".");
+        o.setArgName("seconds");
+        options.addOption(o);
+    }
+
+    private void usage(String errorMsg) {
+        int exitStatus = 0;
+
+        if (errorMsg != null) {
+            System.err.println(errorMsg);
+            exitStatus = 1;
+        }
+        HelpFormatter format = new HelpFormatter();
+        format.printHelp(new PrintWriter(System.err, true), 80,
+            "zmchunkblobs [options] migrate/gc", null, options, 2, 2,
+            "\nThe \"migrate/gc\" command is required, to avoid unintentionally converting blobs.  " +
+            "Paths are separated by commas.");
+        System.exit(exitStatus);
+    }
+
+    private void parseArgs(String[] args)
+    throws ParseException {
+        GnuParser parser = new GnuParser();
+        CommandLine cl = parser.parse(options, args);
+
+        if (CliUtil.hasOption(cl, LO_HELP)) {
+            usage(null);
+        }
+        if (cl.getArgs().length == 0) {
+            usage(null);
+        }
+        try {
+            action = Action.valueOf(cl.getArgs()[0]);
+        } catch (IllegalArgumentException e) {
+            usage(null);
+        }
+
+        verbose = CliUtil.hasOption(cl, LO_VERBOSE);
+
+        String pathList = CliUtil.getOptionValue(cl, LO_PATHS);
+        if (pathList != null) {
+            paths = Arrays.asList(pathList.split(","));
+        }
+
+        String size = CliUtil.getOptionValue(cl, LO_MIN_SIZE);
+        if (size != null) {
+            try {
+                minSize = Long.parseLong(size);
+            } catch (NumberFormatException e) {
+                usage("Invalid size: " + size);
+            }
+        }
+
+        String grace = CliUtil.getOptionValue(cl, LO_GRACE_PERIOD);
+        if (grace != null) {
+            try {
+                gracePeriodSecs = Long.parseLong(grace);
+            } catch (NumberFormatException e) {
+                usage("Invalid grace period: " + grace);
+            }
+        }
+    }
+
+    private void run() throws IOException, ServiceException {
+        CliUtil.toolSetup();
+        DbPool.startup();
+        try {
+            loadVolumes();
+        } finally {
+            DbPool.shutdown();
+        }
+        if (action == Action.migrate) {
+            for (File root : roots) {
+                // a manifest only refers to the chunk store of its own volume
+                convertedLinks.clear();
+                migrate(root, ChunkedBlobFile.getChunkDir(root.getPath()), root);
+            }
+            System.out.println("Blobs converted = " + blobsConverted);
+            System.out.println("Hard links converted = " + linksConverted);
+            System.out.println("Total size of converted blobs = " + rawBytes);
+            System.out.println("Total size of manifests = " + manifestBytes);
+        } else {
+            gc();
+        }
+    }
+
+    private void loadVolumes() throws ServiceException {
+        for (Volume volume : VolumeManager.getInstance().getAllVolumes()) {
+            if (volume.getType() == Volume.TYPE_MESSAGE || volume.getType() == Volume.TYPE_MESSAGE_SECONDARY) {
+                allRoots.add(new File(volume.getRootPath()).getAbsoluteFile());
+            }
+        }
+        if (paths == null) {
+            roots.addAll(allRoots);
+            return;
+        }
+        for (String path : paths) {
+            File root = new File(path).getAbsoluteFile();
+            if (!allRoots.contains(root)) {
+                usage("Not the root directory of a message volume: " + path);
+            }
+            roots.add(root);
+        }
+    }
+
+    /**
+     * Returns true if the subdirectory of a volume directory holds no blobs of the volume: its
+     * chunk store, its incoming directory or the root of another volume.
+     */
+    private boolean skip(File root, File dir, File subdir) {
+        if (dir.equals(root) && (subdir.getName().equals(ChunkedBlobFile.CHUNK_DIR) ||
+                subdir.getName().equals(INCOMING_DIR))) {
+            return true;
+        }
+        return allRoots.contains(subdir.getAbsoluteFile());
+    }
+
+    private void migrate(File root, File chunkDir, File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!skip(root, dir, file)) {
+                    migrate(root, chunkDir, file);
+                }
+            } else if (PAT_BLOB_FILENAME.matcher(file.getName()).matches() && file.length() >= minSize
+                    && BlobCodec.detect(file) == null && !ChunkedBlobFile.isChunked(file)) {
+                try {
+                    convert(file, chunkDir);
+                } catch (IOException e) {
+                    System.err.println("Unable to convert " + file.getPath() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void convert(File file, File chunkDir) throws IOException {
+        Object fileKey = getFileKey(file);
+        long length = file.length();
+        File manifest = new File(file.getPath() + "_CHUNK");
+        File converted = convertedLinks.get(fileKey);
+        if (converted != null) {
+            // another link to a blob already converted, link to its manifest too
+            try {
+                Files.createLink(manifest.toPath(), converted.toPath());
+                if (fileKey.equals(getFileKey(file)) && manifest.renameTo(file)) {
+                    linksConverted++;
+                }
+            } finally {
+                if (manifest.exists()) {
+                    manifest.delete();
+                }
+            }
+            return;
+        }
+        int links = getLinkCount(file);
+        try {
+            InputStream in = new DigestInputStream(new FileInputStream(file), newDigest());
+            ChunkedBlobFile chunked;
+            try {
+                chunked = ChunkedBlobFile.write(in, chunkDir, manifest, true);
+            } finally {
+                ByteUtil.closeStream(in);
+            }
+            byte[] expected = ((DigestInputStream) in).getMessageDigest().digest();
+            if (chunked.getRawSize() != length || !Arrays.equals(expected, digest(ChunkedBlobFile.read(manifest, chunkDir)))) {
+                throw new IOException("reassembled data does not match");
+            }
+            // the blob may have been deleted or replaced in the meantime
+            if (!fileKey.equals(getFileKey(file)) || !manifest.renameTo(file)) {
+                return;
+            }
+            if (links > 1) {
+                convertedLinks.put(fileKey, file);
+            }
+            blobsConverted++;
+            rawBytes += length;
+            manifestBytes += file.length();
+        } finally {
+            if (manifest.exists()) {
+                manifest.delete();
+            }
+        }
+    }
+
+    private void gc() throws IOException {
+        // chunks written or reused since then may be referenced by manifests the mark phase does not see
+        long cutoff = System.currentTimeMillis() - gracePeriodSecs * 1000;
+        // names of the referenced chunks by chunk store, from the manifests of every volume
+        Map<File, Set<String>> referenced = new HashMap<File, Set<String>>();
+        for (File root : allRoots) {
+            mark(root, ChunkedBlobFile.getChunkDir(root.getPath()), root, referenced);
+        }
+        int chunks = 0;
+        int referencedChunks = 0;
+        int removed = 0;
+        long removedBytes = 0;
+        for (File root : roots) {
+            File chunkDir = ChunkedBlobFile.getChunkDir(root.getPath());
+            Set<String> names = referenced.get(chunkDir);
+            if (names == null) {
+                names = new HashSet<String>();
+            }
+            referencedChunks += names.size();
+            File[] dirs = chunkDir.listFiles();
+            if (dirs == null) {
+                continue;
+            }
+            for (File dir : dirs) {
+                File[] files = dir.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    chunks++;
+                    if (!names.contains(file.getName()) && file.lastModified() < cutoff) {
+                        long size = file.length();
+                        if (file.delete()) {
+                            removed++;
+                            removedBytes += size;
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println("Chunks = " + chunks);
+        System.out.println("Chunks referenced = " + referencedChunks);
+        System.out.println("Chunks removed = " + removed);
+        System.out.println("Total size removed = " + removedBytes);
+    }
+
+    private void mark(File root, File chunkDir, File dir, Map<File, Set<String>> referenced) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!skip(root, dir, file)) {
+                    mark(root, chunkDir, file, referenced);
+                }
+            } else if (ChunkedBlobFile.isChunked(file)) {
+                Set<String> names = referenced.get(chunkDir);
+                if (names == null) {
+                    names = new HashSet<String>();
+                    referenced.put(chunkDir, names);
+                }
+                for (ChunkedBlobFile.Chunk chunk : ChunkedBlobFile.read(file, chunkDir).getChunks()) {
+                    names.add(chunk.getName());
+                }
+            }
+        }
+    }
+
+    private static Object getFileKey(File file) throws IOException {
+        Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        return key != null ? key : file.lastModified();
+    }
+
+    /**
+     * Returns the number of hard links to the file, or 2 if the file system doesn't tell.
+     */
+    private static int getLinkCount(File file) {
+        try {
+            return (Integer) Files.getAttribute(file.toPath(), "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            return 2;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] digest(ChunkedBlobFile chunked) throws IOException {
+        MessageDigest md = newDigest();
+        InputStream in = chunked.getInputStream();
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                md.update(buf, 0, n);
+            }
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+        return md.digest();
+    }
+
+    public static void main(String[] args) {
+        BlobChunkerUtil app = new BlobChunkerUtil();
+
+        try {
+            app.parseArgs(args);
+        } catch (ParseException e) {
+            app.usage(e.getMessage());
+        }
+
+        try {
+            app.run();
+        } catch (Exception e) {
+            if (app.verbose) {
+                e.printStackTrace(new PrintWriter(System.err, true));
+            } else {
+                String msg = e.getMessage();
+                if (msg == null) {
+                    msg = e.toString();
+                }
+                System.err.println(msg);
+            }
+            System.exit(1);
+        }
+    }
+}
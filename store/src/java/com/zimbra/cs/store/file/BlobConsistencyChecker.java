@@ -27,7 +27,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
@@ -37,7 +36,6 @@ import com.zimbra.common.soap.AdminConstants;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.MailConstants;
 import com.zimbra.common.util.ByteUtil;
-import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.DbBlobConsistency;
@@ -45,6 +43,7 @@ import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.store.BlobCodec;
 import com.zimbra.cs.store.StoreManager;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
@@ -326,6 +325,7 @@ public class BlobConsistencyChecker {
         }
         log.info("Comparing %d items to %d files in %s.", blobsById.size(), files.length, blobDirPath);
         for (File file : files) {
+            BlobScanThrottle.acquire();
             // Parse id and mod_content value from filename.
             Matcher matcher = PAT_BLOB_FILENAME.matcher(file.getName());
             int itemId = 0;
@@ -405,8 +405,10 @@ public class BlobConsistencyChecker {
     protected long getDataSize(File file, long expected)
     throws IOException {
         long fileLen = file.length();
-        if (fileLen != expected && FileUtil.isGzipped(file)) {
-            return ByteUtil.getDataLength(new GZIPInputStream(new FileInputStream(file)));
+        if (fileLen != expected && BlobCodec.detect(file) != null) {
+            return ByteUtil.getDataLength(BlobCodec.decompressAny(new FileInputStream(file)));
+        } else if (fileLen != expected && ChunkedBlobFile.isChunked(file)) {
+            return ChunkedBlobFile.read(file).getRawSize();
         } else {
             return fileLen;
         }
@@ -19,9 +19,20 @@ package com.zimbra.cs.store.file;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -56,6 +67,8 @@ public class BlobConsistencyUtil {
     private static final String LO_NO_EXPORT = "no-export";
     private static final String LO_OUTPUT_USED_BLOBS = "output-used-blobs";
     private static final String LO_USED_BLOB_LIST = "used-blob-list";
+    private static final String LO_THREADS = "threads";
+    private static final String LO_CHECKPOINT = "checkpoint";
 
     private Options options;
     private List<Integer> mailboxIds;
@@ -71,6 +84,10 @@ public class BlobConsistencyUtil {
     private boolean outputUsedBlobs = false;
     private String usedBlobList;
     private PrintWriter usedBlobWriter;
+    private int threads = 1;
+    private String checkpoint;
+    private PrintWriter checkpointWriter;
+    private final ThreadLocal<SoapProvisioning> threadProv = new ThreadLocal<SoapProvisioning>();
 
     private BlobConsistencyUtil() {
         options = new Options();
@@ -103,6 +120,16 @@ public class BlobConsistencyUtil {
         options.addOption(o);
 
         options.addOption(null, LO_NO_EXPORT, false, "Delete items without exporting.");
+
+        o = new Option(null, LO_THREADS, true, "Number of mailboxes to check at the same time.  Default 1.");
+        o.setArgName("count");
+        options.addOption(o);
+
+        o = new Option(null, LO_CHECKPOINT, true,
+            "Record checked mailboxes in a file, and skip the mailboxes already recorded there.  " +
+            "Lets an interrupted check resume where it stopped.");
+        o.setArgName("path");
+        options.addOption(o);
         options.addOption(new Option(null, LO_INCORRECT_REVISION_RENAME_FILE, false,
             "Rename the file on disk when the revision number doesn't match."));
     }
@@ -178,6 +205,16 @@ public class BlobConsistencyUtil {
         }
 
         incorrectRevisionRenameFile = CliUtil.hasOption(cl, LO_INCORRECT_REVISION_RENAME_FILE);
+
+        String threadCount = CliUtil.getOptionValue(cl, LO_THREADS);
+        if (threadCount != null) {
+            try {
+                threads = Integer.parseInt(threadCount);
+            } catch (NumberFormatException e) {
+                usage("Invalid thread count: " + threadCount);
+            }
+        }
+        checkpoint = CliUtil.getOptionValue(cl, LO_CHECKPOINT);
     }
 
     private void run()
@@ -191,19 +228,38 @@ public class BlobConsistencyUtil {
         }
 
         CliUtil.toolSetup();
-        SoapProvisioning prov = SoapProvisioning.getAdminInstance();
-        prov.soapZimbraAdminAuthenticate();
+        SoapProvisioning prov = getProvisioning();
         if (mailboxIds == null) {
             mailboxIds = getAllMailboxIds(prov);
         }
+        if (checkpoint != null) {
+            Set<Integer> checked = readCheckpoint();
+            List<Integer> unchecked = new ArrayList<Integer>();
+            for (int mboxId : mailboxIds) {
+                if (!checked.contains(mboxId)) {
+                    unchecked.add(mboxId);
+                }
+            }
+            if (unchecked.size() < mailboxIds.size()) {
+                System.out.format("Skipping %d mailboxes listed in %s.\n", mailboxIds.size() - unchecked.size(), checkpoint);
+            }
+            mailboxIds = unchecked;
+            checkpointWriter = new PrintWriter(new FileOutputStream(checkpoint, true), true);
+        }
         try {
-        	DbPool.startup();
-        	for (int mboxId : mailboxIds) {
-        		System.out.println("Checking mailbox " + mboxId + ".");
-        		checkMailbox(mboxId, prov);
-        	}
+            DbPool.startup();
+            if (threads <= 1) {
+                for (int mboxId : mailboxIds) {
+                    checkMailbox(mboxId, prov);
+                }
+            } else {
+                checkMailboxes();
+            }
         }  finally{
-        	DbPool.shutdown();
+            DbPool.shutdown();
+            if (checkpointWriter != null) {
+                checkpointWriter.close();
+            }
         }
         if (unexpectedBlobWriter != null) {
             unexpectedBlobWriter.close();
@@ -214,6 +270,77 @@ public class BlobConsistencyUtil {
         }
     }
 
+    /**
+     * Returns the provisioning of the current thread.  Each checker thread sends its
+     * requests over its own connection.
+     */
+    private SoapProvisioning getProvisioning() throws ServiceException {
+        SoapProvisioning prov = threadProv.get();
+        if (prov == null) {
+            prov = SoapProvisioning.getAdminInstance();
+            prov.soapZimbraAdminAuthenticate();
+            threadProv.set(prov);
+        }
+        return prov;
+    }
+
+    private void checkMailboxes() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(mailboxIds.size());
+        for (final int mboxId : mailboxIds) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    checkMailbox(mboxId, getProvisioning());
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        // stop at the first failure like the single threaded check, but report every mailbox
+        // that failed while the checks already running finish
+        Throwable failure = null;
+        int errors = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (CancellationException e) {
+                // not started after an earlier failure
+            } catch (ExecutionException e) {
+                errors++;
+                System.err.println("Unable to check mailbox " + mailboxIds.get(i) + ": " + e.getCause());
+                if (failure == null) {
+                    failure = e.getCause();
+                    for (Future<Void> future : futures) {
+                        future.cancel(false);
+                    }
+                }
+            }
+        }
+        if (failure != null) {
+            System.err.println(errors + " mailbox checks failed.");
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw (Exception) failure;
+        }
+    }
+
+    private Set<Integer> readCheckpoint() throws IOException {
+        Set<Integer> checked = new HashSet<Integer>();
+        File file = new File(checkpoint);
+        if (file.exists()) {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                try {
+                    checked.add(Integer.parseInt(line.trim()));
+                } catch (NumberFormatException e) {
+                    // partially written last line
+                }
+            }
+        }
+        return checked;
+    }
+
     private List<Integer> getAllMailboxIds(SoapProvisioning prov)
     throws ServiceException {
         List<Integer> ids = new ArrayList<Integer>();
@@ -246,7 +373,19 @@ public class BlobConsistencyUtil {
         if (prov.isExpired()) {
             prov.soapZimbraAdminAuthenticate();
         }
+        System.out.println("Checking mailbox " + mboxId + ".");
         Element response = prov.invoke(request);
+        // keep the output of a mailbox together when checking in parallel
+        synchronized (this) {
+            reportAndFix(response, prov);
+            if (checkpointWriter != null) {
+                checkpointWriter.println(mboxId);
+            }
+        }
+    }
+
+    private void reportAndFix(Element response, SoapProvisioning prov)
+    throws ServiceException {
         for (Element mboxEl : response.listElements(AdminConstants.E_MAILBOX)) {
             // Print results.
             BlobConsistencyChecker.Results results = new BlobConsistencyChecker.Results(mboxEl);
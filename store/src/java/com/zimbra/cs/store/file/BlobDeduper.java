@@ -27,11 +27,18 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.collections.MultiMap;
 import org.apache.commons.collections.map.MultiValueMap;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
@@ -54,6 +61,7 @@ public class BlobDeduper {
     private boolean stopProcessing = false;
     private int totalLinksCreated = 0;
     private long totalSizeSaved = 0;
+    private int totalErrors = 0;
     private Map<Short, String> volumeBlobsProgress = new LinkedHashMap<Short, String>();
     private Map<Short, String> blobDigestsProgress = new LinkedHashMap<Short, String>();
     
@@ -79,6 +87,7 @@ public class BlobDeduper {
         // dedupe the paths
         if (blobs.size() > 1) {
             ZimbraLog.misc.debug("Deduping " + blobs.size() + " files for digest " + digest + " volume " + volume.getId());
+            BlobScanThrottle.acquire(blobs.size());
             return deDupe(blobs);
         } else if (blobs.size() == 1) { 
             // mark the blob as processed if there is only one blob for given digest.
@@ -238,6 +247,10 @@ public class BlobDeduper {
         totalSizeSaved += size;
     }
 
+    private synchronized void incrementErrors() {
+        totalErrors++;
+    }
+
     public synchronized Pair<Integer, Long> getCountAndSize() {
         return new Pair<Integer,Long>(totalLinksCreated, totalSizeSaved);
     }
@@ -312,6 +325,7 @@ public class BlobDeduper {
             inProgress = true;
             totalLinksCreated = 0;
             totalSizeSaved = 0;
+            totalErrors = 0;
             volumeBlobsProgress.clear();
             blobDigestsProgress.clear();
         }
@@ -402,8 +416,73 @@ public class BlobDeduper {
             }
         }
         
+        private void processDigests(final Volume vol, final SpoolingCache<String> digests) throws InterruptedException {
+            final short volumeId = vol.getId();
+            final AtomicInteger count = new AtomicInteger();
+            // an Error thrown by a worker, rethrown once the workers are done
+            final AtomicReference<Error> failure = new AtomicReference<Error>();
+            setBlobDigestsProgress(volumeId, count + "/" + digests.size());
+            int threads = LC.zimbra_blob_dedupe_threads.intValue();
+            ThreadPoolExecutor executor = null;
+            if (threads > 1) {
+                // digests are independent of each other; the bounded queue keeps the spooled
+                // digests from being read into memory ahead of the workers
+                executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(threads * 4),
+                        new ThreadFactoryBuilder().setNameFormat("BlobDeduper-%d").setDaemon(true).build(),
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+            }
+            try {
+                for (final String digest : digests) {
+                    if (isStopProcessing()) {
+                        ZimbraLog.misc.info("Recieved the stop signal. Stopping the deduplication process.");
+                        break;
+                    }
+                    if (failure.get() != null) {
+                        break;
+                    }
+                    Runnable task = new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isStopProcessing() || failure.get() != null) {
+                                return;
+                            }
+                            try {
+                                Pair<Integer, Long> pair = processDigest(digest, vol);
+                                incrementCountAndSize(pair.getFirst(), pair.getSecond());
+                            } catch (ServiceException | RuntimeException e) {
+                                // left unprocessed for the next run
+                                incrementErrors();
+                                ZimbraLog.misc.warn("error while deduping digest %s", digest, e);
+                            } catch (Error e) {
+                                incrementErrors();
+                                failure.compareAndSet(null, e);
+                            }
+                            setBlobDigestsProgress(volumeId, count.incrementAndGet() + "/" + digests.size());
+                        }
+                    };
+                    if (executor != null) {
+                        executor.execute(task);
+                    } else {
+                        task.run();
+                    }
+                }
+            } finally {
+                if (executor != null) {
+                    executor.shutdown();
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+
         public void run() {   
             for (short volumeId : volumeIds) {
+                if (isStopProcessing()) {
+                    break;
+                }
                 try {
                     ZimbraLog.misc.info("Running deduper for volume %d", volumeId);
                     Volume vol = VolumeManager.getInstance().getVolume(volumeId);
@@ -417,26 +496,15 @@ public class BlobDeduper {
                     } finally {
                         DbPool.quietClose(conn);
                     }
-                    int count = 0;
-                    setBlobDigestsProgress(volumeId, count + "/" + digests.size());
-                    for (String digest : digests) {
-                        Pair<Integer, Long> pair = processDigest(digest, vol);
-                        incrementCountAndSize(pair.getFirst(), pair.getSecond());
-                        count++;
-                        setBlobDigestsProgress(volumeId, count + "/" + digests.size());
-                        if (isStopProcessing()) {
-                            ZimbraLog.misc.info("Recieved the stop signal. Stopping the deduplication process.");
-                            break;
-                        }
-                    }
+                    processDigests(vol, digests);
                 } catch (Throwable t) {
                     ZimbraLog.misc.error("error while performing deduplication", t);
-                } finally {
-                    resetProgress();
                 }
             }
+            resetProgress();
             ZimbraLog.misc.info("Deduping done. Total of " + totalLinksCreated
-                    + " links created and saved approximately " + totalSizeSaved + " bytes.");
+                    + " links created and saved approximately " + totalSizeSaved + " bytes, "
+                    + totalErrors + " digests failed.");
         }
     }
 }
@@ -0,0 +1,53 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Limits the rate at which maintenance jobs (blob consistency checks, blob dedupe) examine
+ * blob files, so that a full scan of a large volume does not saturate its disk.  The limit
+ * is shared by all threads of all jobs and set with LC zimbra_blob_scan_max_files_per_second.
+ */
+final class BlobScanThrottle {
+
+    private static final RateLimiter LIMITER;
+    static {
+        int rate = LC.zimbra_blob_scan_max_files_per_second.intValue();
+        LIMITER = rate > 0 ? RateLimiter.create(rate) : null;
+    }
+
+    private BlobScanThrottle() {
+    }
+
+    /**
+     * Blocks until the next blob file may be examined.
+     */
+    static void acquire() {
+        acquire(1);
+    }
+
+    /**
+     * Blocks until the given number of blob files may be examined.
+     */
+    static void acquire(int files) {
+        if (LIMITER != null && files > 0) {
+            LIMITER.acquire(files);
+        }
+    }
+}
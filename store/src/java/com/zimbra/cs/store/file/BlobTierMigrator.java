@@ -0,0 +1,334 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.db.DbMailbox;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.db.DbVolumeBlobs;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.MailboxBlob.MailboxBlobInfo;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+
+/**
+ * Moves blobs between primary and secondary message volumes based on how often they are read,
+ * as recorded by {@link BlobAccessTracker}.
+ *
+ * Every LC zimbra_blob_tiering_interval, blobs of items older than zimbra_blob_tiering_cold_age
+ * that were not read since the previous pass are moved from the primary message volumes to the
+ * current secondary message volume.  Blobs on secondary volumes read at least
+ * zimbra_blob_tiering_promote_min_reads times are moved back to the current message volume,
+ * while its file system is less full than zimbra_blob_tiering_primary_max_usage_percent.
+ * Copies are throttled to zimbra_blob_tiering_max_bytes_per_second, and item locators are
+ * updated one batch of blobs per database transaction.
+ *
+ * The old copy of a moved blob is deleted by the next pass or at shutdown, so that readers that
+ * looked up the old locator just before the move can still open it.  Old copies left behind by
+ * a crash are reported by zmblobchk as unexpected blobs.
+ *
+ * A blob file hard linked to several items, by shared delivery or zmdedupe, is copied once per pass
+ * and the other items that move in the same pass are linked to that copy.  Items of a shared blob
+ * that stay behind, or move in a later pass, keep a separate copy, so such a blob takes space on
+ * both volumes until zmdedupe is run again.
+ */
+final class BlobTierMigrator {
+
+    private static final int BATCH_SIZE = 100;
+    private static BlobTierMigrator instance;
+
+    private final FileBlobStore store;
+    private final ScheduledExecutorService executor;
+    private final RateLimiter throttle;
+    // old copies of the blobs moved by the last pass
+    private final List<File> retired = new ArrayList<File>();
+    // copies made by this pass of blob files with several hard links, by file key of the old copy
+    private final Map<Object, File> linkedCopies = new HashMap<Object, File>();
+    private volatile boolean stopped;
+    private boolean firstPass = true;
+
+    @VisibleForTesting
+    BlobTierMigrator(FileBlobStore store) {
+        this.store = store;
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("BlobTierMigrator").setDaemon(true).build());
+        long bytesPerSecond = LC.zimbra_blob_tiering_max_bytes_per_second.longValue();
+        this.throttle = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+    }
+
+    static synchronized void startup(FileBlobStore store) {
+        long interval = LC.zimbra_blob_tiering_interval.longValue();
+        if (instance != null || interval <= 0 || !BlobAccessTracker.isEnabled()) {
+            return;
+        }
+        final BlobTierMigrator migrator = new BlobTierMigrator(store);
+        migrator.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                migrator.runPass();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        instance = migrator;
+        ZimbraLog.store.info("blob tiering enabled, interval %dms", interval);
+    }
+
+    static synchronized void shutdown() {
+        if (instance == null) {
+            return;
+        }
+        instance.stopped = true;
+        instance.executor.shutdown();
+        try {
+            instance.executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // no readers left to use the old copies
+        instance.deleteRetired();
+        instance = null;
+    }
+
+    private void deleteRetired() {
+        synchronized (retired) {
+            for (File file : retired) {
+                if (!file.delete() && file.exists()) {
+                    ZimbraLog.store.warn("unable to delete %s after moving it to another volume", file.getPath());
+                }
+            }
+            retired.clear();
+        }
+    }
+
+    private static int getUsagePercent(Volume vol) {
+        File root = new File(vol.getRootPath());
+        long total = root.getTotalSpace();
+        return total == 0 ? 0 : (int) ((total - root.getUsableSpace()) * 100 / total);
+    }
+
+    private static boolean isMovable(Volume vol) {
+        return vol.getStoreType() == Volume.StoreType.INTERNAL;
+    }
+
+    @VisibleForTesting
+    void runPass() {
+        try {
+            deleteRetired();
+            linkedCopies.clear();
+            VolumeManager mgr = VolumeManager.getInstance();
+            Volume primary = mgr.getCurrentMessageVolume();
+            Volume secondary = mgr.getCurrentSecondaryMessageVolume();
+            if (primary == null || secondary == null || !isMovable(primary) || !isMovable(secondary)) {
+                ZimbraLog.store.debug("blob tiering needs a current primary and secondary internal message volume");
+                return;
+            }
+            int remaining = LC.zimbra_blob_tiering_max_blobs_per_pass.intValue();
+            int coldDate = (int) ((System.currentTimeMillis() - LC.zimbra_blob_tiering_cold_age.longValue()) / 1000);
+            boolean promote = getUsagePercent(primary) < LC.zimbra_blob_tiering_primary_max_usage_percent.intValue();
+            int demoted = 0, promoted = 0;
+
+            for (Volume vol : mgr.getAllVolumes()) {
+                if (stopped || remaining <= 0) {
+                    break;
+                }
+                if (!isMovable(vol)) {
+                    continue;
+                }
+                int moved = 0;
+                // reads are only known for a whole interval after the first pass
+                if (vol.getType() == Volume.TYPE_MESSAGE && vol.getId() != secondary.getId() && !firstPass) {
+                    moved = move(vol, secondary, coldDate, 0, remaining);
+                    demoted += moved;
+                } else if (vol.getType() == Volume.TYPE_MESSAGE_SECONDARY && vol.getId() != primary.getId() && promote) {
+                    moved = move(vol, primary, 0, LC.zimbra_blob_tiering_promote_min_reads.intValue(), remaining);
+                    promoted += moved;
+                }
+                remaining -= moved;
+            }
+            firstPass = false;
+            BlobAccessTracker.decay();
+            ZimbraLog.store.info("blob tiering pass moved %d blobs to secondary and %d blobs to primary volumes",
+                    demoted, promoted);
+        } catch (Exception e) {
+            ZimbraLog.store.warn("blob tiering pass failed", e);
+        }
+    }
+
+    /**
+     * Moves the blobs on {@code src} that qualify to {@code dest}.  The candidates are listed from the
+     * database, so only the mailboxes that have blobs to move are loaded.
+     *
+     * @param beforeDate only move blobs of items dated before this, or 0 for all
+     * @param minReads move blobs read at least this many times, or if 0 blobs that were not read
+     * @return the number of blobs moved
+     */
+    private int move(Volume src, Volume dest, int beforeDate, final int minReads, final int max)
+    throws ServiceException {
+        final ListMultimap<Integer, MailboxBlobInfo> candidates = ArrayListMultimap.create();
+        DbConnection conn = DbPool.getConnection();
+        try {
+            DbMailItem.Callback<MailboxBlobInfo> callback = new DbMailItem.Callback<MailboxBlobInfo>() {
+                @Override
+                public void call(MailboxBlobInfo info) {
+                    int reads = BlobAccessTracker.getAccessCount(info.mailboxId, info.itemId);
+                    if (candidates.size() < max && (minReads > 0 ? reads >= minReads : reads == 0)) {
+                        candidates.put(info.mailboxId, info);
+                    }
+                }
+            };
+            for (int groupId : DbMailbox.getMboxGroupIds(conn)) {
+                if (stopped || candidates.size() >= max) {
+                    break;
+                }
+                DbMailItem.visitBlobs(conn, groupId, src.getLocator(), beforeDate, callback);
+            }
+        } finally {
+            conn.closeQuietly();
+        }
+
+        MailboxManager mmgr = MailboxManager.getInstance();
+        int moved = 0;
+        for (int mailboxId : candidates.keySet()) {
+            try {
+                Mailbox mbox = mmgr.getMailboxById(mailboxId);
+                for (List<MailboxBlobInfo> batch : Lists.partition(candidates.get(mailboxId), BATCH_SIZE)) {
+                    if (stopped) {
+                        return moved;
+                    }
+                    moved += moveBatch(mbox, batch, src, dest);
+                }
+            } catch (ServiceException e) {
+                ZimbraLog.store.warn("unable to move blobs of mailbox %d to volume %d", mailboxId, dest.getId(), e);
+            }
+        }
+        return moved;
+    }
+
+    /** Returns the file key of a blob file that has other hard links, or null. */
+    private static Object getSharedFileKey(File file) {
+        try {
+            Path path = file.toPath();
+            if ((Integer) Files.getAttribute(path, "unix:nlink") < 2) {
+                return null;
+            }
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    int moveBatch(Mailbox mbox, List<MailboxBlobInfo> batch, Volume src, Volume dest) throws ServiceException {
+        // copied blobs and their source files
+        Map<MailboxBlobInfo, File> copied = new LinkedHashMap<MailboxBlobInfo, File>();
+        for (MailboxBlobInfo info : batch) {
+            try {
+                MailboxBlob mblob = store.getMailboxBlob(mbox, info.itemId, info.revision, info.locator, true);
+                if (mblob == null) {
+                    // deleted since the blobs were listed
+                    continue;
+                }
+                Blob blob = mblob.getLocalBlob();
+                Object fileKey = getSharedFileKey(blob.getFile());
+                File linkedCopy = fileKey == null ? null : linkedCopies.get(fileKey);
+                if (linkedCopy != null) {
+                    // FileBlobStore.link copies when native code is not loaded
+                    File destFile = new File(FileBlobStore.getBlobPath(mbox, info.itemId, info.revision,
+                            dest.getId()));
+                    BlobInputStream.getFileDescriptorCache().remove(destFile.getPath());
+                    FileUtil.ensureDirExists(destFile.getParentFile());
+                    Files.deleteIfExists(destFile.toPath());
+                    Files.createLink(destFile.toPath(), linkedCopy.toPath());
+                } else {
+                    if (throttle != null) {
+                        throttle.acquire((int) Math.max(1, Math.min(blob.getFile().length(), Integer.MAX_VALUE)));
+                    }
+                    VolumeMailboxBlob copy = store.copy(blob, mbox, info.itemId, info.revision, dest.getId());
+                    if (fileKey != null) {
+                        linkedCopies.put(fileKey, copy.getLocalBlob().getFile());
+                    }
+                }
+                copied.put(info, blob.getFile());
+            } catch (IOException e) {
+                ZimbraLog.store.warn("unable to copy blob %d-%d of mailbox %d to volume %d", info.itemId,
+                        info.revision, mbox.getId(), dest.getId(), e);
+            }
+        }
+
+        List<MailboxBlobInfo> updated;
+        try {
+            updated = mbox.updateBlobLocators(new ArrayList<MailboxBlobInfo>(copied.keySet()), dest.getLocator());
+        } catch (ServiceException e) {
+            updated = new ArrayList<MailboxBlobInfo>();
+            ZimbraLog.store.warn("unable to update locators of blobs moved to volume %d in mailbox %d", dest.getId(),
+                    mbox.getId(), e);
+        }
+
+        List<File> replaced = new ArrayList<File>(updated.size());
+        for (Map.Entry<MailboxBlobInfo, File> entry : copied.entrySet()) {
+            MailboxBlobInfo info = entry.getKey();
+            if (updated.contains(info)) {
+                replaced.add(entry.getValue());
+            } else {
+                // the item changed since it was listed, the copy is not used
+                File unused = new File(FileBlobStore.getBlobPath(mbox, info.itemId, info.revision, dest.getId()));
+                linkedCopies.values().remove(unused);
+                unused.delete();
+            }
+        }
+        synchronized (retired) {
+            retired.addAll(replaced);
+        }
+
+        DbConnection conn = DbPool.getConnection();
+        try {
+            DbVolumeBlobs.updateVolumeId(conn, updated, src.getId(), dest.getId());
+            conn.commit();
+        } finally {
+            DbPool.quietClose(conn);
+        }
+        return updated.size();
+    }
+}
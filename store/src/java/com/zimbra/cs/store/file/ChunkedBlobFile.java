@@ -0,0 +1,401 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2024 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.volume.Volume;
+import com.zimbra.cs.volume.VolumeManager;
+
+/**
+ * Chunked blob format.  A chunked blob is a small manifest file in place of the blob file,
+ * listing the content-defined chunks the blob data is made of.  Chunks are stored once per
+ * volume in the <tt>chunks</tt> directory under the volume root, named by their SHA-256
+ * digest, so identical attachments in different messages share their chunks even though the
+ * surrounding MIME differs.  A manifest only refers to the chunk store of its own volume.
+ *
+ * Manifest layout: magic, raw size, chunk count, then the digest and length of each chunk.
+ * The magic starts with a non-ASCII byte and contains a NUL, so it is not the start of an
+ * RFC 822 message, and the file length must match the chunk count.  Callers that know the raw
+ * size of a blob only look for a manifest when the file size differs from it, as for
+ * compressed blobs.  Manifests are written by {@link BlobChunkerUtil}; unreferenced chunks
+ * are removed by its gc pass.
+ */
+public final class ChunkedBlobFile {
+
+    static final String CHUNK_DIR = "chunks";
+
+    private static final byte[] MAGIC = { (byte) 0x89, 'Z', 'C', 'H', 'K', 0, '\r', '\n', '1' };
+    private static final int DIGEST_LENGTH = 32;
+    // magic, raw size and chunk count
+    private static final int HEADER_LENGTH = MAGIC.length + 8 + 4;
+    // digest and length
+    private static final int ENTRY_LENGTH = DIGEST_LENGTH + 4;
+
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+    // boundary when the high 16 bits of the gear hash are zero, i.e. 64k average chunks; the
+    // low bits only depend on the last few bytes since the hash is shifted left for each byte
+    private static final long BOUNDARY_MASK = 0xffffL << 48;
+
+    // fixed table, chunk boundaries must not change between runs
+    private static final long[] GEAR = new long[256];
+    static {
+        long seed = 0x5a696d6272614368L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    public static final class Chunk {
+        private final byte[] digest;
+        private final int length;
+
+        Chunk(byte[] digest, int length) {
+            this.digest = digest;
+            this.length = length;
+        }
+
+        public String getName() {
+            return Hex.encodeHexString(digest);
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private final File manifest;
+    private File chunkDir;
+    private final long rawSize;
+    private final List<Chunk> chunks;
+
+    private ChunkedBlobFile(File manifest, File chunkDir, long rawSize, List<Chunk> chunks) {
+        this.manifest = manifest;
+        this.chunkDir = chunkDir;
+        this.rawSize = rawSize;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Returns the chunk store the chunks are read from, the one of the volume the manifest is in
+     * unless another one was given to {@link #read(File, File)}.
+     */
+    public File getChunkDir() throws IOException {
+        if (chunkDir == null) {
+            chunkDir = findChunkDir(manifest);
+        }
+        return chunkDir;
+    }
+
+    public long getRawSize() {
+        return rawSize;
+    }
+
+    public List<Chunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    /**
+     * Returns the file of a chunk in a chunk store.
+     */
+    public static File getChunkFile(File chunkDir, String name) {
+        return new File(new File(chunkDir, name.substring(0, 2)), name);
+    }
+
+    /**
+     * Returns the chunk store of the volume with the given root directory.
+     */
+    public static File getChunkDir(String volumeRoot) {
+        return new File(new File(volumeRoot).getAbsoluteFile(), CHUNK_DIR);
+    }
+
+    /**
+     * Returns the chunk store of the message volume a manifest is in.
+     */
+    static File findChunkDir(File manifest) throws IOException {
+        String path = manifest.getAbsolutePath();
+        String root = null;
+        for (Volume volume : VolumeManager.getInstance().getAllVolumes()) {
+            if (volume.getType() != Volume.TYPE_MESSAGE && volume.getType() != Volume.TYPE_MESSAGE_SECONDARY) {
+                continue;
+            }
+            String volumeRoot = new File(volume.getRootPath()).getAbsolutePath();
+            // the most specific root, in case a volume is nested in another one
+            if (path.startsWith(volumeRoot + File.separator) && (root == null || volumeRoot.length() > root.length())) {
+                root = volumeRoot;
+            }
+        }
+        if (root == null) {
+            throw new IOException(manifest.getPath() + " is not in a message volume");
+        }
+        return getChunkDir(root);
+    }
+
+    /**
+     * Returns true if the file is a chunked blob manifest.
+     */
+    public static boolean isChunked(File file) throws IOException {
+        long length = file.length();
+        if (length < HEADER_LENGTH || (length - HEADER_LENGTH) % ENTRY_LENGTH != 0) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] header = new byte[MAGIC.length];
+            in.readFully(header);
+            in.readLong();
+            return isManifest(header, in.readInt(), length);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    private static boolean isManifest(byte[] header, int count, long length) {
+        return Arrays.equals(header, MAGIC) && count >= 0 && length == HEADER_LENGTH + (long) count * ENTRY_LENGTH;
+    }
+
+    /**
+     * Reads the manifest of a chunked blob, whose chunks are in the chunk store of its volume.
+     */
+    public static ChunkedBlobFile read(File file) throws IOException {
+        return read(file, null);
+    }
+
+    /**
+     * Reads the manifest of a chunked blob whose chunks are in the given chunk store.
+     */
+    public static ChunkedBlobFile read(File file, File chunkDir) throws IOException {
+        long fileLength = file.length();
+        if (fileLength < HEADER_LENGTH) {
+            throw new IOException(file.getPath() + " is not a chunked blob");
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] header = new byte[MAGIC.length];
+            in.readFully(header);
+            long rawSize = in.readLong();
+            int count = in.readInt();
+            if (!isManifest(header, count, fileLength)) {
+                throw new IOException(file.getPath() + " is not a chunked blob");
+            }
+            List<Chunk> chunks = new ArrayList<Chunk>(count);
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                byte[] digest = new byte[DIGEST_LENGTH];
+                in.readFully(digest);
+                int length = in.readInt();
+                chunks.add(new Chunk(digest, length));
+                total += length;
+            }
+            if (total != rawSize) {
+                throw new IOException("chunk lengths of " + file.getPath() + " do not add up to " + rawSize);
+            }
+            return new ChunkedBlobFile(file, chunkDir, rawSize, chunks);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    /**
+     * Returns the reassembled blob data.  Chunk files are opened one at a time.
+     */
+    public InputStream getInputStream() {
+        return new ChunkInputStream();
+    }
+
+    private class ChunkInputStream extends InputStream {
+        private int next = 0;
+        private InputStream current;
+
+        private boolean advance() throws IOException {
+            ByteUtil.closeStream(current);
+            current = null;
+            if (next >= chunks.size()) {
+                return false;
+            }
+            current = new FileInputStream(getChunkFile(getChunkDir(), chunks.get(next++).getName()));
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current != null || advance()) {
+                int n = current.read(b, off, len);
+                if (n >= 0) {
+                    return n;
+                }
+                if (!advance()) {
+                    break;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() {
+            ByteUtil.closeStream(current);
+            current = null;
+            next = chunks.size();
+        }
+    }
+
+    /**
+     * Copies the chunked blob to another file, storing its chunks in the given chunk store.
+     * Chunks are stored again rather than the manifest copied, since the destination may be
+     * in another volume.
+     *
+     * @return the manifest that was written
+     */
+    public ChunkedBlobFile copyTo(File dest, File destChunkDir, boolean sync) throws IOException {
+        InputStream in = getInputStream();
+        try {
+            return write(in, destChunkDir, dest, sync);
+        } finally {
+            ByteUtil.closeStream(in);
+        }
+    }
+
+    /**
+     * Splits the data into content-defined chunks, stores the chunks that are not in the chunk
+     * store yet and writes the manifest.  Chunks that already exist get their modification time
+     * refreshed so that a concurrent gc pass does not remove them.  The chunk store must be the
+     * one of the volume the manifest is in, see {@link #getChunkDir(String)}.
+     *
+     * @return the manifest that was written
+     */
+    public static ChunkedBlobFile write(InputStream in, File chunkDir, File manifest, boolean sync) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        long rawSize = 0;
+        byte[] buf = new byte[MAX_CHUNK_SIZE];
+        int length;
+        in = new BufferedInputStream(in, MAX_CHUNK_SIZE);
+        while ((length = nextChunk(in, buf)) > 0) {
+            md.update(buf, 0, length);
+            Chunk chunk = new Chunk(md.digest(), length);
+            storeChunk(chunkDir, chunk, buf, sync);
+            chunks.add(chunk);
+            rawSize += length;
+        }
+
+        ChunkedBlobFile blob = new ChunkedBlobFile(manifest, chunkDir.getAbsoluteFile(), rawSize, chunks);
+        FileOutputStream fos = new FileOutputStream(manifest);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.write(MAGIC);
+            out.writeLong(rawSize);
+            out.writeInt(chunks.size());
+            for (Chunk chunk : chunks) {
+                out.write(chunk.digest);
+                out.writeInt(chunk.length);
+            }
+            out.flush();
+            if (sync) {
+                fos.getChannel().force(true);
+            }
+        } finally {
+            ByteUtil.closeStream(fos);
+        }
+        return blob;
+    }
+
+    /**
+     * Reads the next chunk into the buffer, returns its length or 0 at the end of the data.
+     */
+    @VisibleForTesting
+    static int nextChunk(InputStream in, byte[] buf) throws IOException {
+        int length = ByteStreams.read(in, buf, 0, MIN_CHUNK_SIZE);
+        if (length < MIN_CHUNK_SIZE) {
+            return length;
+        }
+        long hash = 0;
+        int b;
+        while (length < MAX_CHUNK_SIZE && (b = in.read()) >= 0) {
+            buf[length++] = (byte) b;
+            hash = (hash << 1) + GEAR[b];
+            if ((hash & BOUNDARY_MASK) == 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    private static void storeChunk(File chunkDir, Chunk chunk, byte[] buf, boolean sync) throws IOException {
+        File file = getChunkFile(chunkDir, chunk.getName());
+        if (file.exists()) {
+            file.setLastModified(System.currentTimeMillis());
+            return;
+        }
+        FileUtil.ensureDirExists(file.getParentFile());
+        File temp = new File(file.getPath() + ".tmp" + Thread.currentThread().getId());
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(buf, 0, chunk.length);
+            if (sync) {
+                ((FileOutputStream) out).getChannel().force(true);
+            }
+        } finally {
+            ByteUtil.closeStream(out);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            if (!file.exists()) {
+                throw new IOException("unable to store chunk " + file.getPath());
+            }
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.zimbra.cs.store.file;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -31,6 +32,7 @@ import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.util.MailItemHelper;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobBuilder;
+import com.zimbra.cs.store.BlobCodec;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
 import com.zimbra.cs.store.IncomingDirectory;
@@ -59,10 +61,12 @@ public final class FileBlobStore extends StoreManager {
         FileCache<String> ufCache = FileCache.Builder.createWithStringKey(ufCacheDir, false)
             .minLifetime(LC.uncompressed_cache_min_lifetime.longValue()).build();
         BlobInputStream.setFileDescriptorCache(new FileDescriptorCache(ufCache).loadSettings());
+        BlobTierMigrator.startup(this);
     }
 
     @Override
     public void shutdown() {
+        BlobTierMigrator.shutdown();
         IncomingDirectory.stopSweeper();
         BlobInputStream.getFileDescriptorCache().shutdown();
     }
@@ -79,6 +83,7 @@ public final class FileBlobStore extends StoreManager {
             case CENTRALIZED:  return false;
             case SINGLE_INSTANCE_SERVER_CREATE : return false;
             case RESUMABLE_UPLOAD : return false;
+            case SHARED_STAGING : return true;
             default:           return false;
         }
     }
@@ -100,6 +105,12 @@ public final class FileBlobStore extends StoreManager {
         return new VolumeBlobBuilder(blob);
     }
 
+    @Override
+    public Blob storeIncoming(InputStream in, long sizeHint)
+    throws IOException, ServiceException {
+        return getBlobBuilder().setSizeHint(sizeHint).init().append(in).finish();
+    }
+
     @Override
     public Blob storeIncoming(InputStream in, boolean storeAsIs)
     throws IOException, ServiceException {
@@ -119,9 +130,18 @@ public final class FileBlobStore extends StoreManager {
     }
 
     @Override
-    public VolumeStagedBlob stage(Blob blob, Mailbox mbox) throws IOException {
-        // mailbox store is on the same volume as incoming directory, so no need to stage the blob
-        return new VolumeStagedBlob(mbox, (VolumeBlob) blob);
+    public VolumeStagedBlob stage(Blob blob, Mailbox mbox) throws IOException, ServiceException {
+        VolumeBlob vblob = (VolumeBlob) blob;
+        if (vblob.getVolumeId() == MANAGER.getCurrentMessageVolume().getId()) {
+            // mailbox store is on the same volume as incoming directory, so no need to stage the blob
+            return new VolumeStagedBlob(mbox, vblob);
+        }
+        // the current volume changed since the blob was received: copy it to the current volume so
+        // that link() can hard link the copy, once per delivery when the recipients share the staged blob
+        VolumeBlob copy = (VolumeBlob) getUniqueIncomingBlob();
+        FileUtil.copy(vblob.getFile(), copy.getFile(), !DebugConfig.disableMessageStoreFsync);
+        copy.copyCachedDataFrom(vblob);
+        return new VolumeStagedBlob(mbox, copy).markStagedDirectly();
     }
 
     @Override
@@ -173,17 +193,23 @@ public final class FileBlobStore extends StoreManager {
         ensureParentDirExists(dest);
 
         boolean destCompressed;
-        if (destVolume.isCompressBlobs()) {
+        if (src.isChunked()) {
+            // the manifest refers to the chunk store of its volume, which needs the chunks too
+            ChunkedBlobFile.read(srcFile).copyTo(dest, ChunkedBlobFile.getChunkDir(destVolume.getRootPath()),
+                !DebugConfig.disableMessageStoreFsync);
+            destCompressed = false;
+        } else if (destVolume.isCompressBlobs()) {
             if (src.isCompressed() || srcFile.length() <= destVolume.getCompressionThreshold()) {
                 FileUtil.copy(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
                 destCompressed = src.isCompressed();
             } else {
-                FileUtil.compress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
+                BlobCodec.getDefault().compress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
                 destCompressed = true;
             }
         } else {
             if (src.isCompressed()) {
-                FileUtil.uncompress(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
+                FileUtil.uncompress(BlobCodec.decompressAny(new FileInputStream(srcFile)), dest,
+                    !DebugConfig.disableMessageStoreFsync);
             } else {
                 FileUtil.copy(srcFile, dest, !DebugConfig.disableMessageStoreFsync);
             }
@@ -385,9 +411,15 @@ public final class FileBlobStore extends StoreManager {
         if (mboxBlob == null) {
             return null;
         }
+        BlobAccessTracker.recordAccess(mboxBlob.getMailbox().getId(), mboxBlob.getItemId());
         return getContent(mboxBlob.getLocalBlob());
     }
 
+    @Override
+    public InputStream getLocalContent(MailboxBlob mboxBlob) throws IOException {
+        return getContent(mboxBlob);
+    }
+
     @Override
     public InputStream getContent(Blob blob) throws IOException {
         if (blob == null) {
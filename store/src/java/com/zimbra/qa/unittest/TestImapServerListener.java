@@ -802,6 +802,11 @@ public class TestImapServerListener {
             return false;
         }
 
+        @Override
+        protected boolean doCOMPRESS(String tag, String mechanism) throws IOException {
+            return false;
+        }
+
         @Override
         protected InetSocketAddress getLocalAddress() {
             return new InetSocketAddress("localhost", 0);